@@ -3,10 +3,37 @@ DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/Amazon.java
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
 java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Amazon $USER"_project_phase_3_DB" $PGPORT $USER
 
 
+#or run the multi-session server instead (listen port, pool size, max sessions)
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar AmazonServer $USER"_project_phase_3_DB" $PGPORT $USER 5400 16 256 /tmp/amazon.prom
+
+#replay an orders file through the batch ingestion API (batch size)
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar OrderIngestor $USER"_project_phase_3_DB" $PGPORT $USER $DIR/../../data/orders.csv 500
+
+#generate a larger deterministic data set in the layout of data/*.csv
+#java -cp $DIR/../classes DataGenerator /tmp/amazon_data seed=166 users=100000 stores=2000 orders=10000000
+
+#bulk load a data directory into empty tables (parallel writers)
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar BulkLoader $USER"_project_phase_3_DB" $PGPORT $USER $DIR/../../data 4
+
+#run the benchmarks (add db=... port=... user=... for the query and end-to-end ones) and compare two runs
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Benchmark build=$(git rev-parse --short HEAD) threads=1,8 out=bench.csv
+#java -cp $DIR/../classes Benchmark compare baseline.csv bench.csv 10
+
+#create the coming monthly partitions, archive months older than 12 and export them (e.g. daily from cron)
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar PartitionMaintainer $USER"_project_phase_3_DB" $PGPORT $USER 2 12 $DIR/../../archive
+
+#load test: 32 clients at 200 ops/s open loop for 2 minutes, Zipf-skewed products
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar LoadTest db=$USER"_project_phase_3_DB" port=$PGPORT clients=32 rate=200 duration=120 out=load.csv
+
+#HTTP/JSON API on port 8080, e.g. curl -d '{"name":"...","password":"..."}' localhost:8080/api/sessions
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar ApiServer $USER"_project_phase_3_DB" $PGPORT $USER 8080 16
+
+#measure distances in miles on real latitude/longitude data (default euclidean, on the raw degrees)
+#java -Damazon.distance=equirectangular -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Amazon $USER"_project_phase_3_DB" $PGPORT $USER
@@ -1,15 +1,24 @@
-import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.lang.Math;
 
 
@@ -20,199 +29,1508 @@ import java.lang.Math;
 */
 public class Amazon {
 
- // reference to physical database connection.
- private Connection _connection = null;
+ // pool of physical database connections; each helper call leases one
+ private final ConnectionPool _pool;
+
+ // search radius (in miles) used by viewStores and placeOrder
+ public static final double STORE_RADIUS = 30.0;
+
+ // number of prepared statements kept open per connection
+ public static final int STATEMENT_CACHE_SIZE = 64;
+
+ // uses of a SQL template before it becomes a server-side prepared statement
+ public static final int SERVER_PREPARE_THRESHOLD = 5;
+
+ // how often a transaction is retried after a serialization failure or deadlock
+ public static final int MAX_TRANSACTION_RETRIES = 5;
+
+ // rows fetched per round trip by streamQuery
+ public static final int STREAM_FETCH_SIZE = 500;
+
+ // rows per page of the paged listings, unless set with setPageSize
+ public static final int PAGE_SIZE = 20;
+
+ // month windows queryRecent tries before reading all older history at once
+ public static final int RECENT_WINDOWS = 5;
+
+ // bounds of the open-ended queryRecent windows
+ private static final java.sql.Timestamp RECENT_FLOOR = java.sql.Timestamp.valueOf ("1900-01-01 00:00:00");
+ private static final java.sql.Timestamp RECENT_CEILING = java.sql.Timestamp.valueOf ("9999-01-01 00:00:00");
+
+ // source of unique cursor names for streamQuery
+ private static final AtomicLong _cursorSeq = new AtomicLong ();
+
+ // connection pinned to the current thread while a transaction runs
+ private final ThreadLocal<ConnectionPool.PooledConnection> _pinned =
+    new ThreadLocal<ConnectionPool.PooledConnection>();
+
+ // distance formula, chosen with -Damazon.distance=euclidean|haversine|equirectangular
+ private static final DistanceEngine DISTANCE =
+    DistanceEngine.forName (System.getProperty ("amazon.distance", "euclidean"));
+
+ // in-memory spatial index over Store coordinates, with radius-sized cells
+ private final StoreIndex _storeIndex = new StoreIndex(DISTANCE.latitudeSpan (STORE_RADIUS), DISTANCE);
+
+ // precomputed store-to-store and store-to-warehouse distances
+ private final DistanceMatrix _distances = new DistanceMatrix(DISTANCE);
+
+ // in-memory warehouse locations and load used to route supply requests
+ private final WarehouseRouter _warehouses = new WarehouseRouter(_distances);
+
+ // background low-stock replenishment; null until startReplenishment()
+ private volatile Replenisher _replenisher = null;
+
+ // bumped on every store index reload; cached manager store sets read
+ // under an older generation are discarded
+ private final AtomicLong _storeGeneration = new AtomicLong ();
+
+ // how long a session's manager store set is kept; bounds how long Store
+ // changes made by other processes go unseen
+ public static final long MANAGER_STORES_TTL_MILLIS = 60 * 1000L;
+
+ // the store set cached on a session, with when and under which store
+ // generation it was read
+ static final class ManagerStores {
+    final int[] stores;
+    final long generation;
+    final long loadedAt;
+
+    ManagerStores(int[] stores, long generation, long loadedAt) {
+       this.stores = stores;
+       this.generation = generation;
+       this.loadedAt = loadedAt;
+    }
+ }
+
+ // number of Product rows kept in the product cache
+ public static final int PRODUCT_CACHE_SIZE = 10000;
+
+ // in-process cache of Product rows, kept coherent by _productListener
+ private final ProductCache _products = new ProductCache(PRODUCT_CACHE_SIZE);
+ private final ProductChangeListener _productListener;
+
+ // latency, row and error metrics for the helpers and menu operations
+ private final Metrics _metrics = new Metrics ();
+
+ // a login stays valid this long after it was last used
+ public static final long SESSION_TTL_MILLIS = 30 * 60 * 1000L;
+
+ // rows per page of the paged listings
+ private volatile int _pageSize = PAGE_SIZE;
+
+ // logged-in users, kept in memory
+ private final SessionStore _sessions = new SessionStore (SESSION_TTL_MILLIS);
+
+ // workers running the queries forked by scope(); one per pooled
+ // connection, since each forked query holds a connection while it runs
+ private final ExecutorService _async;
+
+ // names the main menu choices are timed under; null entries are not timed
+ private static final String[] MENU_OPERATIONS = {
+    null, "viewStores", "viewProducts", "placeOrder", "viewRecentOrders", "updateProduct",
+    "viewRecentUpdates", "viewPopularProducts", "viewPopularCustomers",
+    "placeProductSupplyRequests", "admin"
+ };
 
  // handling the keyboard inputs through a BufferedReader
- // This variable can be global for convenience.
- static BufferedReader in = new BufferedReader(
-                              new InputStreamReader(System.in));
+ // This variable can be global for convenience; it reads from stdin unless
+ // a server session has bound its own streams to the current thread.
+ static BufferedReader in = SessionIO.in;
+
+ // console output: the stream bound to the current thread, routed the same
+ // way as in. Each session writes to its own stream, so a client that stops
+ // reading only blocks its own thread.
+ static PrintStream out() {
+    return SessionIO.out();
+ }
+
+ /**
+  * Creates a new instance of Amazon store
+  *
+  * @param hostname the MySQL or PostgreSQL server hostname
+  * @param database the name of the database
+  * @param username the user name used to login to the database
+  * @param password the user login password
+  * @throws java.sql.SQLException when failed to make a connection.
+  */
+
+
+ public Amazon(String dbname, String dbport, String user, String passwd) throws SQLException {
+
+    this(new ConnectionPool(new ConnectionPool.Config(url(dbname, dbport), user, passwd)));
+ }//end Amazon
+
+ /**
+  * Creates a new instance of Amazon store on top of an existing
+  * connection pool. The instance is safe to share between sessions.
+  *
+  * @param pool the pool each database call leases a connection from
+  */
+ public Amazon(ConnectionPool pool) {
+
+    System.out.print("Connecting to database...");
+    this._pool = pool;
+    this._productListener = new ProductChangeListener(pool, this._products);
+    this._async = asyncExecutor(pool.maxSize());
+    try{
+       // obtain a physical connection and load the store coordinates once up front
+       refreshStoreIndex();
+       refreshWarehouses();
+       this._productListener.start();
+       System.out.println("Done");
+    }catch (Exception e){
+       System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
+       System.out.println("Make sure you started postgres on this machine");
+       System.exit(-1);
+    }//end catch
+ }//end Amazon
+
+ // daemon workers, so forked queries never keep the JVM alive on exit
+ private static ExecutorService asyncExecutor(int threads) {
+    final AtomicLong seq = new AtomicLong ();
+    ThreadPoolExecutor executor = new ThreadPoolExecutor (threads, threads, 60L, TimeUnit.SECONDS,
+       new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          public Thread newThread (Runnable r) {
+             Thread t = new Thread (r, "Amazon-async-" + seq.incrementAndGet ());
+             t.setDaemon (true);
+             return t;
+          }
+       });
+    executor.allowCoreThreadTimeOut (true);
+    return executor;
+ }//end asyncExecutor
+
+ /**
+  * Opens a scope for running independent queries of one operation at the
+  * same time instead of one round trip after another. Each forked task
+  * uses its own pooled connection, so a scope cannot be opened inside
+  * inTransaction: the forked queries would escape the transaction.
+  *
+  * @return a new scope; close it when done
+  */
+ public TaskScope scope () {
+    if (this._pinned.get () != null)
+       throw new IllegalStateException ("Cannot fork queries inside a transaction");
+    return new TaskScope (this._async);
+ }
+
+ /**
+  * @return the JDBC URL of a local PostgreSQL database
+  */
+ public static String url(String dbname, String dbport) {
+    // constructs the connection URL
+    String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+    System.out.println ("Connection URL: " + url + "\n");
+    return url;
+ }//end url
+
+ // Method to calculate the distance between two latitude, longitude pairs
+ // with the configured engine; euclidean on the raw degrees by default.
+ public static double calculateDistance (double lat1, double long1, double lat2, double long2){
+    return DISTANCE.distance (lat1, long1, lat2, long2);
+ }
+
+ /**
+  * @return the distance formula used by calculateDistance() and the
+  *         in-memory indexes
+  */
+ public static DistanceEngine distanceEngine () {
+    return DISTANCE;
+ }
+ /**
+  * Method to execute an input query SQL instruction (i.e. SELECT).  This
+  * method issues the query to the DBMS and outputs the results to
+  * standard out.
+  *
+  * @param query the input query string
+  * @return the number of rows returned
+  * @throws java.sql.SQLException when failed to execute the query
+  */
+ public int executeQueryAndPrintResult (String query) throws SQLException {
+    final boolean[] outputHeader = { true };
+
+    // streams the rows through a cursor and outputs them to standard out.
+    long rowCount = streamQuery (query, STREAM_FETCH_SIZE, new RowHandler() {
+       public boolean row (ResultSet rs) throws SQLException {
+          /*
+           ** obtains the metadata object for the returned result set.  The metadata
+           ** contains row and column info.
+           */
+          ResultSetMetaData rsmd = rs.getMetaData ();
+          int numCol = rsmd.getColumnCount ();
+          if(outputHeader[0]){
+             for(int i = 1; i <= numCol; i++){
+             out().print(rsmd.getColumnName(i) + "\t");
+             }
+             out().println();
+             outputHeader[0] = false;
+          }
+          for (int i=1; i<=numCol; ++i)
+             out().print (rs.getString (i) + "\t");
+          out().println ();
+          return true;
+       }
+    });
+    return (int) rowCount;
+ }//end executeQuery
+
+ /**
+  * A unit of work run inside a transaction by inTransaction.
+  */
+ public interface Work<T> {
+    T run() throws SQLException;
+ }
+
+ // returns the connection pinned by inTransaction, or borrows one
+ private ConnectionPool.PooledConnection lease () throws SQLException {
+    ConnectionPool.PooledConnection pc = this._pinned.get ();
+    return pc != null ? pc : borrow ();
+ }
+
+ // borrows a connection from the pool, recording how long it took
+ private ConnectionPool.PooledConnection borrow () throws SQLException {
+    long start = System.nanoTime ();
+    try {
+       ConnectionPool.PooledConnection pc = this._pool.borrow ();
+       this._metrics.connectionWait (System.nanoTime () - start);
+       return pc;
+    } catch (SQLException e) {
+       this._metrics.connectionFailed (e);
+       throw e;
+    }
+ }//end borrow
+
+ /**
+  * @return the metrics recorded by the helpers and menu operations
+  */
+ public Metrics metrics () {
+    return this._metrics;
+ }
+
+ // gives back a connection obtained from lease
+ private void unlease (ConnectionPool.PooledConnection pc) {
+    if (this._pinned.get () != pc)
+       this._pool.release (pc);
+ }
+
+ /**
+  * Runs work in a single database transaction. Every helper call made by
+  * the work on this thread uses the same connection. The transaction is
+  * committed if the work returns normally and rolled back otherwise; on a
+  * serialization failure or deadlock it is retried up to
+  * MAX_TRANSACTION_RETRIES times. Nested calls join the outer transaction.
+  *
+  * @param work the statements to run
+  * @return whatever the work returns
+  * @throws java.sql.SQLException when the work fails or keeps conflicting
+  */
+ public <T> T inTransaction (Work<T> work) throws SQLException {
+    if (this._pinned.get () != null)
+       return work.run ();
+
+    ConnectionPool.PooledConnection pc = borrow ();
+    Connection conn = pc.connection ();
+    this._pinned.set (pc);
+    try {
+       for (int attempt = 0; ; ++attempt) {
+          conn.setAutoCommit (false);
+          try {
+             T result = work.run ();
+             conn.commit ();
+             return result;
+          } catch (SQLException e) {
+             conn.rollback ();
+             if (attempt >= MAX_TRANSACTION_RETRIES || !isRetryable (e))
+                throw e;
+          } catch (RuntimeException e) {
+             conn.rollback ();
+             throw e;
+          } finally {
+             conn.setAutoCommit (true);
+          }
+       }
+    } finally {
+       this._pinned.remove ();
+       this._pool.release (pc);
+    }
+ }//end inTransaction
+
+ // serialization_failure (40001) and deadlock_detected (40P01); older
+ // drivers leave SQLState empty so the server message is checked as well
+ private static boolean isRetryable (SQLException e) {
+    String state = e.getSQLState ();
+    if ("40001".equals (state) || "40P01".equals (state))
+       return true;
+    String msg = e.getMessage ();
+    return msg != null && (msg.indexOf ("could not serialize access") >= 0
+                           || msg.indexOf ("deadlock detected") >= 0);
+ }
+
+ // maps (orderNumber, remaining units) to a placed order
+ private static final RowMapper<OrderResult> PLACED_ORDER = new RowMapper<OrderResult>() {
+    public OrderResult map (ResultSet rs) throws SQLException {
+       return new OrderResult (OrderResult.Status.PLACED, rs.getInt (1), rs.getInt (2));
+    }
+ };
+
+ /**
+  * Places one order atomically. The stock decrement is conditional on
+  * enough units being left and the Orders row is inserted by the same
+  * statement, so concurrent buyers of the same product can never oversell
+  * it and a successful order costs a single round trip.
+  *
+  * @param customerID the ordering user
+  * @param storeID the store the product is bought from
+  * @param productName the product
+  * @param units number of units ordered; must be positive
+  * @return whether the order was placed, and if not why
+  * @throws java.sql.SQLException when the order could not be written
+  */
+ public OrderResult submitOrder (final int customerID, final int storeID,
+                                 final String productName, final int units) throws SQLException {
+    if (units <= 0)
+       return OrderResult.rejected (OrderResult.Status.INVALID);
+
+    OrderResult result = inTransaction (new Work<OrderResult>() {
+       public OrderResult run () throws SQLException {
+          OrderResult placed = queryOne (
+             "WITH dec AS (" +
+             "  UPDATE Product SET numberOfUnits = numberOfUnits - ? " +
+             "  WHERE storeID = ? AND productName = ? AND numberOfUnits >= ? " +
+             "  RETURNING storeID, productName, numberOfUnits) " +
+             "INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime) " +
+             "SELECT ?, storeID, productName, ?, CURRENT_TIMESTAMP FROM dec " +
+             "RETURNING orderNumber, (SELECT numberOfUnits FROM dec)",
+             PLACED_ORDER, units, storeID, productName, units, customerID, units);
+          if (placed != null)
+             return placed;
+
+          // nothing was written: tell a stock-out apart from a bad product
+          int stock = queryInt (
+             "SELECT numberOfUnits FROM Product WHERE storeID = ? AND productName = ?",
+             -1, storeID, productName);
+          if (stock < 0)
+             return OrderResult.rejected (OrderResult.Status.NO_SUCH_PRODUCT);
+          return new OrderResult (OrderResult.Status.OUT_OF_STOCK, -1, stock);
+       }
+    });
+
+    // the transaction has committed, so the stock we saw is current
+    ProductKey key = new ProductKey (storeID, productName);
+    if (result.status == OrderResult.Status.NO_SUCH_PRODUCT)
+       this._products.invalidate (key);
+    else
+       this._products.updateUnits (key, result.remainingUnits);
+    if (result.placed ())
+       stockDecremented (storeID, productName, result.remainingUnits);
+    return result;
+ }//end submitOrder
+
+ /**
+  * @return the product cache shared by all sessions
+  */
+ public ProductCache products () {
+    return this._products;
+ }
+
+ /**
+  * Looks up a product, serving it from the product cache when possible.
+  *
+  * @return the product, or null if the store does not carry it
+  * @throws java.sql.SQLException when failed to execute the query
+  */
+ public Product findProduct (int storeID, String productName) throws SQLException {
+    ProductKey key = new ProductKey (storeID, productName);
+    Product product = this._products.get (key);
+    if (product != null)
+       return product;
+
+    // taken before the read so a write racing it is not overwritten
+    long generation = this._products.generation (key);
+    product = queryOne (
+       "SELECT " + Product.COLUMNS + " FROM Product WHERE storeID = ? AND productName = ?",
+       Product.MAPPER, storeID, productName);
+    if (product == null)
+       return null;
+    if (this._pinned.get () != null)
+       this._products.invalidate (key);
+    else
+       this._products.putIfUnchanged (product, generation);
+    return product;
+ }//end findProduct
+
+ /**
+  * Sets a product's unit count and price, updating the product cache.
+  *
+  * @return false if the store does not carry the product
+  * @throws java.sql.SQLException when the update failed
+  */
+ public boolean writeProduct (int storeID, String productName, int numberOfUnits, double pricePerUnit) throws SQLException {
+    int n = executeUpdate (
+       "UPDATE Product SET numberOfUnits = ?, pricePerUnit = ? WHERE storeID = ? AND productName = ?",
+       numberOfUnits, pricePerUnit, storeID, productName);
+    if (n == 0)
+       this._products.invalidate (new ProductKey (storeID, productName));
+    else
+       cacheProduct (new Product (storeID, productName, numberOfUnits, pricePerUnit));
+    return n > 0;
+ }//end writeProduct
+
+ /**
+  * Adds units to a product's stock, updating the product cache.
+  *
+  * @return the new unit count, or -1 if the store does not carry the product
+  * @throws java.sql.SQLException when the update failed
+  */
+ public int addStock (int storeID, String productName, int units) throws SQLException {
+    Product product = queryOne (
+       "UPDATE Product SET numberOfUnits = numberOfUnits + ? WHERE storeID = ? AND productName = ? " +
+       "RETURNING " + Product.COLUMNS, Product.MAPPER, units, storeID, productName);
+    if (product == null) {
+       this._products.invalidate (new ProductKey (storeID, productName));
+       return -1;
+    }
+    cacheProduct (product);
+    return product.numberOfUnits;
+ }//end addStock
+
+ // write-through; inside a transaction the entry is dropped instead since
+ // the write may still roll back
+ private void cacheProduct (Product product) {
+    if (this._pinned.get () != null)
+       this._products.invalidate (product.key ());
+    else
+       this._products.put (product);
+ }
+
+ /**
+  * Binds positional parameters to a prepared statement. Supported types
+  * are Integer, Long, Double, String, Timestamp and null; anything else
+  * goes through setObject.
+  */
+ private static void bind (PreparedStatement stmt, Object[] params) throws SQLException {
+    for (int i = 0; i < params.length; ++i) {
+       Object p = params[i];
+       if (p == null)
+          stmt.setNull (i + 1, java.sql.Types.VARCHAR);
+       else if (p instanceof Integer)
+          stmt.setInt (i + 1, ((Integer) p).intValue());
+       else if (p instanceof Long)
+          stmt.setLong (i + 1, ((Long) p).longValue());
+       else if (p instanceof Double)
+          stmt.setDouble (i + 1, ((Double) p).doubleValue());
+       else if (p instanceof String)
+          stmt.setString (i + 1, (String) p);
+       else if (p instanceof java.sql.Timestamp)
+          stmt.setTimestamp (i + 1, (java.sql.Timestamp) p);
+       else
+          stmt.setObject (i + 1, p);
+    }
+ }//end bind
+
+ /**
+  * Method to execute a parameterized update SQL statement through the
+  * prepared statement cache.
+  *
+  * @param sql the SQL template with '?' placeholders
+  * @param params the values bound to the placeholders, in order
+  * @return the number of rows affected
+  * @throws java.sql.SQLException when update failed
+  */
+ public int executeUpdate (String sql, Object... params) throws SQLException {
+    ConnectionPool.PooledConnection pc = lease ();
+    long start = System.nanoTime ();
+    try {
+       PreparedStatement stmt = pc.statements().prepare (sql);
+       bind (stmt, params);
+       int n = stmt.executeUpdate ();
+       this._metrics.query (sql, start, n);
+       return n;
+    } catch (SQLException e) {
+       this._metrics.failed (sql, start, e);
+       throw e;
+    } finally {
+       unlease (pc);
+    }
+ }//end executeUpdate
+
+ /**
+  * Method to execute the same parameterized update SQL statement for many
+  * parameter rows as a single JDBC batch.
+  *
+  * @param sql the SQL template with '?' placeholders
+  * @param rows one array of placeholder values per execution
+  * @return the update count of each execution
+  * @throws java.sql.SQLException when the batch failed
+  */
+ public int[] executeBatch (String sql, List<Object[]> rows) throws SQLException {
+    if (rows.isEmpty())
+       return new int[0];
+    ConnectionPool.PooledConnection pc = lease ();
+    long start = System.nanoTime ();
+    PreparedStatement stmt = null;
+    try {
+       stmt = pc.statements().prepare (sql);
+       for (Object[] row : rows) {
+          bind (stmt, row);
+          stmt.addBatch ();
+       }
+       int[] counts = stmt.executeBatch ();
+       this._metrics.query (sql, start, rows.size ());
+       return counts;
+    } catch (SQLException e) {
+       this._metrics.failed (sql, start, e);
+       throw e;
+    } finally {
+       if (stmt != null)
+          stmt.clearBatch ();
+       unlease (pc);
+    }
+ }//end executeBatch
+
+ /**
+  * Method to execute a parameterized query through the prepared statement
+  * cache and return the results as a list of records.
+  *
+  * @param sql the SQL template with '?' placeholders
+  * @param params the values bound to the placeholders, in order
+  * @return the query result as a list of records
+  * @throws java.sql.SQLException when failed to execute the query
+  */
+ public List<List<String>> executeQueryAndReturnResult (String sql, Object... params) throws SQLException {
+    ConnectionPool.PooledConnection pc = lease ();
+    long start = System.nanoTime ();
+    try {
+       PreparedStatement stmt = pc.statements().prepare (sql);
+       bind (stmt, params);
+       ResultSet rs = stmt.executeQuery ();
+       int numCol = rs.getMetaData ().getColumnCount ();
+
+       List<List<String>> result  = new ArrayList<List<String>>();
+       while (rs.next()){
+         List<String> record = new ArrayList<String>();
+         for (int i=1; i<=numCol; ++i)
+            record.add(rs.getString (i));
+         result.add(record);
+       }//end while
+       rs.close ();
+       this._metrics.query (sql, start, result.size ());
+       return result;
+    } catch (SQLException e) {
+       this._metrics.failed (sql, start, e);
+       throw e;
+    } finally {
+       unlease (pc);
+    }
+ }//end executeQueryAndReturnResult
+
+ /**
+  * Method to execute a parameterized query through the prepared statement
+  * cache and return the number of results.
+  *
+  * @param sql the SQL template with '?' placeholders
+  * @param params the values bound to the placeholders, in order
+  * @return the number of rows returned
+  * @throws java.sql.SQLException when failed to execute the query
+  */
+ public int executeQuery (String sql, Object... params) throws SQLException {
+    ConnectionPool.PooledConnection pc = lease ();
+    long start = System.nanoTime ();
+    try {
+       PreparedStatement stmt = pc.statements().prepare (sql);
+       bind (stmt, params);
+       ResultSet rs = stmt.executeQuery ();
+
+       int rowCount = 0;
+       while (rs.next()){
+          rowCount++;
+       }//end while
+       rs.close ();
+       this._metrics.query (sql, start, rowCount);
+       return rowCount;
+    } catch (SQLException e) {
+       this._metrics.failed (sql, start, e);
+       throw e;
+    } finally {
+       unlease (pc);
+    }
+ }//end executeQuery
+
+ /**
+  * Receives the rows of a streamed query one at a time.
+  */
+ public interface RowHandler {
+    /**
+     * @param rs the result set, positioned on the current row; read it with
+     *           the typed getters and do not keep it past the call
+     * @return false to stop reading further rows
+     */
+    boolean row(ResultSet rs) throws SQLException;
+ }
+
+ /**
+  * Method to execute a parameterized query and hand its rows to a
+  * callback as they arrive, without ever holding the whole result. The
+  * query runs through a server-side cursor that is read fetchSize rows at
+  * a time inside a transaction, so memory use stays flat however large
+  * the table is.
+  *
+  * The transaction is not retried on a serialization failure, as a retry
+  * would hand the rows already read to the handler a second time. When
+  * called inside inTransaction the cursor joins that transaction instead,
+  * and a retry of it runs the handler again from the first row.
+  *
+  * @param sql the SQL query with '?' placeholders
+  * @param fetchSize the number of rows fetched per round trip
+  * @param handler receives each row
+  * @param params the values bound to the placeholders, in order
+  * @return the number of rows handed to the handler
+  * @throws java.sql.SQLException when failed to execute the query
+  */
+ public long streamQuery (String sql, int fetchSize, RowHandler handler,
+                          Object... params) throws SQLException {
+    ConnectionPool.PooledConnection pinned = this._pinned.get ();
+    if (pinned != null)
+       return stream (pinned, sql, fetchSize, handler, params);
+
+    // pinned like inTransaction so the handler's own queries see the same
+    // transaction, but run once
+    ConnectionPool.PooledConnection pc = borrow ();
+    Connection conn = pc.connection ();
+    this._pinned.set (pc);
+    try {
+       conn.setAutoCommit (false);
+       try {
+          long count = stream (pc, sql, fetchSize, handler, params);
+          conn.commit ();
+          return count;
+       } catch (SQLException e) {
+          conn.rollback ();
+          throw e;
+       } catch (RuntimeException e) {
+          conn.rollback ();
+          throw e;
+       } finally {
+          conn.setAutoCommit (true);
+       }
+    } finally {
+       this._pinned.remove ();
+       this._pool.release (pc);
+    }
+ }//end streamQuery
+
+ // reads a query through a cursor on a connection already in a transaction
+ private long stream (ConnectionPool.PooledConnection pc, String sql, int fetchSize,
+                      RowHandler handler, Object... params) throws SQLException {
+    long start = System.nanoTime ();
+    String cursor = "amazon_cursor_" + _cursorSeq.incrementAndGet ();
+    try {
+       // DECLARE cannot be server-side prepared, so it bypasses the statement cache
+       PreparedStatement declare = pc.connection ().prepareStatement (
+          "DECLARE " + cursor + " NO SCROLL CURSOR FOR " + sql);
+       bind (declare, params);
+       declare.execute ();
+       declare.close ();
+
+       Statement fetch = pc.connection ().createStatement ();
+       String fetchSql = "FETCH FORWARD " + fetchSize + " FROM " + cursor;
+       long count = 0;
+       boolean more = true;
+       try {
+          while (more) {
+             ResultSet rs = fetch.executeQuery (fetchSql);
+             int inBatch = 0;
+             while (rs.next ()) {
+                ++inBatch;
+                ++count;
+                if (!handler.row (rs)) {
+                   more = false;
+                   break;
+                }
+             }
+             rs.close ();
+             if (inBatch < fetchSize)
+                more = false;
+          }
+          fetch.execute ("CLOSE " + cursor);
+       } finally {
+          fetch.close ();
+       }
+       this._metrics.query (sql, start, count);
+       return count;
+    } catch (SQLException e) {
+       this._metrics.failed (sql, start, e);
+       throw e;
+    }
+ }//end stream
+
+ /**
+  * Method to run a newest-first query against a table partitioned by
+  * month (Orders, ProductUpdates) so that it only reads the partitions it
+  * needs. The query runs for the current month first and then for
+  * growing windows of older months (1, 2, 4, 8), and finally for all
+  * remaining history, until limit rows have been handed to the handler.
+  * Each window bounds the time column, so Postgres prunes every partition
+  * outside it; an active user is usually served from the latest
+  * partition alone.
+  *
+  * @param sql the query; after its own placeholders it must take the
+  *            window's lower (inclusive) and upper (exclusive) time bound
+  *            and the row limit, e.g. "... WHERE customerID = ? AND
+  *            orderTime >= ? AND orderTime < ? ORDER BY orderTime DESC LIMIT ?"
+  * @param limit the maximum number of rows to return
+  * @param handler receives the rows, newest first
+  * @param params the values of the query's own placeholders
+  * @return the number of rows handed to the handler
+  * @throws java.sql.SQLException when failed to execute the query
+  */
+ public int queryRecent (String sql, int limit, final RowHandler handler, Object... params) throws SQLException {
+    Object[] args = java.util.Arrays.copyOf (params, params.length + 3);
+    java.util.Calendar month = java.util.Calendar.getInstance ();
+    month.set (java.util.Calendar.DAY_OF_MONTH, 1);
+    month.set (java.util.Calendar.HOUR_OF_DAY, 0);
+    month.set (java.util.Calendar.MINUTE, 0);
+    month.set (java.util.Calendar.SECOND, 0);
+    month.set (java.util.Calendar.MILLISECOND, 0);
+
+    final boolean[] stopped = { false };
+    RowHandler forward = new RowHandler() {
+       public boolean row (ResultSet rs) throws SQLException {
+          stopped[0] = !handler.row (rs);
+          return !stopped[0];
+       }
+    };
+
+    java.sql.Timestamp upper = RECENT_CEILING;
+    int total = 0;
+    int width = 1;
+    for (int window = 0; ; ++window) {
+       java.sql.Timestamp lower = window < RECENT_WINDOWS
+          ? new java.sql.Timestamp (month.getTimeInMillis ()) : RECENT_FLOOR;
+       args[params.length] = lower;
+       args[params.length + 1] = upper;
+       args[params.length + 2] = limit - total;
+       total += queryEach (sql, forward, args);
+       if (stopped[0] || total >= limit || lower == RECENT_FLOOR)
+          return total;
+
+       upper = lower;
+       if (window > 0)
+          width *= 2;
+       month.add (java.util.Calendar.MONTH, -width);
+    }
+ }//end queryRecent
+
+ /**
+  * Maps the current row of a result set to a typed record.
+  */
+ public interface RowMapper<T> {
+    T map(ResultSet rs) throws SQLException;
+ }
+
+ /**
+  * Method to execute a parameterized query through the prepared statement
+  * cache and map every row straight to a typed record with the ResultSet
+  * getters, skipping the String round trip.
+  *
+  * @param sql the SQL template with '?' placeholders
+  * @param mapper converts one row
+  * @param params the values bound to the placeholders, in order
+  * @return the mapped rows
+  * @throws java.sql.SQLException when failed to execute the query
+  */
+ public <T> List<T> queryList (String sql, final RowMapper<T> mapper, Object... params) throws SQLException {
+    final List<T> result = new ArrayList<T>();
+    queryEach (sql, new RowHandler() {
+       public boolean row (ResultSet rs) throws SQLException {
+          result.add (mapper.map (rs));
+          return true;
+       }
+    }, params);
+    return result;
+ }//end queryList
+
+ /**
+  * Method to execute a parameterized query through the prepared statement
+  * cache and hand each row to a callback that reads it with the typed
+  * getters. Unlike streamQuery no cursor is used, so this suits small
+  * results such as reports with a LIMIT.
+  *
+  * @return the number of rows handed to the handler
+  * @throws java.sql.SQLException when failed to execute the query
+  */
+ public int queryEach (String sql, RowHandler handler, Object... params) throws SQLException {
+    ConnectionPool.PooledConnection pc = lease ();
+    long start = System.nanoTime ();
+    try {
+       PreparedStatement stmt = pc.statements().prepare (sql);
+       bind (stmt, params);
+       ResultSet rs = stmt.executeQuery ();
+       int count = 0;
+       while (rs.next()) {
+          ++count;
+          if (!handler.row (rs))
+             break;
+       }
+       rs.close ();
+       this._metrics.query (sql, start, count);
+       return count;
+    } catch (SQLException e) {
+       this._metrics.failed (sql, start, e);
+       throw e;
+    } finally {
+       unlease (pc);
+    }
+ }//end queryEach
+
+ /**
+  * Like queryList, but only maps the first row.
+  *
+  * @return the first mapped row, or null if there is none
+  */
+ public <T> T queryOne (String sql, RowMapper<T> mapper, Object... params) throws SQLException {
+    ConnectionPool.PooledConnection pc = lease ();
+    long start = System.nanoTime ();
+    try {
+       PreparedStatement stmt = pc.statements().prepare (sql);
+       bind (stmt, params);
+       ResultSet rs = stmt.executeQuery ();
+       T result = rs.next () ? mapper.map (rs) : null;
+       rs.close ();
+       this._metrics.query (sql, start, result != null ? 1 : 0);
+       return result;
+    } catch (SQLException e) {
+       this._metrics.failed (sql, start, e);
+       throw e;
+    } finally {
+       unlease (pc);
+    }
+ }//end queryOne
+
+ /**
+  * Method to execute a query whose first column is an integer and return
+  * the value from the first row.
+  *
+  * @param missing the value returned when there are no rows
+  * @return the integer, or missing
+  */
+ public int queryInt (String sql, int missing, Object... params) throws SQLException {
+    ConnectionPool.PooledConnection pc = lease ();
+    long start = System.nanoTime ();
+    try {
+       PreparedStatement stmt = pc.statements().prepare (sql);
+       bind (stmt, params);
+       ResultSet rs = stmt.executeQuery ();
+       boolean found = rs.next ();
+       int result = found ? rs.getInt (1) : missing;
+       rs.close ();
+       this._metrics.query (sql, start, found ? 1 : 0);
+       return result;
+    } catch (SQLException e) {
+       this._metrics.failed (sql, start, e);
+       throw e;
+    } finally {
+       unlease (pc);
+    }
+ }//end queryInt
+
+ /**
+  * Method to execute a query whose first column is an integer and return
+  * that column for every row as a primitive array.
+  */
+ public int[] queryInts (String sql, Object... params) throws SQLException {
+    ConnectionPool.PooledConnection pc = lease ();
+    long start = System.nanoTime ();
+    try {
+       PreparedStatement stmt = pc.statements().prepare (sql);
+       bind (stmt, params);
+       ResultSet rs = stmt.executeQuery ();
+       int[] result = new int[8];
+       int n = 0;
+       while (rs.next ()) {
+          if (n == result.length)
+             result = java.util.Arrays.copyOf (result, n * 2);
+          result[n++] = rs.getInt (1);
+       }
+       rs.close ();
+       this._metrics.query (sql, start, n);
+       return java.util.Arrays.copyOf (result, n);
+    } catch (SQLException e) {
+       this._metrics.failed (sql, start, e);
+       throw e;
+    } finally {
+       unlease (pc);
+    }
+ }//end queryInts
+
+ /**
+  * Method to fetch the last value from sequence. This
+  * method issues the query to the DBMS and returns the current
+  * value of sequence used for autogenerated keys. currval is scoped to
+  * the database session, so this only sees inserts made on the same pooled
+  * connection.
+  *
+  * @param sequence name of the DB sequence
+  * @return current value of a sequence
+  * @throws java.sql.SQLException when failed to execute the query
+  */
+ public int getCurrSeqVal(String sequence) throws SQLException {
+ return queryInt ("Select currval(?)", -1, sequence);
+ }
+
+ /**
+  * Method to (re)load the in-memory store index from the Store table.
+  * Call this after any change to Store so lookups see the new rows.
+  *
+  * @throws java.sql.SQLException when failed to execute the query
+  */
+ public void refreshStoreIndex() throws SQLException {
+    ConnectionPool.PooledConnection pc = lease ();
+    try {
+       Statement stmt = pc.connection().createStatement ();
+       ResultSet rs = stmt.executeQuery ("SELECT " + Store.COLUMNS + " FROM Store");
+
+       List<Store> stores = new ArrayList<Store>();
+       while (rs.next()){
+          stores.add(Store.MAPPER.map(rs));
+       }//end while
+       stmt.close ();
+
+       // swap the contents in one step so concurrent lookups never see it half empty
+       this._storeIndex.reload(stores);
+       this._distances.syncStores(stores);
+       this._storeGeneration.incrementAndGet();
+    } finally {
+       unlease (pc);
+    }
+ }//end refreshStoreIndex
+
+ /**
+  * Looks up a single store by ID, reloading the index once if the store
+  * is not known yet (e.g. it was added after startup).
+  *
+  * @return the store, or null if it does not exist
+  * @throws java.sql.SQLException when failed to reload the index
+  */
+ public Store findStore(int storeID) throws SQLException {
+    Store store = this._storeIndex.get(storeID);
+    if (store == null){
+       refreshStoreIndex();
+       store = this._storeIndex.get(storeID);
+    }
+    return store;
+ }//end findStore
+
+ /**
+  * Method to (re)load the warehouse routing model from the Warehouse
+  * table and the unfulfilled supply requests.
+  *
+  * @throws java.sql.SQLException when failed to execute the queries
+  */
+ public void refreshWarehouses() throws SQLException {
+    List<Warehouse> warehouses = queryList ("SELECT " + Warehouse.COLUMNS + " FROM Warehouse", Warehouse.MAPPER);
+    final IntMap<Long> outstanding = new IntMap<Long>();
+    queryEach ("SELECT warehouseID, SUM(unitsRequested) FROM ProductSupplyRequests " +
+               "WHERE fulfilledOn IS NULL GROUP BY warehouseID", new RowHandler() {
+       public boolean row (ResultSet rs) throws SQLException {
+          outstanding.put (rs.getInt (1), rs.getLong (2));
+          return true;
+       }
+    });
+    this._distances.syncWarehouses(warehouses);
+    this._warehouses.reload(warehouses, outstanding);
+ }//end refreshWarehouses
+
+ /**
+  * @return the precomputed distances between stores and warehouses, kept
+  *         in step with refreshStoreIndex() and refreshWarehouses()
+  */
+ public DistanceMatrix distances() {
+    return this._distances;
+ }
+
+ /**
+  * @return the warehouse routing model
+  */
+ public WarehouseRouter warehouses() {
+    return this._warehouses;
+ }
+
+ /**
+  * Picks the warehouse a store's supply request should go to and reserves
+  * the units on it. Answered from memory.
+  *
+  * @return the route, or null if the store is unknown or no warehouse has room
+  * @throws java.sql.SQLException when the store had to be looked up and that failed
+  */
+ public WarehouseRouter.Route routeSupply(int storeID, String productName, int units) throws SQLException {
+    Store store = findStore(storeID);
+    if (store == null)
+       return null;
+    return this._warehouses.route(
+       new WarehouseRouter.Demand(storeID, productName, units, store.latitude, store.longitude));
+ }//end routeSupply
+
+ /**
+  * Sends a store's supply request to a given warehouse and reserves the
+  * units on it, whatever its load.
+  *
+  * @return the route, or null if the store or the warehouse is unknown
+  * @throws java.sql.SQLException when the store had to be looked up and that failed
+  */
+ public WarehouseRouter.Route routeSupplyTo(int storeID, String productName, int units, int warehouseID)
+       throws SQLException {
+    Store store = findStore(storeID);
+    Warehouse warehouse = this._warehouses.get(warehouseID);
+    if (store == null || warehouse == null)
+       return null;
+    this._warehouses.reserve(warehouseID, units);
+    return new WarehouseRouter.Route(
+       new WarehouseRouter.Demand(storeID, productName, units, store.latitude, store.longitude),
+       warehouse, calculateDistance(store.latitude, store.longitude, warehouse.latitude, warehouse.longitude));
+ }//end routeSupplyTo
+
+ /**
+  * Plans supply requests for many (storeID, productName, units) needs in
+  * one pass, spreading them over the warehouses. Unknown stores and needs
+  * no warehouse has room for are left out.
+  *
+  * @param needs one {storeID, productName, units} triple per request
+  * @return the routes, with their units reserved
+  * @throws java.sql.SQLException when a store had to be looked up and that failed
+  */
+ public List<WarehouseRouter.Route> planSupply(List<Object[]> needs) throws SQLException {
+    List<WarehouseRouter.Demand> demands = new ArrayList<WarehouseRouter.Demand>(needs.size());
+    for (Object[] need : needs) {
+       int storeID = (Integer) need[0];
+       Store store = findStore(storeID);
+       if (store != null)
+          demands.add(new WarehouseRouter.Demand(storeID, (String) need[1], (Integer) need[2],
+                                                 store.latitude, store.longitude));
+    }
+    return this._warehouses.plan(demands);
+ }//end planSupply
+
+ /**
+  * Writes routed supply requests in one transaction. They stay
+  * outstanding, holding their reservations on the warehouses, until
+  * fulfilSupplyRequest() records their delivery; if the write fails the
+  * reservations are released.
+  *
+  * @return the number of requests written
+  * @throws java.sql.SQLException when the transaction failed; nothing is written
+  */
+ public int placeSupplyRequests(final int managerID, final List<WarehouseRouter.Route> routes) throws SQLException {
+    final Timestamp now = new Timestamp (System.currentTimeMillis ());
+    boolean written = false;
+    try {
+       inTransaction (new Work<Integer>() {
+          public Integer run () throws SQLException {
+             List<Object[]> rows = new ArrayList<Object[]>(routes.size());
+             for (WarehouseRouter.Route r : routes)
+                rows.add (new Object[] { managerID, r.warehouse.warehouseID, r.demand.storeID,
+                                         r.demand.productName, r.demand.units, now });
+             executeBatch (INSERT_SUPPLY_REQUEST, rows);
+             return rows.size ();
+          }
+       });
+       written = true;
+    } finally {
+       if (!written)
+          for (WarehouseRouter.Route r : routes)
+             this._warehouses.release (r.warehouse.warehouseID, r.demand.units);
+    }
+    Replenisher replenisher = this._replenisher;
+    if (replenisher != null)
+       for (WarehouseRouter.Route r : routes)
+          replenisher.ordered (new ProductKey (r.demand.storeID, r.demand.productName));
+    return routes.size ();
+ }//end placeSupplyRequests
+
+ // a new outstanding supply request; fulfilledOn is stated since the
+ // column has no default
+ static final String INSERT_SUPPLY_REQUEST =
+    "INSERT INTO ProductSupplyRequests " +
+    "(managerID, warehouseID, storeID, productName, unitsRequested, requestedOn, fulfilledOn) " +
+    "VALUES (?, ?, ?, ?, ?, ?, NULL)";
+
+ /**
+  * Records the arrival of a supply request: marks it fulfilled, adds its
+  * units to the store's stock and frees the warehouse capacity, in one
+  * transaction. Requests already fulfilled are left alone.
+  *
+  * @return the request, or null if it was not outstanding
+  * @throws java.sql.SQLException when the transaction failed
+  */
+ public SupplyRequest fulfilSupplyRequest(final int requestNumber) throws SQLException {
+    SupplyRequest request = inTransaction (new Work<SupplyRequest>() {
+       public SupplyRequest run () throws SQLException {
+          SupplyRequest r = queryOne (
+             "UPDATE ProductSupplyRequests SET fulfilledOn = CURRENT_TIMESTAMP " +
+             "WHERE requestNumber = ? AND fulfilledOn IS NULL RETURNING " + SupplyRequest.COLUMNS,
+             SupplyRequest.MAPPER, requestNumber);
+          if (r != null)
+             addStock (r.storeID, r.productName, r.unitsRequested);
+          return r;
+       }
+    });
+    if (request == null)
+       return null;
+    this._warehouses.release (request.warehouseID, request.unitsRequested);
+    Replenisher replenisher = this._replenisher;
+    if (replenisher != null)
+       replenisher.delivered (new ProductKey (request.storeID, request.productName));
+    return request;
+ }//end fulfilSupplyRequest
+
+ /**
+  * Fulfils every outstanding supply request placed at least leadTimeMillis
+  * ago, standing in for the warehouses confirming their deliveries.
+  *
+  * @return the number of requests fulfilled
+  * @throws java.sql.SQLException when a request could not be fulfilled
+  */
+ public int fulfilDueSupplyRequests(long leadTimeMillis) throws SQLException {
+    int[] due = queryInts (
+       "SELECT requestNumber FROM ProductSupplyRequests WHERE fulfilledOn IS NULL AND requestedOn <= ? " +
+       "ORDER BY requestNumber", new Timestamp (System.currentTimeMillis () - leadTimeMillis));
+    int n = 0;
+    for (int requestNumber : due)
+       if (fulfilSupplyRequest (requestNumber) != null)
+          ++n;
+    return n;
+ }//end fulfilDueSupplyRequests
+
+ /**
+  * Starts reordering products automatically when orders take their stock
+  * to the reorder point (see Replenisher).
+  *
+  * @param windowMillis how long reorders are collected before being written
+  * @param leadTimeMillis how long after being placed a request counts as
+  *        delivered; negative leaves fulfilment to Replenisher.fulfil()
+  * @throws java.sql.SQLException when failed to load the reorder policies
+  */
+ public synchronized void startReplenishment(long windowMillis, long leadTimeMillis) throws SQLException {
+    if (this._replenisher == null) {
+       Replenisher replenisher = new Replenisher (this);
+       replenisher.load ();
+       this._replenisher = replenisher;
+    }
+    this._replenisher.start (windowMillis, leadTimeMillis);
+ }//end startReplenishment
 
  /**
-  * Creates a new instance of Amazon store
+  * @return the replenisher, or null if replenishment was not started
+  */
+ public Replenisher replenisher() {
+    return this._replenisher;
+ }
+
+ /**
+  * Reports the stock an order write left behind, so low products get
+  * reordered. Returns immediately.
+  */
+ public void stockDecremented(int storeID, String productName, int remainingUnits) {
+    Replenisher replenisher = this._replenisher;
+    if (replenisher != null)
+       replenisher.observe (storeID, productName, remainingUnits);
+ }
+
+ /**
+  * Returns the IDs of the stores the session's user runs, cached on the
+  * session so repeated permission checks cost no round trip. The cache
+  * ends with the session and is read again when the store index is
+  * reloaded or after MANAGER_STORES_TTL_MILLIS.
   *
-  * @param hostname the MySQL or PostgreSQL server hostname
-  * @param database the name of the database
-  * @param username the user name used to login to the database
-  * @param password the user login password
-  * @throws java.sql.SQLException when failed to make a connection.
+  * @return the storeIDs in ascending order; empty if the user manages none
+  * @throws java.sql.SQLException when failed to execute the query
   */
+ public int[] managerStores(SessionStore.Session session) throws SQLException {
+    long generation = this._storeGeneration.get();
+    long now = System.currentTimeMillis();
+    ManagerStores cached = session.managerStores;
+    if (cached != null && cached.generation == generation
+        && now - cached.loadedAt < MANAGER_STORES_TTL_MILLIS)
+       return cached.stores;
+
+    int[] stores = queryInts ("SELECT storeID FROM Store WHERE managerID = ? ORDER BY storeID", session.userID);
+    session.managerStores = new ManagerStores (stores, generation, now);
+    return stores;
+ }//end managerStores
 
+ /**
+  * @return whether the session's user runs the store
+  * @throws java.sql.SQLException when failed to load the manager's stores
+  */
+ public boolean manages(SessionStore.Session session, int storeID) throws SQLException {
+    return Arrays.binarySearch(managerStores(session), storeID) >= 0;
+ }
 
- public Amazon(String dbname, String dbport, String user, String passwd) throws SQLException {
+ /**
+  * @return the stores within the given radius of a point, nearest first
+  */
+ public List<StoreIndex.Neighbor> storesWithin(double latitude, double longitude, double radius) {
+    return this._storeIndex.within(latitude, longitude, radius);
+ }
 
-    System.out.print("Connecting to database...");
-    try{
-       // constructs the connection URL
-       String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
-       System.out.println ("Connection URL: " + url + "\n");
+ /**
+  * @return the login sessions of this store
+  */
+ public SessionStore sessions () {
+    return this._sessions;
+ }
 
-       // obtain a physical connection
-       this._connection = DriverManager.getConnection(url, user, passwd);
-       System.out.println("Done");
-    }catch (Exception e){
-       System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
-       System.out.println("Make sure you started postgres on this machine");
-       System.exit(-1);
-    }//end catch
- }//end Amazon
+ // maps (userID, name, type) to a new login session
+ private final RowMapper<SessionStore.Session> _openSession = new RowMapper<SessionStore.Session>() {
+    public SessionStore.Session map (ResultSet rs) throws SQLException {
+       return _sessions.open (rs.getInt (1), rs.getString (2), rs.getString (3));
+    }
+ };
 
- // Method to calculate euclidean distance between two latitude, longitude pairs. 
- public double calculateDistance (double lat1, double long1, double lat2, double long2){
-    double t1 = (lat1 - lat2) * (lat1 - lat2);
-    double t2 = (long1 - long2) * (long1 - long2);
-    return Math.sqrt(t1 + t2); 
+ /**
+  * Checks a user's credentials with one indexed lookup on Users.name and
+  * starts a session for them.
+  *
+  * @return the new session, or null if the name or password is wrong
+  * @throws java.sql.SQLException when failed to execute the query
+  */
+ public SessionStore.Session authenticate (String name, String password) throws SQLException {
+    return queryOne ("SELECT userID, name, type FROM Users WHERE name = ? AND password = ?",
+                     _openSession, name, password);
  }
+
  /**
-  * Method to execute an update SQL statement.  Update SQL instructions
-  * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+  * Adds a user and starts a session for them.
   *
-  * @param sql the input SQL string
-  * @throws java.sql.SQLException when update failed
+  * @return the new user's session
+  * @throws java.sql.SQLException when the insert failed
   */
- public void executeUpdate (String sql) throws SQLException {
-    // creates a statement object
-    Statement stmt = this._connection.createStatement ();
+ public SessionStore.Session register (String name, String password, double latitude, double longitude,
+                                       String type) throws SQLException {
+    return queryOne ("INSERT INTO Users (name, password, latitude, longitude, type) " +
+                     "VALUES (?, ?, ?, ?, ?) RETURNING userID, name, type",
+                     _openSession, name, password, latitude, longitude, type);
+ }
 
-    // issues the update instruction
-    stmt.executeUpdate (sql);
+ /**
+  * @return rows per page of the paged listings
+  */
+ public int pageSize () {
+    return this._pageSize;
+ }
 
-    // close the instruction
-    stmt.close ();
- }//end executeUpdate
+ public void setPageSize (int pageSize) {
+    if (pageSize <= 0)
+       throw new IllegalArgumentException ("pageSize must be positive");
+    this._pageSize = pageSize;
+ }
 
  /**
-  * Method to execute an input query SQL instruction (i.e. SELECT).  This
-  * method issues the query to the DBMS and outputs the results to
-  * standard out.
+  * Lists users in userID order, starting after a given userID. Filters
+  * that are null or empty are not applied.
   *
-  * @param query the input query string
-  * @return the number of rows returned
+  * @param afterUserID 0 for the first page, else the last userID seen
+  * @param name part of the name to match, case-insensitively
+  * @param type the exact user type
+  * @return up to limit users
   * @throws java.sql.SQLException when failed to execute the query
   */
- public int executeQueryAndPrintResult (String query) throws SQLException {
-    // creates a statement object
-    Statement stmt = this._connection.createStatement ();
-
-    // issues the query instruction
-    ResultSet rs = stmt.executeQuery (query);
-
-    /*
-     ** obtains the metadata object for the returned result set.  The metadata
-     ** contains row and column info.
-     */
-    ResultSetMetaData rsmd = rs.getMetaData ();
-    int numCol = rsmd.getColumnCount ();
-    int rowCount = 0;
-
-    // iterates through the result set and output them to standard out.
-    boolean outputHeader = true;
-    while (rs.next()){
-     if(outputHeader){
-       for(int i = 1; i <= numCol; i++){
-       System.out.print(rsmd.getColumnName(i) + "\t");
-       }
-       System.out.println();
-       outputHeader = false;
-     }
-       for (int i=1; i<=numCol; ++i)
-          System.out.print (rs.getString (i) + "\t");
-       System.out.println ();
-       ++rowCount;
-    }//end while
-    stmt.close ();
-    return rowCount;
- }//end executeQuery
+ public List<User> listUsers (int afterUserID, String name, String type, int limit) throws SQLException {
+    StringBuilder sql = new StringBuilder ("SELECT " + User.COLUMNS + " FROM Users WHERE userID > ?");
+    List<Object> params = new ArrayList<Object>();
+    params.add (afterUserID);
+    if (name != null && !name.isEmpty ()) {
+       sql.append (" AND name ILIKE ?");
+       params.add ("%" + name + "%");
+    }
+    if (type != null && !type.isEmpty ()) {
+       sql.append (" AND type = ?");
+       params.add (type);
+    }
+    sql.append (" ORDER BY userID LIMIT ?");
+    params.add (limit);
+    return queryList (sql.toString (), User.MAPPER, params.toArray ());
+ }//end listUsers
 
  /**
-  * Method to execute an input query SQL instruction (i.e. SELECT).  This
-  * method issues the query to the DBMS and returns the results as
-  * a list of records. Each record in turn is a list of attribute values
+  * Lists products in (storeID, productName) order, starting after a
+  * given key. Filters that are null, empty or negative are not applied.
   *
-  * @param query the input query string
-  * @return the query result as a list of records
+  * @param after the last product seen, or null for the first page
+  * @param storeID only this store's products
+  * @param name part of the product name to match, case-insensitively
+  * @param maxUnits only products with at most this many units
+  * @return up to limit products
   * @throws java.sql.SQLException when failed to execute the query
   */
- public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-    // creates a statement object
-    Statement stmt = this._connection.createStatement ();
+ public List<Product> listProducts (Product after, int storeID, String name, int maxUnits, int limit)
+       throws SQLException {
+    StringBuilder sql = new StringBuilder ("SELECT " + Product.COLUMNS + " FROM Product WHERE TRUE");
+    List<Object> params = new ArrayList<Object>();
+    if (after != null) {
+       // row comparison, so the primary key index serves it as one range
+       sql.append (" AND (storeID, productName) > (?, ?)");
+       params.add (after.storeID);
+       params.add (after.productName);
+    }
+    if (storeID >= 0) {
+       sql.append (" AND storeID = ?");
+       params.add (storeID);
+    }
+    if (name != null && !name.isEmpty ()) {
+       sql.append (" AND productName ILIKE ?");
+       params.add ("%" + name + "%");
+    }
+    if (maxUnits >= 0) {
+       sql.append (" AND numberOfUnits <= ?");
+       params.add (maxUnits);
+    }
+    sql.append (" ORDER BY storeID, productName LIMIT ?");
+    params.add (limit);
+    return queryList (sql.toString (), Product.MAPPER, params.toArray ());
+ }//end listProducts
 
-    // issues the query instruction
-    ResultSet rs = stmt.executeQuery (query);
+ /**
+  * Changes a user's details.
+  *
+  * @return whether the user exists
+  * @throws java.sql.SQLException when the update failed
+  */
+ public boolean updateUser (int userID, String name, String password, double latitude, double longitude,
+                            String type) throws SQLException {
+    int n = executeUpdate ("UPDATE Users SET name = ?, password = ?, latitude = ?, longitude = ?, type = ? " +
+                           "WHERE userID = ?", name, password, latitude, longitude, type, userID);
+    // logged-in sessions cache the type; a demoted user must not keep their rights
+    if (n > 0)
+       this._sessions.updateUser (userID, name, type);
+    return n > 0;
+ }//end updateUser
 
-    /*
-     ** obtains the metadata object for the returned result set.  The metadata
-     ** contains row and column info.
-     */
-    ResultSetMetaData rsmd = rs.getMetaData ();
-    int numCol = rsmd.getColumnCount ();
-
-    // iterates through the result set and saves the data returned by the query.
-    List<List<String>> result  = new ArrayList<List<String>>();
-    while (rs.next()){
-      List<String> record = new ArrayList<String>();
-    for (int i=1; i<=numCol; ++i)
-       record.add(rs.getString (i));
-      result.add(record);
-    }//end while
-    stmt.close ();
-    return result;
- }//end executeQueryAndReturnResult
+ /**
+  * Sets a product's stock and price on behalf of a manager and records
+  * the change in ProductUpdates. Ownership of the store is not checked
+  * here; see manages().
+  *
+  * @return whether the store carries the product
+  * @throws java.sql.SQLException when an update failed
+  */
+ public boolean updateProduct (int managerID, int storeID, String productName, int numberOfUnits,
+                               double pricePerUnit) throws SQLException {
+    if (findProduct (storeID, productName) == null)
+       return false;
+    writeProduct (storeID, productName, numberOfUnits, pricePerUnit);
+    executeUpdate ("INSERT INTO ProductUpdates (managerID, storeID, productName, updatedOn) " +
+                   "VALUES (?, ?, ?, CURRENT_TIMESTAMP)", managerID, storeID, productName);
+    return true;
+ }//end updateProduct
 
  /**
-  * Method to execute an input query SQL instruction (i.e. SELECT).  This
-  * method issues the query to the DBMS and returns the number of results
+  * Lists a customer's most recent orders, newest first. Only the latest
+  * monthly partition is read in the common case.
   *
-  * @param query the input query string
-  * @return the number of rows returned
+  * @return up to limit orders
   * @throws java.sql.SQLException when failed to execute the query
   */
- public int executeQuery (String query) throws SQLException {
-     // creates a statement object
-     Statement stmt = this._connection.createStatement ();
-
-     // issues the query instruction
-     ResultSet rs = stmt.executeQuery (query);
+ public List<Order> recentOrders (int customerID, int limit) throws SQLException {
+    final List<Order> orders = new ArrayList<Order>();
+    queryRecent ("SELECT o.orderNumber, o.customerID, s.storeID, o.productName, o.unitsOrdered, o.orderTime " +
+                 "FROM Orders o " +
+                 "JOIN Product p ON o.storeID = p.storeID AND o.productName = p.productName " +
+                 "JOIN Store s ON p.storeID = s.storeID " +
+                 "WHERE o.customerID = ? AND o.orderTime >= ? AND o.orderTime < ? " +
+                 "ORDER BY o.orderTime DESC LIMIT ?", limit, new RowHandler() {
+       public boolean row (ResultSet rs) throws SQLException {
+          orders.add (Order.MAPPER.map (rs));
+          return true;
+       }
+    }, customerID);
+    return orders;
+ }//end recentOrders
 
-     int rowCount = 0;
+ /**
+  * Streams a manager's most recent product updates, newest first, as
+  * (storeID, productName, newUnits, newPrice, updatedOn) rows. The join on
+  * Store checks ownership in the same statement.
+  *
+  * @return the number of rows handled
+  * @throws java.sql.SQLException when failed to execute the query
+  */
+ public int recentUpdates (int managerID, int limit, RowHandler handler) throws SQLException {
+    return queryRecent ("SELECT s.storeID, u.productName, p.numberOfUnits AS newUnits, " +
+                        "p.pricePerUnit AS newPrice, u.updatedOn " +
+                        "FROM ProductUpdates u " +
+                        "JOIN Store s ON u.storeID = s.storeID " +
+                        "JOIN Product p ON u.storeID = p.storeID AND u.productName = p.productName " +
+                        "WHERE s.managerID = ? AND u.managerID = ? " +
+                        "AND u.updatedOn >= ? AND u.updatedOn < ? " +
+                        "ORDER BY u.updatedOn DESC LIMIT ?", limit, handler, managerID, managerID);
+ }//end recentUpdates
 
-     // iterates through the result set and count nuber of results.
-     while (rs.next()){
-        rowCount++;
-     }//end while
-     stmt.close ();
-     return rowCount;
- }
+ /**
+  * Streams the most ordered products over a manager's stores as
+  * (productName, orderCount) rows, from the running counts.
+  *
+  * @return the number of rows handled
+  * @throws java.sql.SQLException when failed to execute the query
+  */
+ public int popularProducts (int managerID, int limit, RowHandler handler) throws SQLException {
+    return queryEach ("SELECT c.productName, SUM(c.orderCount) AS orderCount " +
+                      "FROM ProductOrderCounts c " +
+                      "JOIN Store s ON s.storeID = c.storeID " +
+                      "WHERE s.managerID = ? AND c.orderCount > 0 " +
+                      "GROUP BY c.productName " +
+                      "ORDER BY orderCount DESC LIMIT ?", handler, managerID, limit);
+ }//end popularProducts
 
  /**
-  * Method to fetch the last value from sequence. This
-  * method issues the query to the DBMS and returns the current
-  * value of sequence used for autogenerated keys
+  * Streams the customers with the most orders over a manager's stores as
+  * (name, latitude, longitude, type, orderCount) rows, from the running
+  * counts.
   *
-  * @param sequence name of the DB sequence
-  * @return current value of a sequence
+  * @return the number of rows handled
   * @throws java.sql.SQLException when failed to execute the query
   */
- public int getCurrSeqVal(String sequence) throws SQLException {
- Statement stmt = this._connection.createStatement ();
+ public int popularCustomers (int managerID, int limit, RowHandler handler) throws SQLException {
+    return queryEach ("SELECT u.name, u.latitude, u.longitude, u.type, SUM(c.orderCount) AS orderCount " +
+                      "FROM CustomerOrderCounts c " +
+                      "JOIN Store s ON s.storeID = c.storeID " +
+                      "JOIN Users u ON u.userID = c.customerID " +
+                      "WHERE s.managerID = ? AND c.orderCount > 0 " +
+                      "GROUP BY u.userID " +
+                      "ORDER BY orderCount DESC LIMIT ?", handler, managerID, limit);
+ }//end popularCustomers
 
- ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
- if (rs.next())
-    return rs.getInt(1);
- return -1;
- }
+ /**
+  * Recomputes the per-store product and customer order counts used by the
+  * popularity reports from the Orders table. They are normally kept up
+  * to date by a trigger on Orders; this is for recovery and for data
+  * loaded while the trigger was absent.
+  *
+  * @return the number of orders counted
+  * @throws java.sql.SQLException when the rebuild failed
+  */
+ public long rebuildPopularity() throws SQLException {
+    final long[] total = { 0 };
+    queryEach ("SELECT rebuild_order_counts()", new RowHandler() {
+       public boolean row (ResultSet rs) throws SQLException {
+          total[0] = rs.getLong (1);
+          return false;
+       }
+    });
+    return total[0];
+ }//end rebuildPopularity
 
  /**
-  * Method to close the physical connection if it is open.
+  * Method to close the physical connections in the pool.
   */
  public void cleanup(){
-    try{
-       if (this._connection != null){
-          this._connection.close ();
-       }//end if
-    }catch (SQLException e){
-       // ignored.
-    }//end try
+    this._metrics.stopDumping ();
+    if (this._replenisher != null)
+       this._replenisher.stop ();
+    this._sessions.shutdown ();
+    this._productListener.shutdown ();
+    this._async.shutdownNow ();
+    this._pool.close ();
  }//end cleanup
 
  /**
@@ -240,21 +1558,67 @@ public static void main(String[] args) throws InterruptedException{
         String dbport = args[1];
         String user = args[2];
         esql = new Amazon(dbname, dbport, user, "");
-        
-        boolean quit = false;
-        while (!quit) {
-            String authorisedUser = null;
-            boolean loggedIn = false;
-
-            // Check if there is a logged-in user
-            String query = "SELECT name FROM LoggedInUser WHERE login = TRUE";
-            List<List<String>> result = esql.executeQueryAndReturnResult(query);
-
-            if (!result.isEmpty()) {
-                authorisedUser = result.get(0).get(0);
+        // supply requests are delivered (and low stock reordered) in the background
+        esql.startReplenishment(AmazonServer.REPLENISH_WINDOW_MILLIS, AmazonServer.REPLENISH_LEAD_MILLIS);
+
+        runMenu(esql);
+    } catch (Exception e) {
+        System.err.println(e.getMessage());
+    } finally {
+        try {
+            if (esql != null) {
+                out().print("Disconnecting from database...");
+                esql.cleanup();
+                out().println("Done\n\nBye!");
+            }
+        } catch (Exception e) {
+            // ignored.
+        }
+    }
+}
+
+ /**
+  * Runs the interactive menu until the user exits. Input and output go
+  * through the streams bound to the current thread, so the same menu
+  * serves the local console and remote server sessions.
+  *
+  * @param esql the store the menu operates on
+  */
+public static void runMenu(Amazon esql) throws Exception {
+    boolean quit = false;
+    while (!quit) {
+        SessionStore.Session session = null;
+        boolean loggedIn = false;
+
+        while (!loggedIn) {
+            out().println("MAIN MENU");
+            out().println("---------");
+            out().println("1. Create user");
+            out().println("2. Log in");
+            out().println("9. < EXIT");
+
+            int choice = readChoice();
+            if (choice == 1 || choice == 2)
+                esql.metrics().begin(choice == 1 ? "createUser" : "logIn");
+            switch (choice) {
+                case 1:
+                    session = CreateUser(esql);
+                    break;
+                case 2:
+                    session = LogIn(esql);
+                    break;
+                case 9:
+                    quit = true;
+                    loggedIn = true;
+                    break;
+                default:
+                    out().println("Unrecognized choice!");
+                    break;
+            }
+            esql.metrics().end();
+            if (session != null) {
                 loggedIn = true;
-            
-                // ASCII art smiley face
+
                 // ASCII art smiley face
                 String smileyFace = "\n" +
         "   .-\"\"\"\"\"-.  \n" +
@@ -263,129 +1627,104 @@ public static void main(String[] args) throws InterruptedException{
         "  \\  \\__/  /  \n" +
         "   '-.____.-' \n";
                 // Print the welcome message with the smiley face
-                System.out.println("Welcome back, " + authorisedUser + "!" + smileyFace);
-
+                out().println("Welcome back, " + session.name + "!" + smileyFace);
             }
+        }
 
-            while (!loggedIn) {
-                if (authorisedUser != null){
-                    //user is already logged in, skip the login process
-                    break;
-                }
-                System.out.println("MAIN MENU");
-                System.out.println("---------");
-                System.out.println("1. Create user");
-                System.out.println("2. Log in");
-                System.out.println("9. < EXIT");
-
-                switch (readChoice()) {
-                    case 1:
-                        CreateUser(esql);
-                        break;
-                    case 2:
-                        authorisedUser = LogIn(esql);
-                        if (authorisedUser != null) {
-                            loggedIn = true;
-                        }
-                        break;
-                    case 9:
-                        quit = true;
-                        loggedIn = true;
-                        break;
-                    default:
-                        System.out.println("Unrecognized choice!");
-                        break;
-                }
-            }
+        if (quit) {
+            break;
+        }
 
-            if (quit) {
+        boolean usermenu = true;
+        while (usermenu) {
+            // the session lapses after SESSION_TTL_MILLIS without a choice; it is
+            // fetched again each time so a change to the account's type applies at once
+            SessionStore.Session current = esql.sessions().get(session.token);
+            if (current == null) {
+                out().println("Your session has expired, please log in again.");
                 break;
             }
-
-            boolean usermenu = true;
-            while (usermenu) {
-                System.out.println("MAIN MENU");
-                System.out.println("---------");
-                System.out.println("1. View Stores within 30 miles");
-                System.out.println("2. View Product List");
-                System.out.println("3. Place a Order");
-                System.out.println("4. View 5 recent orders");
-                System.out.println("5. Update Product");
-                System.out.println("6. View 5 recent Product Updates Info");
-                System.out.println("7. View 5 Popular Items");
-                System.out.println("8. View 5 Popular Customers");
-                System.out.println("9. Place Product Supply Request to Warehouse");
-                System.out.println("10. Admin System.");
-                System.out.println(".........................");
-                System.out.println("20. Log out");
-                System.out.println("21. Exist the system");
-
-                switch (readChoice()) {
-                    case 1:
-                        viewStores(esql);
-                        break;
-                    case 2:
-                        viewProducts(esql);
-                        break;
-                    case 3:
-                        placeOrder(esql);
-                        break;
-                    case 4:
-                        viewRecentOrders(esql);
-                        break;
-                    case 5:
-                        updateProduct(esql);
-                        break;
-                    case 6:
-                        viewRecentUpdates(esql);
-                        break;
-                    case 7:
-                        viewPopularProducts(esql);
-                        break;
-                    case 8:
-                        viewPopularCustomers(esql);
-                        break;
-                    case 9:
-                        placeProductSupplyRequests(esql);
-                        break;
-                    case 10:
-                        Admin(esql);
-                        break;
-                    case 20:
-                        // Set the login attribute to FALSE when the user logs out
-                        query = String.format("UPDATE LoggedInUser SET login = FALSE WHERE name = '%s'", authorisedUser);
-                        esql.executeUpdate(query);
-                        usermenu = false;
-                        loggedIn = false;
-                        break;
-                    case 21:
-                        quit = true;
-                        usermenu = false;
-                        loggedIn = true;
-                        break;
-                    default:
-                        System.out.println("Unrecognized choice!");
-                        break;
-                }
+            session = current;
+            out().println("MAIN MENU");
+            out().println("---------");
+            out().println("1. View Stores within 30 miles");
+            out().println("2. View Product List");
+            out().println("3. Place a Order");
+            out().println("4. View 5 recent orders");
+            out().println("5. Update Product");
+            out().println("6. View 5 recent Product Updates Info");
+            out().println("7. View 5 Popular Items");
+            out().println("8. View 5 Popular Customers");
+            out().println("9. Place Product Supply Request to Warehouse");
+            out().println("10. Admin System.");
+            out().println(".........................");
+            out().println("20. Log out");
+            out().println("21. Exist the system");
+
+            int choice;
+            try {
+                choice = readChoice();
+            } catch (java.io.EOFException e) {
+                // the client is gone; do not leave its login open until it expires
+                esql.sessions().close(session.token);
+                throw e;
             }
-        }
-    } catch (Exception e) {
-        System.err.println(e.getMessage());
-    } finally {
-        try {
-            if (esql != null) {
-                System.out.print("Disconnecting from database...");
-                esql.cleanup();
-                System.out.println("Done\n\nBye!");
+            if (choice > 0 && choice < MENU_OPERATIONS.length)
+                esql.metrics().begin(MENU_OPERATIONS[choice]);
+            switch (choice) {
+                case 1:
+                    viewStores(esql);
+                    break;
+                case 2:
+                    viewProducts(esql);
+                    break;
+                case 3:
+                    placeOrder(esql, session);
+                    break;
+                case 4:
+                    viewRecentOrders(esql, session);
+                    break;
+                case 5:
+                    updateProduct(esql, session);
+                    break;
+                case 6:
+                    viewRecentUpdates(esql, session);
+                    break;
+                case 7:
+                    viewPopularProducts(esql, session);
+                    break;
+                case 8:
+                    viewPopularCustomers(esql, session);
+                    break;
+                case 9:
+                    placeProductSupplyRequests(esql, session);
+                    break;
+                case 10:
+                    Admin(esql, session);
+                    break;
+                case 20:
+                    // End the session when the user logs out
+                    esql.sessions().close(session.token);
+                    usermenu = false;
+                    loggedIn = false;
+                    break;
+                case 21:
+                    esql.sessions().close(session.token);
+                    quit = true;
+                    usermenu = false;
+                    loggedIn = true;
+                    break;
+                default:
+                    out().println("Unrecognized choice!");
+                    break;
             }
-        } catch (Exception e) {
-            // ignored.
+            esql.metrics().end();
         }
     }
-}
+}//end runMenu
 
  public static void Greeting(){
-    System.out.println(
+    out().println(
        "\n\n*******************************************************\n" +
        "              User Interface      	               \n" +
        "*******************************************************\n");
@@ -395,16 +1734,18 @@ public static void main(String[] args) throws InterruptedException{
   * Reads the users choice given from the keyboard
   * @int
   **/
- public static int readChoice() {
+ public static int readChoice() throws java.io.EOFException {
     int input;
-    // returns only if a correct value is given.
+    // returns only if a correct value is given, or throws at the end of input.
     do {
-       System.out.print("Please make your choice: ");
+       out().print("Please make your choice: ");
        try { // read the integer, parse it and break.
           input = Integer.parseInt(in.readLine());
           break;
+       }catch (java.io.EOFException e) {
+          throw e;
        }catch (Exception e) {
-          System.out.println("Your input is invalid!");
+          out().println("Your input is invalid!");
           continue;
        }//end try
     }while (true);
@@ -412,57 +1753,51 @@ public static void main(String[] args) throws InterruptedException{
  }//end readChoice
 
  /*
-  * Creates a new user
+  * Creates a new user and logs them in
+  * @return the new user's session, or null if the user was not created
   **/
-  public static void CreateUser(Amazon esql) {
+  public static SessionStore.Session CreateUser(Amazon esql) {
     try {
-        System.out.print("\tEnter name: ");
+        out().print("\tEnter name: ");
         String name = in.readLine();
-        System.out.print("\tEnter password: ");
+        out().print("\tEnter password: ");
         String password = in.readLine();
-        System.out.print("\tEnter latitude: ");
-        String latitude = in.readLine(); // enter lat value between [0.0, 100.0]
-        System.out.print("\tEnter longitude: "); // enter long value between [0.0, 100.0]
-        String longitude = in.readLine();
+        out().print("\tEnter latitude: ");
+        double latitude = Double.parseDouble(in.readLine()); // enter lat value between [0.0, 100.0]
+        out().print("\tEnter longitude: "); // enter long value between [0.0, 100.0]
+        double longitude = Double.parseDouble(in.readLine());
 
         String type = "Customer";
 
-        String query = String.format("INSERT INTO USERS (name, password, latitude, longitude, type) VALUES ('%s','%s', %s, %s,'%s')", name, password, latitude, longitude, type);
-        esql.executeUpdate(query);
+        // Insert the user and log them in
+        SessionStore.Session session = esql.register(name, password, latitude, longitude, type);
 
-        // Insert the new user's information into the LoggedInUser table
-        query = String.format("INSERT INTO LoggedInUser (userID, name, login) VALUES ((SELECT userID FROM Users WHERE name = '%s'), '%s', TRUE)", name, name);
-        esql.executeUpdate(query);
-
-        System.out.println("User successfully created!");
+        out().println("User successfully created!");
+        return session;
     } catch (Exception e) {
         System.err.println(e.getMessage());
+        return null;
     }
 }
 
 
  /*
   * Check log in credentials for an existing user
-  * @return User login or null is the user does not exist
+  * @return the user's session or null is the user does not exist
   **/
- public static String LogIn(Amazon esql){
+ public static SessionStore.Session LogIn(Amazon esql){
     try{
-       System.out.print("\tEnter name: ");
+       out().print("\tEnter name: ");
        String name = in.readLine();
-       System.out.print("\tEnter password: ");
+       out().print("\tEnter password: ");
        String password = in.readLine();
 
-       String query = String.format("SELECT * FROM USERS WHERE name = '%s' AND password = '%s'", name, password);
-        int userNum = esql.executeQuery(query);
-        if (userNum > 0) {
-            query = String.format("UPDATE LoggedInUser SET login = TRUE WHERE name = '%s'", name);
-            esql.executeUpdate(query);
-            return name;
-        }else{
-            System.out.println("\tUserName or password is wrong!\t");
-            System.out.print("");
+       SessionStore.Session session = esql.authenticate(name, password);
+        if (session == null) {
+            out().println("\tUserName or password is wrong!\t");
+            out().print("");
         }
-        return null;
+        return session;
     }catch(Exception e){
        System.err.println (e.getMessage ());
        return null;
@@ -474,591 +1809,478 @@ public static void main(String[] args) throws InterruptedException{
 public static void viewStores(Amazon esql) {
   try {
       // Define the radius (in miles)
-      double radius = 30.0;
+      double radius = STORE_RADIUS;
       
       // ask for userLatitude, userLongitude
-      System.out.print("Enter your latitude: ");
+      out().print("Enter your latitude: ");
        double userLatitude = Double.parseDouble(in.readLine());
-       System.out.print("Enter your longitude: ");
+       out().print("Enter your longitude: ");
        double userLongitude = Double.parseDouble(in.readLine()); 
 
-      // Construct the SQL query to retrieve all stores
-      String query = "SELECT s.storeID, s.latitude, s.longitude, s.dateEstablished " +
-                     "FROM Store s";
-
-      // Execute the query
-      List<List<String>> results = esql.executeQueryAndReturnResult(query);
+      // Look up the nearby stores in the spatial index, nearest first
+      List<StoreIndex.Neighbor> nearby = esql.storesWithin(userLatitude, userLongitude, radius);
 
       // Display the stores within the radius
-      System.out.println("Stores within a " + radius + "-mile radius:");
-      boolean found = false;
-      for (List<String> row : results) {
-          double storeLatitude = Double.parseDouble(row.get(1));
-          double storeLongitude = Double.parseDouble(row.get(2));
-
-          // Calculate the distance between the user and the store
-          double distance = esql.calculateDistance(userLatitude, userLongitude, storeLatitude, storeLongitude);
-
-          // Check if the store is within the radius
-          if (distance <= radius) {
-              System.out.println("StoreID: " + row.get(0) + ", Latitude: " + row.get(1)
-                      + ", Longitude: " + row.get(2) + ", Date Established: " + row.get(3));
-              found = true;
-          }
+      out().println("Stores within a " + radius + "-mile radius:");
+      boolean found = !nearby.isEmpty();
+      for (StoreIndex.Neighbor n : nearby) {
+          Store store = n.store;
+          out().println("StoreID: " + store.storeID + ", Latitude: " + store.latitude
+                  + ", Longitude: " + store.longitude + ", Date Established: " + store.dateEstablished
+                  + String.format(", Distance: %.2f", n.distance));
       }
 
       if (!found) {
-          System.out.println("No stores found within a " + radius + "-mile radius.");
+          out().println("No stores found within a " + radius + "-mile radius.");
       }
   } catch (Exception e) {
-      System.out.println("Error: " + e.getMessage());
+      out().println("Error: " + e.getMessage());
   }
 }
-public static void viewProducts(Amazon esql) {
+public static void viewProducts(final Amazon esql) {
   try {
       // Prompt the user to enter the storeID
-      System.out.print("Enter the storeID: ");
-      int storeID = Integer.parseInt(in.readLine());
-
-      // Construct the SQL query to retrieve product information for the specified store
-      String query = "SELECT p.productName, p.numberOfUnits, p.pricePerUnit " +
-              "FROM Product p " +
-              "WHERE p.storeID = " + storeID;
-
-      // Execute the query
-      List<List<String>> results = esql.executeQueryAndReturnResult(query);
-
-      // Display the product information
-      System.out.println("Products for Store " + storeID + ":");
-      System.out.println("Product Name\tNumber of Units\tPrice per Unit");
-      for (List<String> row : results) {
-          String productName = row.get(0);
-          int numberOfUnits = Integer.parseInt(row.get(1));
-          double pricePerUnit = Double.parseDouble(row.get(2));
-          System.out.printf("%-20s\t%d\t\t$%.2f\n", productName, numberOfUnits, pricePerUnit);
-      }
+      out().print("Enter the storeID: ");
+      final int storeID = Integer.parseInt(in.readLine());
+
+      // Display the product information a page at a time
+      out().println("Products for Store " + storeID + ":");
+      out().println("Product Name\tNumber of Units\tPrice per Unit");
+      Pager.browse(new Pager.Query<Product>() {
+          public List<Product> next(Product last, int limit) throws SQLException {
+              return esql.listProducts(last, storeID, null, -1, limit);
+          }
+      }, new Pager.Printer<Product>() {
+          public void print(Product p) {
+              out().printf("%-20s\t%d\t\t$%.2f\n", p.productName, p.numberOfUnits, p.pricePerUnit);
+          }
+      }, esql.pageSize());
   } catch (Exception e) {
-      System.out.println("Error: " + e.getMessage());
+      out().println("Error: " + e.getMessage());
   }
 }
 // user place order
-public static void placeOrder(Amazon esql) {
+public static void placeOrder(final Amazon esql, SessionStore.Session session) {
+  TaskScope scope = esql.scope();
   try {
       // Retrieve the user's latitude and longitude
-      System.out.print("Enter your latitude: ");
+      out().print("Enter your latitude: ");
       double userLatitude = Double.parseDouble(in.readLine());
-      System.out.print("Enter your longitude: ");
+      out().print("Enter your longitude: ");
       double userLongitude = Double.parseDouble(in.readLine());
 
-      // Prompt the user to enter their name
-      System.out.print("Enter your name: ");
-      String userName = in.readLine();
-
-      // Retrieve the userID based on the provided name
-      String query = "SELECT userID FROM Users WHERE name = '" + userName + "'";
-      List<List<String>> userResult = esql.executeQueryAndReturnResult(query);
-
-      if (userResult.isEmpty()) {
-          System.out.println("User not found.");
-          return;
-      }
-
-      int userID = Integer.parseInt(userResult.get(0).get(0));
-
       // Prompt the user to enter the order details
-      System.out.print("Enter the storeID: ");
-      int storeID = Integer.parseInt(in.readLine());
-      System.out.print("Enter the product name: ");
+      out().print("Enter the storeID: ");
+      final int storeID = Integer.parseInt(in.readLine());
+      out().print("Enter the product name: ");
       String productName = in.readLine();
-      System.out.print("Enter the number of units: ");
+      out().print("Enter the number of units: ");
       int numberOfUnits = Integer.parseInt(in.readLine());
 
+      // The store lookup only reaches the database for unknown stores
+      Future<Store> storeLookup = scope.fork(new Work<Store>() {
+          public Store run() throws SQLException {
+              return esql.findStore(storeID);
+          }
+      });
+      scope.join();
+
       // Check if the store is within a 30-mile radius
-      query = "SELECT latitude, longitude FROM Store WHERE storeID = " + storeID;
-      List<List<String>> results = esql.executeQueryAndReturnResult(query);
-      if (results.isEmpty()) {
-          System.out.println("Invalid storeID.");
+      Store store = TaskScope.get(storeLookup);
+      if (store == null) {
+          out().println("Invalid storeID.");
           return;
       }
-      double storeLatitude = Double.parseDouble(results.get(0).get(0));
-      double storeLongitude = Double.parseDouble(results.get(0).get(1));
-      double distance = esql.calculateDistance(userLatitude, userLongitude, storeLatitude, storeLongitude);
-      if (distance > 30.0) {
-          System.out.println("Store is not within a 30-mile radius.");
+      double distance = calculateDistance(userLatitude, userLongitude, store.latitude, store.longitude);
+      if (distance > STORE_RADIUS) {
+          out().println("Store is not within a 30-mile radius.");
           return;
       }
 
-      // Check if the store has sufficient stock
-      query = "SELECT numberOfUnits FROM Product WHERE storeID = " + storeID + " AND productName = '" + productName + "'";
-      results = esql.executeQueryAndReturnResult(query);
-      if (results.isEmpty()) {
-          System.out.println("Product not found in the store.");
-          return;
-      }
-      int availableUnits = Integer.parseInt(results.get(0).get(0));
-      if (numberOfUnits > availableUnits) {
-          System.out.println("Insufficient stock.");
-          return;
+      // Decrement the stock and record the order in one transaction; the
+      // stock check happens there, so it cannot go stale
+      OrderResult result = esql.submitOrder(session.userID, storeID, productName, numberOfUnits);
+      switch (result.status) {
+          case PLACED:
+              out().println("Order placed successfully! Order number: " + result.orderNumber);
+              break;
+          case OUT_OF_STOCK:
+              out().println("Insufficient stock. Units available: " + result.remainingUnits);
+              break;
+          case NO_SUCH_PRODUCT:
+              out().println("Product not found in the store.");
+              break;
+          default:
+              out().println("Number of units must be positive.");
+              break;
       }
-
-      // Insert the order information into the Orders table
-      query = "INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime) " +
-              "VALUES (" + userID + ", " + storeID + ", '" + productName + "', " + numberOfUnits + ", CURRENT_TIMESTAMP)";
-      esql.executeUpdate(query);
-
-      // Update the Product table
-      query = "UPDATE Product SET numberOfUnits = numberOfUnits - " + numberOfUnits + " WHERE storeID = " + storeID + " AND productName = '" + productName + "'";
-      esql.executeUpdate(query);
-
-      System.out.println("Order placed successfully!");
   } catch (Exception e) {
-      System.out.println("Error: " + e.getMessage());
+      out().println("Error: " + e.getMessage());
+  } finally {
+      scope.close();
   }
 }
 // user view their orders
-public static void viewRecentOrders(Amazon esql) {
+public static void viewRecentOrders(Amazon esql, SessionStore.Session session) {
   try {
-      // Prompt the user to enter their name
-      System.out.print("Enter your name: ");
-      String userName = in.readLine();
-
-      // Retrieve the userID based on the provided name
-      String query = "SELECT userID FROM Users WHERE name = '" + userName + "'";
-      List<List<String>> userResult = esql.executeQueryAndReturnResult(query);
-
-      if (userResult.isEmpty()) {
-          System.out.println("User not found.");
-          return;
-      }
-
-      int userID = Integer.parseInt(userResult.get(0).get(0));
-
-      // Retrieve the last 5 recent orders for the user
-      query = "SELECT o.orderNumber, s.storeID, o.productName, o.unitsOrdered, o.orderTime " +
-              "FROM Orders o " +
-              "JOIN Product p ON o.storeID = p.storeID AND o.productName = p.productName " +
-              "JOIN Store s ON p.storeID = s.storeID " +
-              "WHERE o.customerID = " + userID + " " +
-              "ORDER BY o.orderTime DESC LIMIT 5";
-
-      List<List<String>> orders = esql.executeQueryAndReturnResult(query);
+      // Retrieve the last 5 recent orders of the logged-in user
+      List<Order> orders = esql.recentOrders(session.userID, 5);
 
       if (orders.isEmpty()) {
-          System.out.println("You have no recent orders.");
+          out().println("You have no recent orders.");
           return;
       }
 
-      System.out.println("Your Recent Orders:");
-      System.out.println("Order Number\tStore ID\tProduct Name\tUnits Ordered\tOrder Time");
+      out().println("Your Recent Orders:");
+      out().println("Order Number\tStore ID\tProduct Name\tUnits Ordered\tOrder Time");
 
       // Display the order information
-      for (List<String> order : orders) {
-          String orderNumber = order.get(0);
-          String storeID = order.get(1);
-          String productName = order.get(2);
-          String unitsOrdered = order.get(3);
-          String orderTime = order.get(4);
-          System.out.printf("%-15s%-15s%-20s%-15s%s%n", orderNumber, storeID, productName, unitsOrdered, orderTime);
+      for (Order order : orders) {
+          out().printf("%-15d%-15d%-20s%-15d%s%n", order.orderNumber, order.storeID,
+                  order.productName, order.unitsOrdered, order.orderTime);
       }
   } catch (Exception e) {
-      System.out.println("Error: " + e.getMessage());
+      out().println("Error: " + e.getMessage());
   }
 }
 
 // manager updae product
-public static void updateProduct(Amazon esql) {
+public static void updateProduct(Amazon esql, SessionStore.Session session) {
   try {
-      // Prompt the manager to enter their ManagerID
-      System.out.print("Enter your ManagerID: ");
-      int managerID = Integer.parseInt(in.readLine());
-
-      // Retrieve the storeIDs managed by the manager
-      String query = "SELECT storeID FROM Store WHERE managerID = " + managerID;
-      List<List<String>> results = esql.executeQueryAndReturnResult(query);
+      // Only managers get here, acting as the logged-in user
+      if (!session.isManager()) {
+          out().println("Only managers can use this option.");
+          return;
+      }
+      int managerID = session.userID;
 
-      if (results.isEmpty()) {
-          System.out.println("You do not manage any stores.");
+      // The manager's stores are cached for the session
+      if (esql.managerStores(session).length == 0) {
+          out().println("You do not manage any stores.");
           return;
       }
 
       // Prompt the manager to enter the update details
-      System.out.print("Enter the storeID: ");
+      out().print("Enter the storeID: ");
       int storeID = Integer.parseInt(in.readLine());
-      System.out.print("Enter the product name: ");
+      out().print("Enter the product name: ");
       String productName = in.readLine();
-      System.out.print("Enter the new number of units: ");
+      out().print("Enter the new number of units: ");
       int numberOfUnits = Integer.parseInt(in.readLine());
-      System.out.print("Enter the new price per unit: ");
+      out().print("Enter the new price per unit: ");
       double pricePerUnit = Double.parseDouble(in.readLine());
 
       // Check if the manager manages the specified store
-      boolean managesStore = false;
-      for (List<String> row : results) {
-          if (Integer.parseInt(row.get(0)) == storeID) {
-              managesStore = true;
-              break;
-          }
-      }
-
-      if (!managesStore) {
-          System.out.println("You do not have permission to update products in this store.");
+      if (!esql.manages(session, storeID)) {
+          out().println("You do not have permission to update products in this store.");
           return;
       }
 
-      // Check if the product exists in the specified store
-      query = "SELECT * FROM Product WHERE storeID = " + storeID + " AND productName = '" + productName + "'";
-      results = esql.executeQueryAndReturnResult(query);
-
-      if (results.isEmpty()) {
-          System.out.println("Product not found in the specified store.");
+      // Update the Product table and record the change in ProductUpdates
+      if (!esql.updateProduct(managerID, storeID, productName, numberOfUnits, pricePerUnit)) {
+          out().println("Product not found in the specified store.");
           return;
       }
 
-      // Update the Product table
-      query = "UPDATE Product SET numberOfUnits = " + numberOfUnits + ", pricePerUnit = " + pricePerUnit +
-              " WHERE storeID = " + storeID + " AND productName = '" + productName + "'";
-      esql.executeUpdate(query);
-
-      // Insert a new record into the ProductUpdates table
-      query = "INSERT INTO ProductUpdates (managerID, storeID, productName, updatedOn) " +
-              "VALUES (" + managerID + ", " + storeID + ", '" + productName + "', CURRENT_TIMESTAMP)";
-      esql.executeUpdate(query);
-
-      System.out.println("Product information updated successfully!");
+      out().println("Product information updated successfully!");
   } catch (Exception e) {
-      System.out.println("Error: " + e.getMessage());
+      out().println("Error: " + e.getMessage());
   }
 }
 
 // manager see recent product updated
-public static void viewRecentUpdates(Amazon esql) {
+public static void viewRecentUpdates(Amazon esql, SessionStore.Session session) {
   try {
-      // Prompt the manager to enter their ManagerID
-      System.out.print("Enter your ManagerID: ");
-      int managerID = Integer.parseInt(in.readLine());
-
-      // Retrieve the storeIDs managed by the manager
-      String query = "SELECT storeID FROM Store WHERE managerID = " + managerID;
-      List<List<String>> storeResults = esql.executeQueryAndReturnResult(query);
-
-      if (storeResults.isEmpty()) {
-          System.out.println("You do not manage any stores.");
+      // Only managers get here, acting as the logged-in user
+      if (!session.isManager()) {
+          out().println("Only managers can use this option.");
           return;
       }
+      int managerID = session.userID;
+
+      // Display the update information as the rows arrive, newest month first
+      final int[] shown = { 0 };
+      int updates = esql.recentUpdates(managerID, 5, new RowHandler() {
+          public boolean row(ResultSet rs) throws SQLException {
+              if (shown[0]++ == 0) {
+                  out().println("+----------+---------------+----------+----------+---------------------+");
+                  out().println("| Store ID | Product Name  | New Units| New Price| Update Time         |");
+                  out().println("+----------+---------------+----------+----------+---------------------+");
+              }
+              out().printf("| %-9d| %-14s| %-9d| %-9s| %-20s|%n", rs.getInt(1), rs.getString(2),
+                      rs.getInt(3), rs.getDouble(4), rs.getTimestamp(5));
+              return true;
+          }
+      });
 
-      // Build the storeID list
-      StringBuilder storeIDList = new StringBuilder();
-      for (List<String> row : storeResults) {
-          storeIDList.append(row.get(0)).append(",");
-      }
-      storeIDList.deleteCharAt(storeIDList.length() - 1); // Remove the last comma
-
-      // Retrieve the last 5 recent updates for the manager's stores
-      query = "SELECT s.storeID, u.productName, p.numberOfUnits AS newUnits, p.pricePerUnit AS newPrice, u.updatedOn " +
-              "FROM ProductUpdates u " +
-              "JOIN Store s ON u.storeID = s.storeID " +
-              "JOIN Product p ON u.storeID = p.storeID AND u.productName = p.productName " +
-              "WHERE s.storeID IN (" + storeIDList + ") AND u.managerID = " + managerID + " " +
-              "ORDER BY u.updatedOn DESC LIMIT 5";
-
-      List<List<String>> updates = esql.executeQueryAndReturnResult(query);
-
-      if (updates.isEmpty()) {
-          System.out.println("No recent updates found for your stores.");
+      if (updates == 0) {
+          if (esql.managerStores(session).length == 0)
+              out().println("You do not manage any stores.");
+          else
+              out().println("No recent updates found for your stores.");
           return;
       }
 
-      System.out.println("+----------+---------------+----------+----------+---------------------+");
-      System.out.println("| Store ID | Product Name  | New Units| New Price| Update Time         |");
-      System.out.println("+----------+---------------+----------+----------+---------------------+");
-
-      // Display the update information
-      for (List<String> update : updates) {
-          String storeID = update.get(0);
-          String productName = update.get(1);
-          String newUnits = update.get(2);
-          String newPrice = update.get(3);
-          String updatedOn = update.get(4);
-
-          System.out.printf("| %-9s| %-14s| %-9s| %-9s| %-20s|%n", storeID, productName, newUnits, newPrice, updatedOn);
-      }
-
-      System.out.println("+----------+---------------+----------+----------+---------------------+");
+      out().println("+----------+---------------+----------+----------+---------------------+");
   } catch (Exception e) {
-      System.out.println("Error: " + e.getMessage());
+      out().println("Error: " + e.getMessage());
   }
 }
 
 // manager see their store top 5 hot 
-public static void viewPopularProducts(Amazon esql) {
+public static void viewPopularProducts(Amazon esql, SessionStore.Session session) {
   try {
-      // Prompt the manager to enter their ManagerID
-      System.out.print("Enter your ManagerID: ");
-      int managerID = Integer.parseInt(in.readLine());
-
-      // Retrieve the storeIDs managed by the manager
-      String query = "SELECT storeID FROM Store WHERE managerID = " + managerID;
-      List<List<String>> storeResults = esql.executeQueryAndReturnResult(query);
-
-      if (storeResults.isEmpty()) {
-          System.out.println("You do not manage any stores.");
-          return;
-      }
-
-      // Build the storeID list
-      StringBuilder storeIDList = new StringBuilder();
-      for (List<String> row : storeResults) {
-          storeIDList.append(row.get(0)).append(",");
-      }
-      storeIDList.deleteCharAt(storeIDList.length() - 1); // Remove the last comma
-
-      // Retrieve the top 5 popular products for the manager's stores
-      query = "SELECT p.productName, COUNT(o.orderNumber) AS orderCount " +
-              "FROM Product p " +
-              "JOIN Orders o ON p.storeID = o.storeID AND p.productName = o.productName " +
-              "WHERE p.storeID IN (" + storeIDList + ") " +
-              "GROUP BY p.productName " +
-              "ORDER BY orderCount DESC LIMIT 5";
-
-      List<List<String>> popularProducts = esql.executeQueryAndReturnResult(query);
-
-      if (popularProducts.isEmpty()) {
-          System.out.println("No orders found for your stores.");
+      // Only managers get here, acting as the logged-in user
+      if (!session.isManager()) {
+          out().println("Only managers can use this option.");
           return;
       }
+      int managerID = session.userID;
+
+      // Retrieve the top 5 popular products for the manager's stores from
+      // the running counts, displaying them as the rows arrive
+      int popularProducts = esql.popularProducts(managerID, 5, new RowHandler() {
+          public boolean row(ResultSet rs) throws SQLException {
+              if (rs.getRow() == 1) {
+                  out().println("Top 5 Popular Products in Your Stores:");
+                  out().println("Product Name\tOrder Count");
+              }
+              out().printf("%-20s\t%d%n", rs.getString(1), rs.getLong(2));
+              return true;
+          }
+      });
 
-      System.out.println("Top 5 Popular Products in Your Stores:");
-      System.out.println("Product Name\tOrder Count");
-
-      // Display the popular products
-      for (List<String> product : popularProducts) {
-          String productName = product.get(0);
-          String orderCount = product.get(1);
-
-          System.out.printf("%-20s\t%s%n", productName, orderCount);
+      if (popularProducts == 0) {
+          if (esql.managerStores(session).length == 0)
+              out().println("You do not manage any stores.");
+          else
+              out().println("No orders found for your stores.");
       }
   } catch (Exception e) {
-      System.out.println("Error: " + e.getMessage());
+      out().println("Error: " + e.getMessage());
   }
 }
 
 // manager see which customer placed more orders
-public static void viewPopularCustomers(Amazon esql) {
+public static void viewPopularCustomers(Amazon esql, SessionStore.Session session) {
   try {
-      // Prompt the manager to enter their ManagerID
-      System.out.print("Enter your ManagerID: ");
-      int managerID = Integer.parseInt(in.readLine());
-
-      // Retrieve the storeIDs managed by the manager
-      String query = "SELECT storeID FROM Store WHERE managerID = " + managerID;
-      List<List<String>> storeResults = esql.executeQueryAndReturnResult(query);
-
-      if (storeResults.isEmpty()) {
-          System.out.println("You do not manage any stores.");
-          return;
-      }
-
-      // Build the storeID list
-      StringBuilder storeIDList = new StringBuilder();
-      for (List<String> row : storeResults) {
-          storeIDList.append(row.get(0)).append(",");
-      }
-      storeIDList.deleteCharAt(storeIDList.length() - 1); // Remove the last comma
-
-      // Retrieve the top 5 customers who placed the most orders in the manager's stores
-      query = "SELECT u.name, u.latitude, u.longitude, u.type, COUNT(o.orderNumber) AS orderCount " +
-              "FROM Users u " +
-              "JOIN Orders o ON u.userID = o.customerID " +
-              "JOIN Product p ON o.storeID = p.storeID AND o.productName = p.productName " +
-              "WHERE p.storeID IN (" + storeIDList + ") " +
-              "GROUP BY u.userID " +
-              "ORDER BY orderCount DESC LIMIT 5";
-
-      List<List<String>> popularCustomers = esql.executeQueryAndReturnResult(query);
-
-      if (popularCustomers.isEmpty()) {
-          System.out.println("No orders found for your stores.");
+      // Only managers get here, acting as the logged-in user
+      if (!session.isManager()) {
+          out().println("Only managers can use this option.");
           return;
       }
+      int managerID = session.userID;
+
+      // Retrieve the top 5 customers who placed the most orders in the
+      // manager's stores, displaying them as the rows arrive
+      int popularCustomers = esql.popularCustomers(managerID, 5, new RowHandler() {
+          public boolean row(ResultSet rs) throws SQLException {
+              if (rs.getRow() == 1) {
+                  out().println("Top 5 Customers Who Placed the Most Orders in Your Stores:");
+                  out().println("Name\tLatitude\tLongitude\tType\tOrder Count");
+              }
+              out().printf("%-20s\t%-10s\t%-10s\t%-10s\t%d%n", rs.getString(1), rs.getDouble(2),
+                      rs.getDouble(3), rs.getString(4), rs.getLong(5));
+              return true;
+          }
+      });
 
-      System.out.println("Top 5 Customers Who Placed the Most Orders in Your Stores:");
-      System.out.println("Name\tLatitude\tLongitude\tType\tOrder Count");
-
-      // Display the popular customers
-      for (List<String> customer : popularCustomers) {
-          String name = customer.get(0);
-          String latitude = customer.get(1);
-          String longitude = customer.get(2);
-          String type = customer.get(3);
-          String orderCount = customer.get(4);
-
-          System.out.printf("%-20s\t%-10s\t%-10s\t%-10s\t%s%n", name, latitude, longitude, type, orderCount);
+      if (popularCustomers == 0) {
+          if (esql.managerStores(session).length == 0)
+              out().println("You do not manage any stores.");
+          else
+              out().println("No orders found for your stores.");
       }
   } catch (Exception e) {
-      System.out.println("Error: " + e.getMessage());
+      out().println("Error: " + e.getMessage());
   }
 }
 
 // manager request order
-public static void placeProductSupplyRequests(Amazon esql) {
+public static void placeProductSupplyRequests(Amazon esql, SessionStore.Session session) {
   try {
-      // Prompt the manager to enter their ManagerID
-      System.out.print("Enter your ManagerID: ");
-      int managerID = Integer.parseInt(in.readLine());
-
-      // Retrieve the storeIDs managed by the manager
-      String query = "SELECT storeID FROM Store WHERE managerID = " + managerID;
-      List<List<String>> storeResults = esql.executeQueryAndReturnResult(query);
+      // Only managers get here, acting as the logged-in user
+      if (!session.isManager()) {
+          out().println("Only managers can use this option.");
+          return;
+      }
+      int managerID = session.userID;
 
-      if (storeResults.isEmpty()) {
-          System.out.println("You do not manage any stores.");
+      // The manager's stores are cached for the session
+      if (esql.managerStores(session).length == 0) {
+          out().println("You do not manage any stores.");
           return;
       }
 
       // Prompt the manager to enter the supply request details
-      System.out.print("Enter the storeID: ");
+      out().print("Enter the storeID: ");
       int storeID = Integer.parseInt(in.readLine());
-      System.out.print("Enter the product name: ");
+      out().print("Enter the product name: ");
       String productName = in.readLine();
-      System.out.print("Enter the number of units needed: ");
+      out().print("Enter the number of units needed: ");
       int unitsRequested = Integer.parseInt(in.readLine());
-      System.out.print("Enter the warehouseID: ");
-      int warehouseID = Integer.parseInt(in.readLine());
+      out().print("Enter the warehouseID (leave empty to pick one automatically): ");
+      String warehouseInput = in.readLine().trim();
 
       // Check if the manager manages the specified store
-      boolean managesStore = false;
-      for (List<String> row : storeResults) {
-          if (Integer.parseInt(row.get(0)) == storeID) {
-              managesStore = true;
-              break;
-          }
-      }
-
-      if (!managesStore) {
-          System.out.println("You do not have permission to place supply requests for this store.");
+      if (!esql.manages(session, storeID)) {
+          out().println("You do not have permission to place supply requests for this store.");
           return;
       }
 
       // Check if the product exists in the specified store
-      query = "SELECT * FROM Product WHERE storeID = " + storeID + " AND productName = '" + productName + "'";
-      List<List<String>> productResult = esql.executeQueryAndReturnResult(query);
-
-      if (productResult.isEmpty()) {
-          System.out.println("Product not found in the specified store.");
+      if (esql.findProduct(storeID, productName) == null) {
+          out().println("Product not found in the specified store.");
           return;
       }
 
-      // Insert a new record into the ProductSupplyRequests table
-      query = "INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested) " +
-              "VALUES (" + managerID + ", " + warehouseID + ", " + storeID + ", '" + productName + "', " + unitsRequested + ")";
-      esql.executeUpdate(query);
+      // Route to the nearest warehouse with room, unless one was given
+      WarehouseRouter.Route route;
+      if (warehouseInput.isEmpty()) {
+          route = esql.routeSupply(storeID, productName, unitsRequested);
+          if (route == null) {
+              out().println("No warehouse can take this request right now.");
+              return;
+          }
+      } else {
+          route = esql.routeSupplyTo(storeID, productName, unitsRequested, Integer.parseInt(warehouseInput));
+          if (route == null) {
+              out().println("Warehouse not found.");
+              return;
+          }
+      }
 
-      // Update the Product table
-      query = "UPDATE Product SET numberOfUnits = numberOfUnits + " + unitsRequested +
-              " WHERE storeID = " + storeID + " AND productName = '" + productName + "'";
-      esql.executeUpdate(query);
+      // Record the request; the units reach the stock once it is fulfilled
+      esql.placeSupplyRequests(managerID, java.util.Collections.singletonList(route));
 
-      System.out.println("Product supply request placed successfully!");
+      out().printf("Product supply request placed successfully with warehouse %d (distance %.2f)!%n",
+              route.warehouse.warehouseID, route.distance);
+      out().println("The units will be added to the store's stock on delivery.");
   } catch (Exception e) {
-      System.out.println("Error: " + e.getMessage());
+      out().println("Error: " + e.getMessage());
   }
 }
 
+// asks for a page size, defaulting to the store's
+private static int readPageSize(Amazon esql) throws java.io.IOException {
+  out().print("Rows per page (empty for " + esql.pageSize() + "): ");
+  String input = in.readLine().trim();
+  return input.isEmpty() ? esql.pageSize() : Math.max(1, Integer.parseInt(input));
+}
+
 //for admin
-public static void Admin(Amazon esql){
+public static void Admin(final Amazon esql, SessionStore.Session session){
   try {
-     // Prompt the admin to enter their AdminID
-     System.out.print("Enter your AdminID: ");
-     String userIDInput = in.readLine();
-
-     // Verify if the user is an admin
-     String query = "SELECT * FROM Users WHERE name = '" + userIDInput + "' AND type = 'admin'";
-     List<List<String>> results = esql.executeQueryAndReturnResult(query);
-
-     if (results.isEmpty()) {
-         System.out.println("You do not have admin privileges.");
+     // Only the logged-in user's own type counts
+     if (!session.isAdmin()) {
+         out().println("You do not have admin privileges.");
          return;
      }
 
      boolean quit = false;
      while (!quit) {
-         System.out.println("Admin Menu:");
-         System.out.println("1. View all users");
-         System.out.println("2. Update user information");
-         System.out.println("3. View all products");
-         System.out.println("4. Update product information");
-         System.out.println("5. Quit");
-         System.out.print("Enter your choice: ");
+         out().println("Admin Menu:");
+         out().println("1. View all users");
+         out().println("2. Update user information");
+         out().println("3. View all products");
+         out().println("4. Update product information");
+         out().println("5. Quit");
+         out().println("6. Rebuild popularity counters");
+         out().print("Enter your choice: ");
          int choice = Integer.parseInt(in.readLine());
 
          switch (choice) {
              case 1:
-                 // View all users
-                 query = "SELECT * FROM Users";
-                 results = esql.executeQueryAndReturnResult(query);
-                 System.out.println("User Information:");
-                 for (List<String> row : results) {
-                     System.out.println("UserID: " + row.get(0) + ", Name: " + row.get(1) +
-                             ", Password: " + row.get(2) + ", Latitude: " + row.get(3) +
-                             ", Longitude: " + row.get(4) + ", Type: " + row.get(5));
-                 }
+                 // View all users, a page at a time
+                 out().print("Name contains (empty for any): ");
+                 final String nameFilter = in.readLine().trim();
+                 out().print("User type (empty for any): ");
+                 final String typeFilter = in.readLine().trim();
+                 int userPage = readPageSize(esql);
+                 out().println("User Information:");
+                 Pager.browse(new Pager.Query<User>() {
+                     public List<User> next(User last, int limit) throws SQLException {
+                         return esql.listUsers(last == null ? 0 : last.userID, nameFilter, typeFilter, limit);
+                     }
+                 }, new Pager.Printer<User>() {
+                     public void print(User u) {
+                         out().println("UserID: " + u.userID + ", Name: " + u.name +
+                                 ", Password: " + u.password + ", Latitude: " + u.latitude +
+                                 ", Longitude: " + u.longitude + ", Type: " + u.type);
+                     }
+                 }, userPage);
                  break;
              case 2:
                  // Update user information
-                 System.out.print("Enter the userID to update: ");
+                 out().print("Enter the userID to update: ");
                  int userID = Integer.parseInt(in.readLine());
-                 System.out.print("Enter the new name: ");
+                 out().print("Enter the new name: ");
                  String name = in.readLine();
-                 System.out.print("Enter the new password: ");
+                 out().print("Enter the new password: ");
                  String password = in.readLine();
-                 System.out.print("Enter the new latitude: ");
+                 out().print("Enter the new latitude: ");
                  double latitude = Double.parseDouble(in.readLine());
-                 System.out.print("Enter the new longitude: ");
+                 out().print("Enter the new longitude: ");
                  double longitude = Double.parseDouble(in.readLine());
-                 System.out.print("Enter the new user type: ");
+                 out().print("Enter the new user type: ");
                  String type = in.readLine();
-                 query = "UPDATE Users SET name = '" + name + "', password = '" + password +
-                         "', latitude = " + latitude + ", longitude = " + longitude +
-                         ", type = '" + type + "' WHERE userID = " + userID;
-                 esql.executeUpdate(query);
-                 System.out.println("User information updated successfully!");
+                 if (esql.updateUser(userID, name, password, latitude, longitude, type))
+                     out().println("User information updated successfully!");
+                 else
+                     out().println("User not found.");
                  break;
              case 3:
-                 // View all products
-                 query = "SELECT * FROM Product";
-                 results = esql.executeQueryAndReturnResult(query);
-                 System.out.println("Product Information:");
-                 for (List<String> row : results) {
-                     System.out.println("StoreID: " + row.get(0) + ", ProductName: " + row.get(1) +
-                             ", NumberOfUnits: " + row.get(2) + ", PricePerUnit: " + row.get(3));
-                 }
+                 // View all products, a page at a time
+                 out().print("StoreID (empty for all stores): ");
+                 String storeInput = in.readLine().trim();
+                 final int storeFilter = storeInput.isEmpty() ? -1 : Integer.parseInt(storeInput);
+                 out().print("Product name contains (empty for any): ");
+                 final String productFilter = in.readLine().trim();
+                 out().print("At most this many units (empty for any): ");
+                 String unitsInput = in.readLine().trim();
+                 final int unitsFilter = unitsInput.isEmpty() ? -1 : Integer.parseInt(unitsInput);
+                 int productPage = readPageSize(esql);
+                 out().println("Product Information:");
+                 Pager.browse(new Pager.Query<Product>() {
+                     public List<Product> next(Product last, int limit) throws SQLException {
+                         return esql.listProducts(last, storeFilter, productFilter, unitsFilter, limit);
+                     }
+                 }, new Pager.Printer<Product>() {
+                     public void print(Product p) {
+                         out().println("StoreID: " + p.storeID + ", ProductName: " + p.productName +
+                                 ", NumberOfUnits: " + p.numberOfUnits + ", PricePerUnit: " + p.pricePerUnit);
+                     }
+                 }, productPage);
                  break;
              case 4:
                  // Update product information
-                 System.out.print("Enter the storeID: ");
+                 out().print("Enter the storeID: ");
                  int storeID = Integer.parseInt(in.readLine());
-                 System.out.print("Enter the product name: ");
+                 out().print("Enter the product name: ");
                  String productName = in.readLine();
-                 System.out.print("Enter the new number of units: ");
+                 out().print("Enter the new number of units: ");
                  int numberOfUnits = Integer.parseInt(in.readLine());
-                 System.out.print("Enter the new price per unit: ");
+                 out().print("Enter the new price per unit: ");
                  double pricePerUnit = Double.parseDouble(in.readLine());
-                 query = "UPDATE Product SET numberOfUnits = " + numberOfUnits +
-                         ", pricePerUnit = " + pricePerUnit +
-                         " WHERE storeID = " + storeID + " AND productName = '" + productName + "'";
-                 esql.executeUpdate(query);
-                 System.out.println("Product information updated successfully!");
+                 if (esql.writeProduct(storeID, productName, numberOfUnits, pricePerUnit))
+                     out().println("Product information updated successfully!");
+                 else
+                     out().println("Product not found in the specified store.");
                  break;
              case 5:
                  quit = true;
                  break;
+             case 6:
+                 // Recompute the popular items / customers counters from Orders
+                 out().println("Popularity counters rebuilt from " + esql.rebuildPopularity() + " orders.");
+                 break;
              default:
-                 System.out.println("Invalid choice. Please try again.");
+                 out().println("Invalid choice. Please try again.");
          }
-         System.out.println();
+         out().println();
      }
  } catch (Exception e) {
-     System.out.println("Error: " + e.getMessage());
+     out().println("Error: " + e.getMessage());
  }
  }
 
@@ -0,0 +1,174 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+* Headless multi-session mode. Listens on a TCP port and runs the regular
+* Amazon menu for every client that connects, each on its own worker
+* thread with its socket bound as the session's console. All sessions share
+* one Amazon instance and therefore one bounded connection pool.
+*
+* Connect with any line-based client, e.g. "nc localhost 5400".
+*
+*/
+public class AmazonServer {
+
+ // idle sessions are dropped after this long without input
+ public static final int SESSION_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+ // how often the metrics file is rewritten
+ public static final long METRICS_DUMP_MILLIS = 10 * 1000L;
+
+ // how often login sessions are written behind to UserSessions
+ public static final long SESSION_FLUSH_MILLIS = 5 * 1000L;
+
+ // how long low-stock reorders are collected before being written
+ public static final long REPLENISH_WINDOW_MILLIS = 30 * 1000L;
+
+ // simulated delivery time of a supply request
+ public static final long REPLENISH_LEAD_MILLIS = 5 * 60 * 1000L;
+
+ private final Amazon _esql;
+ private final ThreadPoolExecutor _sessions;
+
+ /**
+  * Creates a server around a shared store.
+  *
+  * @param esql the store every session operates on
+  * @param maxSessions the maximum number of concurrent sessions
+  */
+ public AmazonServer(Amazon esql, int maxSessions) {
+    this._esql = esql;
+    // no queue: a session either gets a worker right away or is turned away
+    this._sessions = new ThreadPoolExecutor(maxSessions, maxSessions,
+       60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+    this._sessions.allowCoreThreadTimeOut(true);
+ }//end AmazonServer
+
+ /**
+  * Accepts clients until the server socket is closed.
+  */
+ public void serve(ServerSocket server) throws IOException {
+    while (!server.isClosed()) {
+       final Socket client = server.accept();
+       try {
+          this._sessions.execute(new Runnable() {
+             public void run() {
+                runSession(client);
+             }
+          });
+       } catch (RejectedExecutionException e) {
+          PrintStream out = new PrintStream(client.getOutputStream(), true);
+          out.println("Server busy, please try again later.");
+          client.close();
+       }
+    }
+ }//end serve
+
+ /**
+  * @return the number of sessions currently being served
+  */
+ public int activeSessions() {
+    return this._sessions.getActiveCount();
+ }
+
+ // runs the menu with the client socket as the console
+ private void runSession(Socket client) {
+    try {
+       client.setSoTimeout(SESSION_TIMEOUT_MILLIS);
+       BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+       PrintStream out = new PrintStream(client.getOutputStream(), true);
+       SessionIO.bind(in, out);
+       Amazon.Greeting();
+       Amazon.runMenu(this._esql);
+       out.println("Bye!");
+    } catch (java.io.EOFException e) {
+       // the client disconnected or went idle.
+    } catch (Exception e) {
+       System.err.println("Session " + client.getRemoteSocketAddress() + " ended: " + e.getMessage());
+    } finally {
+       SessionIO.unbind();
+       try {
+          client.close();
+       } catch (IOException e) {
+          // ignored.
+       }
+    }
+ }//end runSession
+
+ /**
+  * Stops accepting new sessions and waits briefly for running ones.
+  */
+ public void shutdown() throws InterruptedException {
+    this._sessions.shutdown();
+    this._sessions.awaitTermination(5, TimeUnit.SECONDS);
+ }
+
+ /**
+  * The server entry point
+  *
+  * @param args <dbname> <port> <user> <listen port> [pool size] [max sessions]
+  */
+ public static void main(String[] args) throws Exception {
+    if (args.length < 4) {
+       System.err.println(
+          "Usage: " +
+          "java [-classpath <classpath>] " +
+          AmazonServer.class.getName() +
+          " <dbname> <port> <user> <listen port> [pool size] [max sessions] [metrics file]");
+       return;
+    }
+
+    // use postgres JDBC driver.
+    Class.forName("org.postgresql.Driver");
+
+    ConnectionPool.Config config = new ConnectionPool.Config(
+       Amazon.url(args[0], args[1]), args[2], "");
+    config.maxSize = args.length > 4 ? Integer.parseInt(args[4]) : 16;
+    int maxSessions = args.length > 5 ? Integer.parseInt(args[5]) : 256;
+
+    final ConnectionPool pool = new ConnectionPool(config);
+    final Amazon esql = new Amazon(pool);
+    final AmazonServer server = new AmazonServer(esql, maxSessions);
+    if (args.length > 6)
+       esql.metrics().startDumping(new java.io.File(args[6]), METRICS_DUMP_MILLIS);
+
+    // keep logins across restarts
+    esql.sessions().load(esql);
+    esql.sessions().persistTo(esql, SESSION_FLUSH_MILLIS);
+
+    // reorder low products in the background
+    esql.startReplenishment(REPLENISH_WINDOW_MILLIS, REPLENISH_LEAD_MILLIS);
+    final ServerSocket socket = new ServerSocket(Integer.parseInt(args[3]));
+
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+       public void run() {
+          try {
+             socket.close();
+             server.shutdown();
+          } catch (Exception e) {
+             // ignored.
+          }
+          esql.cleanup();
+       }
+    });
+
+    System.out.println("Listening on port " + socket.getLocalPort()
+       + " (pool size " + config.maxSize + ", max sessions " + maxSessions + ")");
+    try {
+       server.serve(socket);
+    } catch (IOException e) {
+       if (!socket.isClosed())
+          throw e;
+    }
+ }//end main
+
+}//end AmazonServer
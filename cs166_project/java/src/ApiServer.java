@@ -0,0 +1,1177 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+* Embedded HTTP/JSON API over the same operations as the console menu,
+* built on the JDK's com.sun.net.httpserver. All requests share one
+* Amazon instance and therefore one bounded connection pool.
+*
+* Requests are handled in two stages. The HTTP threads parse the request
+* and hand it to a bounded pool of database workers; when that pool and
+* its queue are full the request is answered with 503 right away instead
+* of piling up. A request that has not started its response within
+* REQUEST_TIMEOUT_MILLIS is answered with 504 and its work, if it has not
+* started yet, is dropped. Connections are kept alive between requests.
+*
+* Parameters come from the query string and from the body, which may be a
+* flat JSON object or form-encoded. Users log in with POST /api/sessions
+* and pass the returned token as "Authorization: Bearer <token>".
+*
+*   POST   /api/sessions                        log in {name, password}
+*   DELETE /api/sessions                        log out
+*   POST   /api/users                           register {name, password, latitude, longitude}
+*   GET    /api/stores                          stores near {latitude, longitude[, radius]}
+*   GET    /api/stores/{storeID}/products       a store's products, streamed [after, limit]
+*   GET    /api/stores/{storeID}/neighbors      nearby stores and the nearest warehouse [radius | n]
+*   PUT    /api/stores/{storeID}/products/{name} update {units, price} (manager of the store, admin)
+*   POST   /api/orders                          order {latitude, longitude, storeID, productName, units}
+*   GET    /api/orders/recent                   the user's recent orders [limit]
+*   GET    /api/manager/updates                 recent product updates [limit]
+*   GET    /api/manager/popular-products        most ordered products [limit]
+*   GET    /api/manager/popular-customers       customers with the most orders [limit]
+*   POST   /api/supply-requests                 request {storeID, productName, units[, warehouseID]}
+*   GET    /api/admin/users                     users, streamed [name, type, after, limit]
+*   PUT    /api/admin/users/{userID}            update {name, password, latitude, longitude, type}
+*   GET    /api/admin/products                  products, streamed [storeID, name, maxUnits,
+*                                                 afterStoreID, afterName, limit]
+*   POST   /api/admin/popularity                rebuild the popularity counters
+*   GET    /metrics                             Prometheus metrics
+*   GET    /health                              liveness
+*
+*/
+public class ApiServer {
+
+ // a request must start its response within this long or gets a 504
+ public static final long REQUEST_TIMEOUT_MILLIS = 10 * 1000L;
+
+ // requests waiting for a database worker before new ones get a 503
+ public static final int MAX_QUEUED_REQUESTS = 256;
+
+ // largest request body accepted
+ public static final int MAX_BODY_BYTES = 64 * 1024;
+
+ // rows fetched per query while streaming a listing
+ public static final int STREAM_PAGE_SIZE = 500;
+
+ // largest search radius accepted, ten times the store radius
+ public static final double MAX_RADIUS = 10 * Amazon.STORE_RADIUS;
+
+ // largest limit of the short "top N" and "recent" reports
+ public static final int MAX_REPORT_LIMIT = 100;
+
+ // idle keep-alive connections are closed after this long
+ public static final int KEEP_ALIVE_SECONDS = 30;
+
+ // a client must send its whole request within this long
+ public static final int MAX_REQUEST_SECONDS = 30;
+
+ // who may call an endpoint
+ private static final int PUBLIC = 0;
+ private static final int USER = 1;
+ private static final int MANAGER = 2;
+ private static final int ADMIN = 3;
+
+ /**
+  * A request answered with an error status.
+  */
+ static class ApiException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    final int status;
+
+    ApiException(int status, String message) {
+       super(message);
+       this.status = status;
+    }
+ }//end ApiException
+
+ /**
+  * Minimal streaming JSON writer.
+  */
+ static class Json {
+    private final Writer _out;
+
+    // whether the next value in the current container needs a comma
+    private boolean _comma = false;
+
+    Json(Writer out) {
+       this._out = out;
+    }
+
+    Json begin(char bracket) throws IOException {
+       separate();
+       this._out.write(bracket);
+       this._comma = false;
+       return this;
+    }
+
+    Json end(char bracket) throws IOException {
+       this._out.write(bracket);
+       this._comma = true;
+       return this;
+    }
+
+    Json name(String name) throws IOException {
+       separate();
+       quote(name);
+       this._out.write(':');
+       this._comma = false;
+       return this;
+    }
+
+    Json value(Object v) throws IOException {
+       separate();
+       if (v == null)
+          this._out.write("null");
+       else if (v instanceof Number || v instanceof Boolean)
+          this._out.write(v.toString());
+       else
+          quote(v.toString().trim());
+       this._comma = true;
+       return this;
+    }
+
+    Json field(String name, Object v) throws IOException {
+       return name(name).value(v);
+    }
+
+    void flush() throws IOException {
+       this._out.flush();
+    }
+
+    private void separate() throws IOException {
+       if (this._comma)
+          this._out.write(',');
+    }
+
+    private void quote(String s) throws IOException {
+       this._out.write('"');
+       for (int i = 0; i < s.length(); ++i) {
+          char c = s.charAt(i);
+          if (c == '"' || c == '\\') {
+             this._out.write('\\');
+             this._out.write(c);
+          } else if (c == '\n') {
+             this._out.write("\\n");
+          } else if (c == '\r') {
+             this._out.write("\\r");
+          } else if (c == '\t') {
+             this._out.write("\\t");
+          } else if (c < 0x20) {
+             this._out.write(String.format("\\u%04x", (int) c));
+          } else {
+             this._out.write(c);
+          }
+       }
+       this._out.write('"');
+    }
+ }//end Json
+
+ /**
+  * Writes one row of a streamed listing.
+  */
+ interface RowWriter<T> {
+    void write(Json json, T row) throws IOException;
+ }
+
+ /**
+  * The response of one exchange. It is answered exactly once, either by
+  * the worker or by the timeout, whichever comes first.
+  */
+ static class Reply {
+    private static final int OPEN = 0;
+    private static final int STREAMING = 1;
+    private static final int DONE = 2;
+
+    private final HttpExchange _exchange;
+    private int _state = OPEN;
+
+    Reply(HttpExchange exchange) {
+       this._exchange = exchange;
+    }
+
+    /**
+     * Sends a complete response.
+     *
+     * @return false if the exchange was already answered
+     */
+    boolean send(int status, String json) {
+       return send(status, "application/json; charset=utf-8", json);
+    }
+
+    synchronized boolean send(int status, String contentType, String text) {
+       if (this._state != OPEN)
+          return false;
+       this._state = DONE;
+       try {
+          byte[] body = text == null ? new byte[0] : text.getBytes("UTF-8");
+          if (body.length > 0)
+             this._exchange.getResponseHeaders().set("Content-Type", contentType);
+          this._exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+          if (body.length > 0)
+             this._exchange.getResponseBody().write(body);
+       } catch (IOException e) {
+          // the client went away.
+       } finally {
+          this._exchange.close();
+       }
+       return true;
+    }//end send
+
+    boolean error(int status, String message) {
+       StringWriter s = new StringWriter();
+       try {
+          new Json(s).begin('{').field("error", message == null ? "Internal error" : message).end('}');
+       } catch (IOException e) {
+          // not thrown by StringWriter.
+       }
+       return send(status, s.toString());
+    }
+
+    /**
+     * Starts a chunked response whose body is written as it is produced.
+     * The timeout no longer applies once it has started.
+     *
+     * @throws java.io.IOException if the exchange was already answered
+     */
+    synchronized Json stream(int status) throws IOException {
+       if (this._state != OPEN)
+          throw new IOException("Request already answered");
+       this._state = STREAMING;
+       this._exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+       this._exchange.sendResponseHeaders(status, 0);
+       return new Json(new OutputStreamWriter(new BufferedOutputStream(this._exchange.getResponseBody()), "UTF-8"));
+    }//end stream
+
+    /**
+     * Answers with 504 unless the response has started.
+     *
+     * @return whether this answered the exchange
+     */
+    boolean timeout() {
+       return error(504, "Request timed out");
+    }
+
+    // ends a streamed response, complete or not
+    synchronized void finish() {
+       if (this._state == STREAMING) {
+          this._state = DONE;
+          this._exchange.close();
+       }
+    }
+ }//end Reply
+
+ /**
+  * A parsed request.
+  */
+ static class Request {
+    final String method;
+    final String[] path;
+    final Map<String, String> params;
+    SessionStore.Session session;
+
+    Request(String method, String[] path, Map<String, String> params) {
+       this.method = method;
+       this.path = path;
+       this.params = params;
+    }
+
+    String param(String name) throws ApiException {
+       String v = this.params.get(name);
+       if (v == null || v.isEmpty())
+          throw new ApiException(400, "Missing parameter: " + name);
+       return v;
+    }
+
+    String param(String name, String missing) {
+       String v = this.params.get(name);
+       return v == null || v.isEmpty() ? missing : v;
+    }
+
+    int intParam(String name) throws ApiException {
+       return parseInt(name, param(name));
+    }
+
+    int intParam(String name, int missing) throws ApiException {
+       String v = param(name, null);
+       return v == null ? missing : parseInt(name, v);
+    }
+
+    double doubleParam(String name) throws ApiException {
+       double v;
+       try {
+          v = Double.parseDouble(param(name));
+       } catch (NumberFormatException e) {
+          throw new ApiException(400, "Not a number: " + name);
+       }
+       if (Double.isNaN(v) || Double.isInfinite(v))
+          throw new ApiException(400, "Not a finite number: " + name);
+       return v;
+    }
+
+    private static int parseInt(String name, String v) throws ApiException {
+       try {
+          return Integer.parseInt(v.trim());
+       } catch (NumberFormatException e) {
+          throw new ApiException(400, "Not an integer: " + name);
+       }
+    }
+ }//end Request
+
+ /**
+  * Serves one endpoint on a database worker.
+  */
+ interface Endpoint {
+    void serve(Request req, Reply reply) throws Exception;
+ }
+
+ // an endpoint with the path it answers, "*" matching any segment
+ private static class Route {
+    final String method;
+    final String[] pattern;
+    final int access;
+    final String name;
+    final Endpoint endpoint;
+
+    Route(String method, String pattern, int access, Endpoint endpoint) {
+       this.method = method;
+       this.pattern = pattern.substring(1).split("/");
+       this.access = access;
+       this.name = "http " + method + " " + pattern;
+       this.endpoint = endpoint;
+    }
+
+    boolean matches(String method, String[] path) {
+       if (!this.method.equals(method) || this.pattern.length != path.length)
+          return false;
+       for (int i = 0; i < path.length; ++i)
+          if (!this.pattern[i].equals("*") && !this.pattern[i].equals(path[i]))
+             return false;
+       return true;
+    }
+ }//end Route
+
+ private final Amazon _esql;
+ private final List<Route> _routes = new ArrayList<Route>();
+ private final ThreadPoolExecutor _workers;
+ private final ScheduledThreadPoolExecutor _timeouts;
+ private HttpServer _http;
+ private ThreadPoolExecutor _httpThreads;
+
+ /**
+  * Creates a server around a shared store.
+  *
+  * @param esql the store every request operates on
+  * @param workers the number of requests served at once
+  */
+ public ApiServer(Amazon esql, int workers) {
+    this._esql = esql;
+    this._workers = new ThreadPoolExecutor(workers, workers, 60L, TimeUnit.SECONDS,
+       new ArrayBlockingQueue<Runnable>(MAX_QUEUED_REQUESTS));
+    this._workers.allowCoreThreadTimeOut(true);
+    this._timeouts = new ScheduledThreadPoolExecutor(1);
+    this._timeouts.setRemoveOnCancelPolicy(true);
+    addRoutes();
+ }//end ApiServer
+
+ /**
+  * Starts listening.
+  *
+  * @param port the TCP port
+  * @param httpThreads threads parsing requests and writing short responses
+  */
+ public void start(int port, int httpThreads) throws IOException {
+    this._http = HttpServer.create(new InetSocketAddress(port), 0);
+    // when every HTTP thread is busy the dispatcher runs the exchange itself,
+    // which stops it accepting more until one frees up
+    this._httpThreads = new ThreadPoolExecutor(httpThreads, httpThreads, 60L, TimeUnit.SECONDS,
+       new ArrayBlockingQueue<Runnable>(MAX_QUEUED_REQUESTS), new ThreadPoolExecutor.CallerRunsPolicy());
+    this._http.setExecutor(this._httpThreads);
+    this._http.createContext("/", new HttpHandler() {
+       public void handle(HttpExchange exchange) {
+          dispatch(exchange);
+       }
+    });
+    this._http.start();
+ }//end start
+
+ /**
+  * @return the local port, once started
+  */
+ public int port() {
+    return this._http.getAddress().getPort();
+ }
+
+ /**
+  * Stops accepting requests and waits briefly for running ones.
+  */
+ public void shutdown() throws InterruptedException {
+    if (this._http != null) {
+       this._http.stop(1);
+       this._httpThreads.shutdown();
+    }
+    this._workers.shutdown();
+    this._workers.awaitTermination(5, TimeUnit.SECONDS);
+    this._timeouts.shutdownNow();
+ }
+
+ // -------------------------------------------------------------------
+ // dispatch
+ // -------------------------------------------------------------------
+
+ // runs on an HTTP thread: parse, route, authorize, then hand to a worker
+ private void dispatch(HttpExchange exchange) {
+    final Reply reply = new Reply(exchange);
+    final Request req;
+    final Route route;
+    try {
+       req = parse(exchange);
+       route = find(req);
+       authorize(route, req, exchange.getRequestHeaders().getFirst("Authorization"));
+    } catch (ApiException e) {
+       reply.error(e.status, e.getMessage());
+       return;
+    } catch (IOException e) {
+       reply.error(400, e.getMessage());
+       return;
+    }
+
+    final ScheduledFuture<?>[] timer = new ScheduledFuture<?>[1];
+    final Future<?> work;
+    try {
+       work = this._workers.submit(new Runnable() {
+          public void run() {
+             try {
+                serve(route, req, reply);
+             } finally {
+                synchronized (timer) {
+                   if (timer[0] != null)
+                      timer[0].cancel(false);
+                }
+             }
+          }
+       });
+    } catch (RejectedExecutionException e) {
+       exchange.getResponseHeaders().set("Retry-After", "1");
+       reply.error(503, "Server busy, please try again later");
+       return;
+    }
+    synchronized (timer) {
+       if (!work.isDone())
+          timer[0] = this._timeouts.schedule(new Runnable() {
+             public void run() {
+                // drop the work if it is still queued; a running handler's reply is discarded
+                if (reply.timeout())
+                   work.cancel(false);
+             }
+          }, REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+ }//end dispatch
+
+ // runs on a worker
+ private void serve(Route route, Request req, Reply reply) {
+    this._esql.metrics().begin(route.name);
+    try {
+       route.endpoint.serve(req, reply);
+    } catch (ApiException e) {
+       reply.error(e.status, e.getMessage());
+    } catch (SQLException e) {
+       reply.error(500, e.getMessage());
+    } catch (IOException e) {
+       // the client went away or the request timed out.
+    } catch (Exception e) {
+       reply.error(500, e.toString());
+    } finally {
+       reply.finish();
+       this._esql.metrics().end();
+    }
+ }//end serve
+
+ private Request parse(HttpExchange exchange) throws IOException, ApiException {
+    Map<String, String> params = new HashMap<String, String>();
+    String query = exchange.getRequestURI().getRawQuery();
+    if (query != null)
+       parseForm(query, params);
+
+    // read the whole body, so the connection can be reused
+    InputStream in = exchange.getRequestBody();
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buf = new byte[4096];
+    for (int n; (n = in.read(buf)) > 0; ) {
+       body.write(buf, 0, n);
+       if (body.size() > MAX_BODY_BYTES)
+          throw new ApiException(413, "Request body too large");
+    }
+    in.close();
+    String text = body.toString("UTF-8").trim();
+    if (text.startsWith("{"))
+       parseJson(text, params);
+    else if (!text.isEmpty())
+       parseForm(text, params);
+
+    String raw = exchange.getRequestURI().getRawPath();
+    String[] path = raw.length() <= 1 ? new String[] { "" } : raw.substring(1).split("/");
+    for (int i = 0; i < path.length; ++i)
+       path[i] = URLDecoder.decode(path[i].replace("+", "%2B"), "UTF-8");
+    return new Request(exchange.getRequestMethod().toUpperCase(), path, params);
+ }//end parse
+
+ private static void parseForm(String form, Map<String, String> params) throws UnsupportedEncodingException {
+    for (String pair : form.split("&")) {
+       if (pair.isEmpty())
+          continue;
+       int eq = pair.indexOf('=');
+       String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+       params.put(name, eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+    }
+ }
+
+ /**
+  * Parses a flat JSON object of strings, numbers, booleans and nulls
+  * into params. Nested objects and arrays are rejected.
+  */
+ static void parseJson(String s, Map<String, String> params) throws ApiException {
+    int[] at = { 0 };
+    expect(s, at, '{');
+    if (peek(s, at) == '}') {
+       ++at[0];
+       return;
+    }
+    while (true) {
+       String name = string(s, at);
+       expect(s, at, ':');
+       char c = peek(s, at);
+       String value;
+       if (c == '"') {
+          value = string(s, at);
+       } else {
+          int start = at[0];
+          while (at[0] < s.length() && ",} \t\r\n".indexOf(s.charAt(at[0])) < 0)
+             ++at[0];
+          value = s.substring(start, at[0]);
+          if (value.isEmpty() || value.startsWith("{") || value.startsWith("["))
+             throw new ApiException(400, "Unsupported JSON value for " + name);
+          if (value.equals("null"))
+             value = null;
+       }
+       if (value != null)
+          params.put(name, value);
+       c = peek(s, at);
+       ++at[0];
+       if (c == '}')
+          return;
+       if (c != ',')
+          throw new ApiException(400, "Malformed JSON body");
+    }
+ }//end parseJson
+
+ private static char peek(String s, int[] at) throws ApiException {
+    while (at[0] < s.length() && Character.isWhitespace(s.charAt(at[0])))
+       ++at[0];
+    if (at[0] >= s.length())
+       throw new ApiException(400, "Malformed JSON body");
+    return s.charAt(at[0]);
+ }
+
+ private static void expect(String s, int[] at, char c) throws ApiException {
+    if (peek(s, at) != c)
+       throw new ApiException(400, "Malformed JSON body");
+    ++at[0];
+ }
+
+ private static String string(String s, int[] at) throws ApiException {
+    expect(s, at, '"');
+    StringBuilder sb = new StringBuilder();
+    while (at[0] < s.length()) {
+       char c = s.charAt(at[0]++);
+       if (c == '"')
+          return sb.toString();
+       if (c != '\\') {
+          sb.append(c);
+          continue;
+       }
+       if (at[0] >= s.length())
+          break;
+       char e = s.charAt(at[0]++);
+       switch (e) {
+          case 'n': sb.append('\n'); break;
+          case 'r': sb.append('\r'); break;
+          case 't': sb.append('\t'); break;
+          case 'b': sb.append('\b'); break;
+          case 'f': sb.append('\f'); break;
+          case 'u':
+             if (at[0] + 4 > s.length())
+                throw new ApiException(400, "Malformed JSON body");
+             try {
+                sb.append((char) Integer.parseInt(s.substring(at[0], at[0] + 4), 16));
+             } catch (NumberFormatException x) {
+                throw new ApiException(400, "Malformed JSON body");
+             }
+             at[0] += 4;
+             break;
+          default: sb.append(e);
+       }
+    }
+    throw new ApiException(400, "Malformed JSON body");
+ }//end string
+
+ private Route find(Request req) throws ApiException {
+    boolean pathKnown = false;
+    for (Route r : this._routes) {
+       if (r.matches(req.method, req.path))
+          return r;
+       if (r.matches(r.method, req.path))
+          pathKnown = true;
+    }
+    if (pathKnown)
+       throw new ApiException(405, "Method not allowed");
+    throw new ApiException(404, "No such endpoint");
+ }//end find
+
+ private void authorize(Route route, Request req, String authorization) throws ApiException {
+    if (route.access == PUBLIC)
+       return;
+    if (authorization == null || !authorization.startsWith("Bearer "))
+       throw new ApiException(401, "Log in first");
+    req.session = this._esql.sessions().get(authorization.substring(7).trim());
+    if (req.session == null)
+       throw new ApiException(401, "Your session has expired, please log in again");
+    if (route.access == MANAGER && !req.session.isManager())
+       throw new ApiException(403, "Managers only");
+    if (route.access == ADMIN && !req.session.isAdmin())
+       throw new ApiException(403, "Admins only");
+ }//end authorize
+
+ // -------------------------------------------------------------------
+ // responses
+ // -------------------------------------------------------------------
+
+ // builds a small JSON body
+ private static abstract class Body {
+    abstract void write(Json json) throws IOException;
+
+    String render() throws IOException {
+       StringWriter s = new StringWriter();
+       write(new Json(s));
+       return s.toString();
+    }
+ }
+
+ private static void writeStore(Json json, Store s) throws IOException {
+    json.field("storeID", s.storeID).field("latitude", s.latitude).field("longitude", s.longitude)
+        .field("managerID", s.managerID).field("dateEstablished", s.dateEstablished);
+ }
+
+ private static void writeProduct(Json json, Product p) throws IOException {
+    json.field("storeID", p.storeID).field("productName", p.productName)
+        .field("numberOfUnits", p.numberOfUnits).field("pricePerUnit", p.pricePerUnit);
+ }
+
+ // the password is never sent back
+ private static void writeUser(Json json, User u) throws IOException {
+    json.field("userID", u.userID).field("name", u.name)
+        .field("latitude", u.latitude).field("longitude", u.longitude).field("type", u.type);
+ }
+
+ private static String session(final SessionStore.Session s) throws IOException {
+    return new Body() {
+       void write(Json json) throws IOException {
+          json.begin('{').field("token", s.token).field("userID", s.userID).field("name", s.name)
+              .field("type", s.type).end('}');
+       }
+    }.render();
+ }
+
+ /**
+  * Streams a listing as a JSON array, fetching it a page at a time by
+  * key. The first page is fetched before the response starts, so a
+  * failing query still gets a proper error status; a failure after that
+  * ends the response early.
+  *
+  * @param after the key to start after, or null for the start
+  * @param limit the most rows to send
+  */
+ private static <T> void streamList(Reply reply, Pager.Query<T> query, T after, long limit,
+                                    RowWriter<T> writer) throws SQLException, IOException {
+    int n = (int) Math.min(STREAM_PAGE_SIZE, limit);
+    List<T> page = query.next(after, n);
+    Json json = reply.stream(200);
+    json.begin('[');
+    long sent = 0;
+    while (true) {
+       for (T row : page) {
+          json.begin('{');
+          writer.write(json, row);
+          json.end('}');
+       }
+       json.flush();
+       sent += page.size();
+       if (page.size() < n || sent >= limit)
+          break;
+       n = (int) Math.min(STREAM_PAGE_SIZE, limit - sent);
+       page = query.next(page.get(page.size() - 1), n);
+    }
+    json.end(']');
+    json.flush();
+ }//end streamList
+
+ // the search radius of a request, STORE_RADIUS unless given
+ private static double radius(Request req) throws ApiException {
+    if (!req.params.containsKey("radius"))
+       return Amazon.STORE_RADIUS;
+    double radius = req.doubleParam("radius");
+    if (!(radius > 0 && radius <= MAX_RADIUS))
+       throw new ApiException(400, "radius must be greater than 0 and at most " + MAX_RADIUS);
+    return radius;
+ }
+
+ private static int reportLimit(Request req) throws ApiException {
+    return reportLimit(req, "limit");
+ }
+
+ private static int reportLimit(Request req, String name) throws ApiException {
+    int limit = req.intParam(name, 5);
+    if (limit <= 0 || limit > MAX_REPORT_LIMIT)
+       throw new ApiException(400, name + " must be between 1 and " + MAX_REPORT_LIMIT);
+    return limit;
+ }
+
+ private static long listLimit(Request req) throws ApiException {
+    int limit = req.intParam("limit", Integer.MAX_VALUE);
+    if (limit <= 0)
+       throw new ApiException(400, "limit must be positive");
+    return limit;
+ }
+
+ // streams the rows a RowHandler report produces as a JSON array
+ private static String rows(final String[] names, final ResultSetReport report) throws SQLException, IOException {
+    final StringWriter s = new StringWriter();
+    final Json json = new Json(s);
+    json.begin('[');
+    report.run(new Amazon.RowHandler() {
+       public boolean row(ResultSet rs) throws SQLException {
+          try {
+             json.begin('{');
+             for (int i = 0; i < names.length; ++i)
+                json.field(names[i], rs.getObject(i + 1));
+             json.end('}');
+          } catch (IOException e) {
+             throw new SQLException(e.getMessage());
+          }
+          return true;
+       }
+    });
+    json.end(']');
+    return s.toString();
+ }//end rows
+
+ /**
+  * A report that hands its rows to a RowHandler.
+  */
+ interface ResultSetReport {
+    void run(Amazon.RowHandler handler) throws SQLException;
+ }
+
+ // -------------------------------------------------------------------
+ // endpoints
+ // -------------------------------------------------------------------
+
+ private void route(String method, String pattern, int access, Endpoint endpoint) {
+    this._routes.add(new Route(method, pattern, access, endpoint));
+ }
+
+ private void addRoutes() {
+    final Amazon esql = this._esql;
+
+    route("GET", "/health", PUBLIC, new Endpoint() {
+       public void serve(Request req, Reply reply) throws Exception {
+          reply.send(200, "{\"status\":\"ok\",\"sessions\":" + esql.sessions().size() + "}");
+       }
+    });
+
+    route("GET", "/metrics", PUBLIC, new Endpoint() {
+       public void serve(Request req, Reply reply) throws Exception {
+          reply.send(200, "text/plain; version=0.0.4; charset=utf-8", esql.metrics().prometheus());
+       }
+    });
+
+    route("POST", "/api/sessions", PUBLIC, new Endpoint() {
+       public void serve(Request req, Reply reply) throws Exception {
+          SessionStore.Session s = esql.authenticate(req.param("name"), req.param("password"));
+          if (s == null)
+             throw new ApiException(401, "UserName or password is wrong");
+          reply.send(201, session(s));
+       }
+    });
+
+    route("DELETE", "/api/sessions", USER, new Endpoint() {
+       public void serve(Request req, Reply reply) throws Exception {
+          esql.sessions().close(req.session.token);
+          reply.send(204, null);
+       }
+    });
+
+    route("POST", "/api/users", PUBLIC, new Endpoint() {
+       public void serve(Request req, Reply reply) throws Exception {
+          SessionStore.Session s = esql.register(req.param("name"), req.param("password"),
+             req.doubleParam("latitude"), req.doubleParam("longitude"), "Customer");
+          reply.send(201, session(s));
+       }
+    });
+
+    route("GET", "/api/stores", USER, new Endpoint() {
+       public void serve(Request req, final Reply reply) throws Exception {
+          double radius = radius(req);
+          final List<StoreIndex.Neighbor> nearby =
+             esql.storesWithin(req.doubleParam("latitude"), req.doubleParam("longitude"), radius);
+          reply.send(200, new Body() {
+             void write(Json json) throws IOException {
+                json.begin('[');
+                for (StoreIndex.Neighbor n : nearby) {
+                   json.begin('{');
+                   writeStore(json, n.store);
+                   json.field("distance", n.distance).end('}');
+                }
+                json.end(']');
+             }
+          }.render());
+       }
+    });
+
+    route("GET", "/api/stores/*/products", USER, new Endpoint() {
+       public void serve(Request req, Reply reply) throws Exception {
+          final int storeID = Request.parseInt("storeID", req.path[2]);
+          String after = req.param("after", null);
+          streamList(reply, new Pager.Query<Product>() {
+             public List<Product> next(Product last, int limit) throws SQLException {
+                return esql.listProducts(last, storeID, null, -1, limit);
+             }
+          }, after == null ? null : new Product(storeID, after, 0, 0), listLimit(req), new RowWriter<Product>() {
+             public void write(Json json, Product p) throws IOException {
+                writeProduct(json, p);
+             }
+          });
+       }
+    });
+
+    route("GET", "/api/stores/*/neighbors", USER, new Endpoint() {
+       public void serve(Request req, Reply reply) throws Exception {
+          final int storeID = Request.parseInt("storeID", req.path[2]);
+          if (esql.findStore(storeID) == null)
+             throw new ApiException(404, "Invalid storeID");
+          // answered from the distance matrix
+          final List<StoreIndex.Neighbor> stores = req.params.containsKey("n")
+             ? esql.distances().nearestStores(storeID, reportLimit(req, "n"))
+             : esql.distances().storesWithin(storeID, radius(req));
+          final Warehouse warehouse = esql.distances().nearestWarehouse(storeID);
+          reply.send(200, new Body() {
+             void write(Json json) throws IOException {
+                json.begin('{').name("nearestWarehouse");
+                if (warehouse == null)
+                   json.value(null);
+                else
+                   json.begin('{').field("warehouseID", warehouse.warehouseID)
+                       .field("distance", esql.distances().storeToWarehouse(storeID, warehouse.warehouseID)).end('}');
+                json.name("stores").begin('[');
+                for (StoreIndex.Neighbor n : stores) {
+                   json.begin('{');
+                   writeStore(json, n.store);
+                   json.field("distance", n.distance).end('}');
+                }
+                json.end(']').end('}');
+             }
+          }.render());
+       }
+    });
+
+    route("PUT", "/api/stores/*/products/*", USER, new Endpoint() {
+       public void serve(Request req, Reply reply) throws Exception {
+          int storeID = Request.parseInt("storeID", req.path[2]);
+          String productName = req.path[4];
+          int units = req.intParam("units");
+          double price = req.doubleParam("price");
+          boolean found;
+          if (req.session.isAdmin()) {
+             found = esql.writeProduct(storeID, productName, units, price);
+          } else if (req.session.isManager()) {
+             if (!esql.manages(req.session, storeID))
+                throw new ApiException(403, "You do not have permission to update products in this store");
+             found = esql.updateProduct(req.session.userID, storeID, productName, units, price);
+          } else {
+             throw new ApiException(403, "Managers only");
+          }
+          if (!found)
+             throw new ApiException(404, "Product not found in the specified store");
+          final Product p = new Product(storeID, productName, units, price);
+          reply.send(200, new Body() {
+             void write(Json json) throws IOException {
+                json.begin('{');
+                writeProduct(json, p);
+                json.end('}');
+             }
+          }.render());
+       }
+    });
+
+    route("POST", "/api/orders", USER, new Endpoint() {
+       public void serve(Request req, Reply reply) throws Exception {
+          int storeID = req.intParam("storeID");
+          String productName = req.param("productName");
+          int units = req.intParam("units");
+          Store store = esql.findStore(storeID);
+          if (store == null)
+             throw new ApiException(404, "Invalid storeID");
+          double distance = Amazon.calculateDistance(req.doubleParam("latitude"), req.doubleParam("longitude"),
+                                                     store.latitude, store.longitude);
+          if (distance > Amazon.STORE_RADIUS)
+             throw new ApiException(422, "Store is not within a " + Amazon.STORE_RADIUS + "-mile radius");
+
+          final OrderResult result = esql.submitOrder(req.session.userID, storeID, productName, units);
+          int status;
+          switch (result.status) {
+             case PLACED: status = 201; break;
+             case OUT_OF_STOCK: status = 409; break;
+             case NO_SUCH_PRODUCT: status = 404; break;
+             default: status = 400; break;
+          }
+          reply.send(status, new Body() {
+             void write(Json json) throws IOException {
+                json.begin('{').field("status", result.status.name());
+                if (result.placed())
+                   json.field("orderNumber", result.orderNumber);
+                if (result.remainingUnits >= 0)
+                   json.field("remainingUnits", result.remainingUnits);
+                json.end('}');
+             }
+          }.render());
+       }
+    });
+
+    route("GET", "/api/orders/recent", USER, new Endpoint() {
+       public void serve(Request req, Reply reply) throws Exception {
+          final List<Order> orders = esql.recentOrders(req.session.userID, reportLimit(req));
+          reply.send(200, new Body() {
+             void write(Json json) throws IOException {
+                json.begin('[');
+                for (Order o : orders)
+                   json.begin('{').field("orderNumber", o.orderNumber).field("storeID", o.storeID)
+                       .field("productName", o.productName).field("unitsOrdered", o.unitsOrdered)
+                       .field("orderTime", o.orderTime).end('}');
+                json.end(']');
+             }
+          }.render());
+       }
+    });
+
+    route("GET", "/api/manager/updates", MANAGER, new Endpoint() {
+       public void serve(final Request req, Reply reply) throws Exception {
+          final int limit = reportLimit(req);
+          reply.send(200, rows(new String[] { "storeID", "productName", "numberOfUnits", "pricePerUnit", "updatedOn" },
+             new ResultSetReport() {
+                public void run(Amazon.RowHandler handler) throws SQLException {
+                   esql.recentUpdates(req.session.userID, limit, handler);
+                }
+             }));
+       }
+    });
+
+    route("GET", "/api/manager/popular-products", MANAGER, new Endpoint() {
+       public void serve(final Request req, Reply reply) throws Exception {
+          final int limit = reportLimit(req);
+          reply.send(200, rows(new String[] { "productName", "orderCount" }, new ResultSetReport() {
+             public void run(Amazon.RowHandler handler) throws SQLException {
+                esql.popularProducts(req.session.userID, limit, handler);
+             }
+          }));
+       }
+    });
+
+    route("GET", "/api/manager/popular-customers", MANAGER, new Endpoint() {
+       public void serve(final Request req, Reply reply) throws Exception {
+          final int limit = reportLimit(req);
+          reply.send(200, rows(new String[] { "name", "latitude", "longitude", "type", "orderCount" },
+             new ResultSetReport() {
+                public void run(Amazon.RowHandler handler) throws SQLException {
+                   esql.popularCustomers(req.session.userID, limit, handler);
+                }
+             }));
+       }
+    });
+
+    route("POST", "/api/supply-requests", MANAGER, new Endpoint() {
+       public void serve(Request req, Reply reply) throws Exception {
+          int storeID = req.intParam("storeID");
+          String productName = req.param("productName");
+          int units = req.intParam("units");
+          int warehouseID = req.intParam("warehouseID", -1);
+          if (!esql.manages(req.session, storeID))
+             throw new ApiException(403, "You do not have permission to place supply requests for this store");
+          if (esql.findProduct(storeID, productName) == null)
+             throw new ApiException(404, "Product not found in the specified store");
+
+          final WarehouseRouter.Route route;
+          if (warehouseID < 0) {
+             route = esql.routeSupply(storeID, productName, units);
+             if (route == null)
+                throw new ApiException(503, "No warehouse can take this request right now");
+          } else {
+             route = esql.routeSupplyTo(storeID, productName, units, warehouseID);
+             if (route == null)
+                throw new ApiException(404, "Warehouse not found");
+          }
+          esql.placeSupplyRequests(req.session.userID, java.util.Collections.singletonList(route));
+          reply.send(201, new Body() {
+             void write(Json json) throws IOException {
+                json.begin('{').field("storeID", route.demand.storeID).field("productName", route.demand.productName)
+                    .field("unitsRequested", route.demand.units).field("warehouseID", route.warehouse.warehouseID)
+                    .field("distance", route.distance).end('}');
+             }
+          }.render());
+       }
+    });
+
+    route("GET", "/api/admin/users", ADMIN, new Endpoint() {
+       public void serve(Request req, Reply reply) throws Exception {
+          final String name = req.param("name", null);
+          final String type = req.param("type", null);
+          int after = req.intParam("after", 0);
+          streamList(reply, new Pager.Query<User>() {
+             public List<User> next(User last, int limit) throws SQLException {
+                return esql.listUsers(last == null ? 0 : last.userID, name, type, limit);
+             }
+          }, new User(after, null, null, 0, 0, null), listLimit(req), new RowWriter<User>() {
+             public void write(Json json, User u) throws IOException {
+                writeUser(json, u);
+             }
+          });
+       }
+    });
+
+    route("PUT", "/api/admin/users/*", ADMIN, new Endpoint() {
+       public void serve(Request req, Reply reply) throws Exception {
+          int userID = Request.parseInt("userID", req.path[3]);
+          final User u = new User(userID, req.param("name"), req.param("password"), req.doubleParam("latitude"),
+                                  req.doubleParam("longitude"), req.param("type"));
+          if (!esql.updateUser(u.userID, u.name, u.password, u.latitude, u.longitude, u.type))
+             throw new ApiException(404, "User not found");
+          reply.send(200, new Body() {
+             void write(Json json) throws IOException {
+                json.begin('{');
+                writeUser(json, u);
+                json.end('}');
+             }
+          }.render());
+       }
+    });
+
+    route("GET", "/api/admin/products", ADMIN, new Endpoint() {
+       public void serve(Request req, Reply reply) throws Exception {
+          final int storeID = req.intParam("storeID", -1);
+          final String name = req.param("name", null);
+          final int maxUnits = req.intParam("maxUnits", -1);
+          String afterName = req.param("afterName", null);
+          Product after = afterName == null ? null
+                                            : new Product(req.intParam("afterStoreID"), afterName, 0, 0);
+          streamList(reply, new Pager.Query<Product>() {
+             public List<Product> next(Product last, int limit) throws SQLException {
+                return esql.listProducts(last, storeID, name, maxUnits, limit);
+             }
+          }, after, listLimit(req), new RowWriter<Product>() {
+             public void write(Json json, Product p) throws IOException {
+                writeProduct(json, p);
+             }
+          });
+       }
+    });
+
+    route("POST", "/api/admin/popularity", ADMIN, new Endpoint() {
+       public void serve(Request req, Reply reply) throws Exception {
+          reply.send(200, "{\"orders\":" + esql.rebuildPopularity() + "}");
+       }
+    });
+ }//end addRoutes
+
+ /**
+  * The server entry point
+  *
+  * @param args <dbname> <port> <user> <listen port> [pool size] [workers] [metrics file]
+  */
+ public static void main(String[] args) throws Exception {
+    if (args.length < 4) {
+       System.err.println(
+          "Usage: " +
+          "java [-classpath <classpath>] " +
+          ApiServer.class.getName() +
+          " <dbname> <port> <user> <listen port> [pool size] [workers] [metrics file]");
+       return;
+    }
+
+    // read once by the JDK's HTTP server, so they must be set before it is created
+    if (System.getProperty("sun.net.httpserver.idleInterval") == null)
+       System.setProperty("sun.net.httpserver.idleInterval", Integer.toString(KEEP_ALIVE_SECONDS));
+    if (System.getProperty("sun.net.httpserver.maxReqTime") == null)
+       System.setProperty("sun.net.httpserver.maxReqTime", Integer.toString(MAX_REQUEST_SECONDS));
+
+    // use postgres JDBC driver.
+    Class.forName("org.postgresql.Driver");
+
+    ConnectionPool.Config config = new ConnectionPool.Config(
+       Amazon.url(args[0], args[1]), args[2], "");
+    config.maxSize = args.length > 4 ? Integer.parseInt(args[4]) : 16;
+    int workers = args.length > 5 ? Integer.parseInt(args[5]) : config.maxSize;
+
+    final Amazon esql = new Amazon(new ConnectionPool(config));
+    final ApiServer server = new ApiServer(esql, workers);
+    if (args.length > 6)
+       esql.metrics().startDumping(new java.io.File(args[6]), AmazonServer.METRICS_DUMP_MILLIS);
+
+    // keep logins across restarts
+    esql.sessions().load(esql);
+    esql.sessions().persistTo(esql, AmazonServer.SESSION_FLUSH_MILLIS);
+
+    // reorder low products in the background
+    esql.startReplenishment(AmazonServer.REPLENISH_WINDOW_MILLIS, AmazonServer.REPLENISH_LEAD_MILLIS);
+
+    server.start(Integer.parseInt(args[3]), Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+       public void run() {
+          try {
+             server.shutdown();
+          } catch (Exception e) {
+             // ignored.
+          }
+          esql.cleanup();
+       }
+    });
+
+    System.out.println("Listening on port " + server.port()
+       + " (pool size " + config.maxSize + ", workers " + workers + ")");
+ }//end main
+
+}//end ApiServer
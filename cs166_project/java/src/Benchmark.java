@@ -0,0 +1,629 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+
+/**
+* Benchmarks for the compute and query paths of Amazon. Each benchmark is
+* run for a warmup period and then a measurement period on one or more
+* threads; every call is timed, and the results (throughput and latency
+* percentiles) are written as CSV or JSON so runs of different builds can
+* be compared with the compare mode.
+*
+* The distance and radius scan benchmarks run without a database. The
+* query and end-to-end benchmarks need a database loaded with fixtures,
+* e.g. from DataGenerator and BulkLoader. placeOrder writes orders and
+* takes stock, so point it at a scratch database.
+*
+*/
+public class Benchmark {
+
+ // calls kept per thread for the percentiles; later calls are sampled
+ private static final int MAX_SAMPLES = 1 << 20;
+
+ /**
+  * One timed call.
+  */
+ interface Op {
+    /**
+     * @return false if the call ran but failed, e.g. a handler printed an error
+     */
+    boolean run() throws Exception;
+ }
+
+ /**
+  * A named benchmark. prepare() is called once on every worker thread
+  * before the warmup, so per-thread state such as bound session streams
+  * belongs there.
+  */
+ static abstract class Case {
+    final String name;
+
+    // how many operations one call performs; latencies are reported per operation
+    final int opsPerCall;
+
+    Case(String name, int opsPerCall) {
+       this.name = name;
+       this.opsPerCall = opsPerCall;
+    }
+
+    abstract Op prepare(Random random) throws Exception;
+ }//end Case
+
+ /**
+  * The measurements of one benchmark at one thread count.
+  */
+ static class Result {
+    String build;
+    String name;
+    int threads;
+    long ops;
+    double seconds;
+    long errors;
+    double opsPerSec;
+    // per-operation latencies in microseconds
+    double p50, p90, p99, p999, max;
+
+    String[] fields() {
+       return new String[] {
+          build, name, Integer.toString(threads), Long.toString(ops), fmt(seconds), fmt(opsPerSec),
+          fmt(p50), fmt(p90), fmt(p99), fmt(p999), fmt(max), Long.toString(errors)
+       };
+    }
+ }//end Result
+
+ private static final String[] HEADER = {
+    "build", "benchmark", "threads", "ops", "seconds", "ops_per_sec",
+    "p50_us", "p90_us", "p99_us", "p999_us", "max_us", "errors"
+ };
+
+ // settings with their defaults
+ private final Map<String, String> _settings = new LinkedHashMap<String, String>();
+
+ // keeps the JIT from discarding results of pure computations
+ static volatile double sink;
+
+ public Benchmark() {
+    this._settings.put("build", "local");
+    this._settings.put("threads", "1");
+    this._settings.put("warmup", "3");
+    this._settings.put("measure", "10");
+    this._settings.put("filter", "");
+    this._settings.put("format", "csv");
+    this._settings.put("out", "");
+    this._settings.put("seed", "166");
+    this._settings.put("stores", "10000");
+    this._settings.put("rows", "1000");
+    this._settings.put("db", "");
+    this._settings.put("port", "5432");
+    this._settings.put("user", System.getProperty("user.name"));
+ }//end Benchmark
+
+ private String get(String name) {
+    return this._settings.get(name);
+ }
+
+ private int getInt(String name) {
+    return Integer.parseInt(get(name));
+ }
+
+ /**
+  * Overrides a setting; see the constructor for the names.
+  */
+ public void set(String name, String value) {
+    if (!this._settings.containsKey(name))
+       throw new IllegalArgumentException("Unknown setting: " + name);
+    this._settings.put(name, value);
+ }
+
+ // -------------------------------------------------------------------
+ // benchmarks
+ // -------------------------------------------------------------------
+
+ // stores scattered uniformly over the fixture coordinate range
+ private List<Store> syntheticStores() {
+    Random r = new Random(Long.parseLong(get("seed")));
+    int n = getInt("stores");
+    List<Store> stores = new ArrayList<Store>(n);
+    for (int i = 1; i <= n; ++i)
+       stores.add(new Store(i, r.nextDouble() * 100, r.nextDouble() * 100, 1, null));
+    return stores;
+ }
+
+ private List<Case> computeCases() {
+    List<Case> cases = new ArrayList<Case>();
+    final List<Store> stores = syntheticStores();
+    final StoreIndex index = new StoreIndex(Amazon.distanceEngine().latitudeSpan(Amazon.STORE_RADIUS),
+                                            Amazon.distanceEngine());
+    index.reload(stores);
+
+    cases.add(new Case("calculateDistance", 10000) {
+       Op prepare(Random random) {
+          final double[] pts = new double[4096];
+          for (int i = 0; i < pts.length; ++i)
+             pts[i] = random.nextDouble() * 100;
+          return new Op() {
+             public boolean run() {
+                double sum = 0;
+                for (int i = 0; i < 10000; ++i) {
+                   int j = (i * 4) & (pts.length - 1);
+                   sum += Amazon.calculateDistance(pts[j], pts[j + 1], pts[j + 2], pts[j + 3]);
+                }
+                sink = sum;
+                return true;
+             }
+          };
+       }
+    });
+
+    // each distance mode, one call per pair against one batch call per 4096 points
+    for (final DistanceEngine engine : new DistanceEngine[] {
+          DistanceEngine.EUCLIDEAN, DistanceEngine.EQUIRECTANGULAR, DistanceEngine.HAVERSINE }) {
+       final double[] lats = new double[4096], lons = new double[4096];
+       Random r = new Random(Long.parseLong(get("seed")));
+       for (int i = 0; i < lats.length; ++i) {
+          lats[i] = r.nextDouble() * 100 - 50;
+          lons[i] = r.nextDouble() * 100;
+       }
+       final double[] cos = DistanceEngine.cosines(lats, lats.length);
+       final double[] out = new double[lats.length];
+
+       cases.add(new Case("distance." + engine.name(), lats.length) {
+          Op prepare(final Random random) {
+             return new Op() {
+                public boolean run() {
+                   double lat = lats[random.nextInt(lats.length)], lon = lons[random.nextInt(lons.length)];
+                   double sum = 0;
+                   for (int i = 0; i < lats.length; ++i)
+                      sum += engine.distance(lat, lon, lats[i], lons[i]);
+                   sink = sum;
+                   return true;
+                }
+             };
+          }
+       });
+
+       cases.add(new Case("distanceBatch." + engine.name(), lats.length) {
+          Op prepare(final Random random) {
+             return new Op() {
+                public boolean run() {
+                   engine.distances(lats[random.nextInt(lats.length)], lons[random.nextInt(lons.length)],
+                                    lats, lons, cos, lats.length, out);
+                   sink = out[random.nextInt(out.length)];
+                   return true;
+                }
+             };
+          }
+       });
+    }
+
+    // the full scan viewStores used to do, one calculateDistance per store
+    cases.add(new Case("radiusScan.linear", 1) {
+       Op prepare(final Random random) {
+          return new Op() {
+             public boolean run() {
+                double lat = random.nextDouble() * 100, lon = random.nextDouble() * 100;
+                List<Store> found = new ArrayList<Store>();
+                for (Store s : stores)
+                   if (Amazon.calculateDistance(lat, lon, s.latitude, s.longitude) <= Amazon.STORE_RADIUS)
+                      found.add(s);
+                sink = found.size();
+                return true;
+             }
+          };
+       }
+    });
+
+    cases.add(new Case("radiusScan.index", 1) {
+       Op prepare(final Random random) {
+          return new Op() {
+             public boolean run() {
+                sink = index.within(random.nextDouble() * 100, random.nextDouble() * 100,
+                                    Amazon.STORE_RADIUS).size();
+                return true;
+             }
+          };
+       }
+    });
+    return cases;
+ }//end computeCases
+
+ private List<Case> databaseCases(final Amazon esql) throws SQLException {
+    List<Case> cases = new ArrayList<Case>();
+    final int rows = getInt("rows");
+    final String rowQuery = "SELECT " + Order.COLUMNS + " FROM Orders ORDER BY orderNumber LIMIT ?";
+
+    cases.add(new Case("materialize.strings", 1) {
+       Op prepare(Random random) {
+          return new Op() {
+             public boolean run() throws SQLException {
+                return esql.executeQueryAndReturnResult(rowQuery, rows).size() >= 0;
+             }
+          };
+       }
+    });
+
+    cases.add(new Case("materialize.records", 1) {
+       Op prepare(Random random) {
+          return new Op() {
+             public boolean run() throws SQLException {
+                return esql.queryList(rowQuery, Order.MAPPER, rows).size() >= 0;
+             }
+          };
+       }
+    });
+
+    // inputs for the menu handlers and the users running them, read once up front
+    final List<SessionStore.Session> customers = LoadTest.openSessions(esql,
+       "SELECT userID, name, type FROM Users WHERE type = 'customer'");
+    final List<String[]> products = new ArrayList<String[]>();
+    esql.queryEach("SELECT p.storeID, p.productName, s.latitude, s.longitude " +
+                   "FROM Product p JOIN Store s ON s.storeID = p.storeID", new Amazon.RowHandler() {
+       public boolean row(ResultSet rs) throws SQLException {
+          products.add(new String[] { rs.getString(1), rs.getString(2).trim(),
+                                      rs.getString(3), rs.getString(4) });
+          return true;
+       }
+    });
+    final List<SessionStore.Session> managers = LoadTest.openSessions(esql,
+       "SELECT userID, name, type FROM Users WHERE userID IN (SELECT managerID FROM Store)");
+    if (customers.isEmpty() || products.isEmpty() || managers.isEmpty())
+       throw new SQLException("The database has no customers, products or managers to benchmark with");
+
+    cases.add(new HandlerCase("placeOrder") {
+       String script(Random random) {
+          // order from the store's own location so the radius check passes
+          String[] p = products.get(random.nextInt(products.size()));
+          return p[2] + "\n" + p[3] + "\n" + p[0] + "\n" + p[1] + "\n1\n";
+       }
+       void call(Random random) {
+          Amazon.placeOrder(esql, customers.get(random.nextInt(customers.size())));
+       }
+    });
+
+    cases.add(new HandlerCase("viewRecentOrders") {
+       String script(Random random) {
+          return "";
+       }
+       void call(Random random) {
+          Amazon.viewRecentOrders(esql, customers.get(random.nextInt(customers.size())));
+       }
+    });
+
+    cases.add(new HandlerCase("viewPopularProducts") {
+       String script(Random random) {
+          return "";
+       }
+       void call(Random random) {
+          Amazon.viewPopularProducts(esql, managers.get(random.nextInt(managers.size())));
+       }
+    });
+    return cases;
+ }//end databaseCases
+
+ /**
+  * Runs a menu handler end to end with scripted console input. The
+  * handlers report failures by printing "Error: ..." and returning, so
+  * the captured output is checked for that.
+  */
+ static abstract class HandlerCase extends Case {
+    HandlerCase(String name) {
+       super(name, 1);
+    }
+
+    abstract String script(Random random);
+
+    // runs the handler as a user picked with random
+    abstract void call(Random random);
+
+    Op prepare(final Random random) {
+       final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+       final PrintStream capture = new PrintStream(captured, false);
+       return new Op() {
+          public boolean run() {
+             captured.reset();
+             SessionIO.bind(new BufferedReader(new StringReader(script(random))), capture);
+             try {
+                call(random);
+             } finally {
+                SessionIO.unbind();
+             }
+             capture.flush();
+             return captured.toString().indexOf("Error:") < 0;
+          }
+       };
+    }
+ }//end HandlerCase
+
+ // -------------------------------------------------------------------
+ // runner
+ // -------------------------------------------------------------------
+
+ /**
+  * Runs one benchmark on the given number of threads.
+  */
+ Result run(final Case c, int threads) throws Exception {
+    final long warmupEnd = System.nanoTime() + (long) (Double.parseDouble(get("warmup")) * 1e9);
+    final long measureNanos = (long) (Double.parseDouble(get("measure")) * 1e9);
+    final long measureEnd = warmupEnd + measureNanos;
+    final long seed = Long.parseLong(get("seed"));
+
+    final long[][] samples = new long[threads][];
+    final int[] sampleCounts = new int[threads];
+    final long[] calls = new long[threads];
+    final long[] errors = new long[threads];
+    final Exception[] failures = new Exception[threads];
+
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; ++t) {
+       final int id = t;
+       workers[t] = new Thread(c.name + "-" + t) {
+          public void run() {
+             try {
+                Random random = new Random(seed + id);
+                Op op = c.prepare(random);
+                long[] buf = new long[1024];
+                int n = 0;
+                long seen = 0;
+                while (System.nanoTime() < warmupEnd)
+                   call(op);
+                while (true) {
+                   long start = System.nanoTime();
+                   if (start >= measureEnd)
+                      break;
+                   boolean ok = call(op);
+                   long elapsed = System.nanoTime() - start;
+                   if (!ok)
+                      ++errors[id];
+                   ++seen;
+                   if (n < MAX_SAMPLES) {
+                      if (n == buf.length)
+                         buf = Arrays.copyOf(buf, n * 2);
+                      buf[n++] = elapsed;
+                   } else {
+                      // reservoir sampling keeps the percentiles representative
+                      long k = (long) (random.nextDouble() * seen);
+                      if (k < MAX_SAMPLES)
+                         buf[(int) k] = elapsed;
+                   }
+                }
+                samples[id] = buf;
+                sampleCounts[id] = n;
+                calls[id] = seen;
+             } catch (Exception e) {
+                failures[id] = e;
+             }
+          }
+       };
+       workers[t].start();
+    }
+    for (Thread w : workers)
+       w.join();
+    for (Exception e : failures)
+       if (e != null)
+          throw e;
+
+    int total = 0;
+    for (int n : sampleCounts)
+       total += n;
+    long[] all = new long[total];
+    int pos = 0;
+    long totalCalls = 0, totalErrors = 0;
+    for (int t = 0; t < threads; ++t) {
+       System.arraycopy(samples[t], 0, all, pos, sampleCounts[t]);
+       pos += sampleCounts[t];
+       totalCalls += calls[t];
+       totalErrors += errors[t];
+    }
+    Arrays.sort(all);
+
+    Result r = new Result();
+    r.build = get("build");
+    r.name = c.name;
+    r.threads = threads;
+    r.ops = totalCalls * c.opsPerCall;
+    r.seconds = measureNanos / 1e9;
+    r.errors = totalErrors;
+    r.opsPerSec = r.ops / r.seconds;
+    double perOp = 1000.0 * c.opsPerCall;
+    r.p50 = percentile(all, 0.50) / perOp;
+    r.p90 = percentile(all, 0.90) / perOp;
+    r.p99 = percentile(all, 0.99) / perOp;
+    r.p999 = percentile(all, 0.999) / perOp;
+    r.max = all.length == 0 ? 0 : all[all.length - 1] / perOp;
+    return r;
+ }//end run
+
+ // counts an exception as a failed call, like a handler error
+ private static boolean call(Op op) {
+    try {
+       return op.run();
+    } catch (Exception e) {
+       return false;
+    }
+ }
+
+ private static double percentile(long[] sorted, double p) {
+    if (sorted.length == 0)
+       return 0;
+    int i = (int) Math.ceil(p * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+ }
+
+ /**
+  * Runs every selected benchmark at every thread count and writes the
+  * results.
+  */
+ public List<Result> runAll() throws Exception {
+    List<Case> cases = computeCases();
+    Amazon esql = null;
+    if (!get("db").isEmpty()) {
+       // use postgres JDBC driver.
+       Class.forName("org.postgresql.Driver");
+       ConnectionPool.Config config = new ConnectionPool.Config(
+          Amazon.url(get("db"), get("port")), get("user"), "");
+       int maxThreads = 1;
+       for (String t : get("threads").split(","))
+          maxThreads = Math.max(maxThreads, Integer.parseInt(t.trim()));
+       config.maxSize = maxThreads;
+       esql = new Amazon(new ConnectionPool(config));
+       cases.addAll(databaseCases(esql));
+    }
+
+    List<Result> results = new ArrayList<Result>();
+    try {
+       for (Case c : cases) {
+          if (!get("filter").isEmpty() && !c.name.matches(".*(" + get("filter") + ").*"))
+             continue;
+          for (String t : get("threads").split(",")) {
+             Result r = run(c, Integer.parseInt(t.trim()));
+             System.err.println(String.format("%-22s threads=%-3d %12.1f ops/s  p50=%.2fus  p99=%.2fus  errors=%d",
+                r.name, r.threads, r.opsPerSec, r.p50, r.p99, r.errors));
+             results.add(r);
+          }
+       }
+    } finally {
+       if (esql != null)
+          esql.cleanup();
+    }
+
+    PrintStream out = get("out").isEmpty() ? System.out
+                                           : new PrintStream(new FileOutputStream(get("out")), true);
+    try {
+       if (get("format").equals("json"))
+          writeJson(out, results);
+       else
+          writeCsv(out, results);
+    } finally {
+       if (out != System.out)
+          out.close();
+    }
+    return results;
+ }//end runAll
+
+ private static String fmt(double v) {
+    return String.format(java.util.Locale.ROOT, "%.3f", v);
+ }
+
+ private static void writeCsv(PrintStream out, List<Result> results) {
+    out.println(String.join(",", HEADER));
+    for (Result r : results)
+       out.println(String.join(",", r.fields()));
+ }
+
+ private static void writeJson(PrintStream out, List<Result> results) {
+    out.println("[");
+    for (int i = 0; i < results.size(); ++i) {
+       String[] f = results.get(i).fields();
+       StringBuilder sb = new StringBuilder("  {");
+       for (int k = 0; k < HEADER.length; ++k) {
+          sb.append(k == 0 ? "" : ", ").append('"').append(HEADER[k]).append("\": ");
+          if (k < 2)
+             sb.append('"').append(f[k].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+          else
+             sb.append(f[k]);
+       }
+       out.println(sb.append(i + 1 < results.size() ? "}," : "}"));
+    }
+    out.println("]");
+ }//end writeJson
+
+ // -------------------------------------------------------------------
+ // comparing runs
+ // -------------------------------------------------------------------
+
+ private static Map<String, String[]> readCsv(String file) throws IOException {
+    Map<String, String[]> rows = new LinkedHashMap<String, String[]>();
+    BufferedReader r = new BufferedReader(new FileReader(file));
+    try {
+       String line = r.readLine();
+       while ((line = r.readLine()) != null) {
+          if (line.trim().isEmpty())
+             continue;
+          String[] f = line.split(",");
+          rows.put(f[1] + "@" + f[2], f);
+       }
+    } finally {
+       r.close();
+    }
+    return rows;
+ }//end readCsv
+
+ /**
+  * Compares two CSV result files and prints the change in throughput and
+  * p99 per benchmark.
+  *
+  * @param tolerance allowed throughput drop and p99 rise, in percent
+  * @return the number of regressions beyond the tolerance
+  */
+ public static int compare(String baseline, String current, double tolerance) throws IOException {
+    Map<String, String[]> before = readCsv(baseline);
+    Map<String, String[]> after = readCsv(current);
+    int regressions = 0;
+    for (Map.Entry<String, String[]> e : after.entrySet()) {
+       String[] b = before.get(e.getKey());
+       if (b == null)
+          continue;
+       String[] a = e.getValue();
+       double throughput = change(Double.parseDouble(b[5]), Double.parseDouble(a[5]));
+       double p99 = change(Double.parseDouble(b[8]), Double.parseDouble(a[8]));
+       boolean regressed = throughput < -tolerance || p99 > tolerance;
+       if (regressed)
+          ++regressions;
+       System.out.println(String.format("%-30s ops/s %+7.1f%%  p99 %+7.1f%%%s",
+          e.getKey(), throughput, p99, regressed ? "  REGRESSION" : ""));
+    }
+    return regressions;
+ }//end compare
+
+ private static double change(double before, double after) {
+    return before == 0 ? 0 : (after - before) * 100.0 / before;
+ }
+
+ /**
+  * @param args [name=value ...], or compare <baseline.csv> <current.csv> [tolerance %]
+  */
+ public static void main(String[] args) throws Exception {
+    if (args.length > 0 && args[0].equals("compare")) {
+       if (args.length < 3) {
+          System.err.println(
+             "Usage: " +
+             "java [-classpath <classpath>] " +
+             Benchmark.class.getName() +
+             " compare <baseline.csv> <current.csv> [tolerance %]");
+          return;
+       }
+       int regressions = compare(args[1], args[2], args.length > 3 ? Double.parseDouble(args[3]) : 10);
+       System.exit(regressions == 0 ? 0 : 1);
+    }
+
+    Benchmark bench = new Benchmark();
+    for (String arg : args) {
+       int eq = arg.indexOf('=');
+       if (eq < 0) {
+          System.err.println(
+             "Usage: " +
+             "java [-classpath <classpath>] " +
+             Benchmark.class.getName() +
+             " [build=label] [threads=1,4] [warmup=s] [measure=s] [filter=regex] [format=csv|json]" +
+             " [out=file] [stores=N] [rows=N] [db=name port=N user=name]");
+          return;
+       }
+       bench.set(arg.substring(0, eq), arg.substring(eq + 1));
+    }
+    bench.runAll();
+ }//end main
+
+}//end Benchmark
@@ -0,0 +1,565 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+* Parallel bulk loader for the data/*.csv files, replacing the server-side
+* COPY statements of load_data.sql. Files are read on the client, so they
+* no longer have to sit at a fixed path on the database host.
+*
+* Tables are loaded level by level in foreign key order; tables on the same
+* level are loaded at the same time. Each file is parsed by one reader that
+* cuts it into chunks, and a shared pool of writers inserts the chunks as
+* JDBC batches of multi-row INSERTs, one transaction per chunk. Secondary
+* indexes are dropped before the load and rebuilt afterwards, and the
+* serial sequences are moved past the largest loaded key.
+*
+* Run it against freshly created, empty tables and before triggers.sql, as
+* create_db.sh does, so the Product change trigger does not fire per row.
+*
+*/
+public class BulkLoader {
+
+ // rows per INSERT statement
+ private static final int ROWS_PER_STATEMENT = 200;
+
+ // rows per chunk; each chunk is written in its own transaction
+ private static final int ROWS_PER_CHUNK = 10000;
+
+ /**
+  * Turns one CSV field into the value bound for its column.
+  */
+ interface Column {
+    Object parse(String field);
+ }
+
+ private static final Column INT = new Column() {
+    public Object parse(String field) {
+       return Integer.valueOf(field);
+    }
+ };
+
+ private static final Column TEXT = new Column() {
+    public Object parse(String field) {
+       return field;
+    }
+ };
+
+ private static final Column DECIMAL = new Column() {
+    public Object parse(String field) {
+       return Double.valueOf(field);
+    }
+ };
+
+ // dates come as M/D/YYYY in the fixtures; ISO dates are accepted too
+ private static final Column DATE = new Column() {
+    public Object parse(String field) {
+       String[] p = field.split("/");
+       if (p.length != 3)
+          return java.sql.Date.valueOf(field);
+       return java.sql.Date.valueOf(p[2] + "-" + p[0] + "-" + p[1]);
+    }
+ };
+
+ private static final Column TIMESTAMP = new Column() {
+    public Object parse(String field) {
+       return java.sql.Timestamp.valueOf(field.length() == 16 ? field + ":00" : field);
+    }
+ };
+
+ /**
+  * A table, the file it is loaded from, for serial keys the sequence to
+  * move past the loaded rows and, for tables partitioned by month, the
+  * column they are partitioned on.
+  */
+ static class Table {
+    final String name;
+    final String file;
+    final String[] columns;
+    final Column[] types;
+    final String sequence;
+    final int partitionColumn;
+
+    Table(String name, String file, String sequence, String[] columns, Column[] types) {
+       this(name, file, sequence, columns, types, -1);
+    }
+
+    Table(String name, String file, String sequence, String[] columns, Column[] types, int partitionColumn) {
+       this.name = name;
+       this.file = file;
+       this.sequence = sequence;
+       this.columns = columns;
+       this.types = types;
+       this.partitionColumn = partitionColumn;
+    }
+
+    // INSERT with the given number of row tuples
+    String insert(int rows) {
+       StringBuilder tuple = new StringBuilder("(");
+       for (int i = 0; i < this.columns.length; ++i)
+          tuple.append(i == 0 ? "?" : ", ?");
+       tuple.append(")");
+
+       StringBuilder sql = new StringBuilder("INSERT INTO ").append(this.name).append(" (");
+       for (int i = 0; i < this.columns.length; ++i)
+          sql.append(i == 0 ? "" : ", ").append(this.columns[i]);
+       sql.append(") VALUES ");
+       for (int r = 0; r < rows; ++r)
+          sql.append(r == 0 ? "" : ", ").append(tuple);
+       return sql.toString();
+    }
+ }//end Table
+
+ /**
+  * The tables of create_tables.sql grouped into foreign key levels: every
+  * table only references tables of earlier levels.
+  */
+ static final Table[][] LEVELS = {
+    {
+       new Table("Users", "users.csv", "users_userid_seq",
+          new String[] { "userID", "name", "password", "latitude", "longitude", "type" },
+          new Column[] { INT, TEXT, TEXT, DECIMAL, DECIMAL, TEXT }),
+       new Table("Warehouse", "warehouse.csv", null,
+          new String[] { "warehouseID", "area", "latitude", "longitude" },
+          new Column[] { INT, INT, DECIMAL, DECIMAL }),
+    },
+    {
+       new Table("Store", "stores.csv", null,
+          new String[] { "storeID", "latitude", "longitude", "managerID", "dateEstablished" },
+          new Column[] { INT, DECIMAL, DECIMAL, INT, DATE }),
+    },
+    {
+       new Table("Product", "products.csv", null,
+          new String[] { "storeID", "productName", "numberOfUnits", "pricePerUnit" },
+          new Column[] { INT, TEXT, INT, DECIMAL }),
+    },
+    {
+       new Table("Orders", "orders.csv", "orders_ordernumber_seq",
+          new String[] { "orderNumber", "customerID", "storeID", "productName", "unitsOrdered", "orderTime" },
+          new Column[] { INT, INT, INT, TEXT, INT, TIMESTAMP }, 5),
+       new Table("ProductSupplyRequests", "productSupplyRequests.csv", "productsupplyrequests_requestnumber_seq",
+          new String[] { "requestNumber", "managerID", "warehouseID", "storeID", "productName", "unitsRequested" },
+          new Column[] { INT, INT, INT, INT, TEXT, INT }),
+       new Table("ProductUpdates", "productUpdates.csv", "productupdates_updatenumber_seq",
+          new String[] { "updateNumber", "managerID", "storeID", "productName", "updatedOn" },
+          new Column[] { INT, INT, INT, TEXT, TIMESTAMP }, 4),
+    },
+ };
+
+ private final ConnectionPool _pool;
+ private final File _dataDir;
+
+ // chunk writers, shared by every table of a level
+ private final ExecutorService _writerPool;
+
+ // bounds the chunks parsed but not yet written, and so the memory in use
+ private final Semaphore _inFlight;
+
+ /**
+  * @param pool where connections come from; it should allow at least
+  *        writers connections
+  * @param dataDir the directory holding the CSV files
+  * @param writers the number of chunks written concurrently
+  */
+ public BulkLoader(ConnectionPool pool, File dataDir, int writers) {
+    if (writers <= 0)
+       throw new IllegalArgumentException("writers must be positive");
+    this._pool = pool;
+    this._dataDir = dataDir;
+    this._writerPool = Executors.newFixedThreadPool(writers);
+    this._inFlight = new Semaphore(writers * 2);
+ }//end BulkLoader
+
+ /**
+  * Loads every table, rebuilding indexes and sequences around the load,
+  * and prints a rows/sec line per table.
+  */
+ public void load() throws SQLException, IOException {
+    long start = System.currentTimeMillis();
+    List<String> indexes = dropSecondaryIndexes();
+    System.out.println("Dropped " + indexes.size() + " secondary indexes");
+
+    // the indexes are rebuilt even when the load fails part way
+    ExecutorService readers = Executors.newCachedThreadPool();
+    try {
+       for (Table[] level : LEVELS) {
+          List<Future<Long>> loads = new ArrayList<Future<Long>>();
+          for (final Table t : level) {
+             loads.add(readers.submit(new Callable<Long>() {
+                public Long call() throws Exception {
+                   return loadTable(t);
+                }
+             }));
+          }
+          for (Future<Long> f : loads)
+             await(f);
+       }
+    } finally {
+       readers.shutdown();
+       rebuildIndexes(indexes);
+    }
+
+    for (Table[] level : LEVELS) {
+       for (Table t : level) {
+          if (t.sequence != null)
+             execute("SELECT setval('" + t.sequence + "', COALESCE((SELECT max(" + t.columns[0]
+                     + ") FROM " + t.name + "), 0) + 1, false)");
+          execute("ANALYZE " + t.name);
+       }
+    }
+    // the course data has no delivery dates; its requests have all arrived
+    execute("UPDATE ProductSupplyRequests SET fulfilledOn = requestedOn WHERE fulfilledOn IS NULL");
+    System.out.println("Loaded everything in " + (System.currentTimeMillis() - start) + " ms");
+ }//end load
+
+ // runs the saved index definitions on the writer threads
+ private void rebuildIndexes(List<String> indexes) throws SQLException, IOException {
+    long start = System.currentTimeMillis();
+    List<Future<Object>> builds = new ArrayList<Future<Object>>();
+    for (final String ddl : indexes) {
+       builds.add(this._writerPool.submit(new Callable<Object>() {
+          public Object call() throws SQLException {
+             execute(ddl);
+             return null;
+          }
+       }));
+    }
+    for (Future<Object> f : builds)
+       await(f);
+    checkIndexesValid();
+    System.out.println("Rebuilt " + indexes.size() + " secondary indexes in "
+       + (System.currentTimeMillis() - start) + " ms");
+ }//end rebuildIndexes
+
+ // fails if a rebuilt index is not usable, e.g. a partitioned index missing a partition's copy
+ private void checkIndexesValid() throws SQLException {
+    ConnectionPool.PooledConnection pc = this._pool.borrow();
+    try {
+       Statement stmt = pc.connection().createStatement();
+       try {
+          ResultSet rs = stmt.executeQuery(
+             "SELECT ic.relname FROM pg_index i JOIN pg_class ic ON ic.oid = i.indexrelid " +
+             "JOIN pg_class tc ON tc.oid = i.indrelid " +
+             "WHERE NOT i.indisvalid AND tc.relname IN (" + tableNames() + ")");
+          StringBuilder invalid = new StringBuilder();
+          while (rs.next())
+             invalid.append(invalid.length() == 0 ? "" : ", ").append(rs.getString(1));
+          rs.close();
+          if (invalid.length() > 0)
+             throw new SQLException("Rebuilt indexes are not valid: " + invalid);
+       } finally {
+          stmt.close();
+       }
+    } finally {
+       this._pool.release(pc);
+    }
+ }//end checkIndexesValid
+
+ /**
+  * Stops the writer threads.
+  */
+ public void close() {
+    this._writerPool.shutdown();
+ }
+
+ // parses one file into chunks and hands them to the writers; returns the row count
+ private long loadTable(final Table t) throws Exception {
+    long start = System.currentTimeMillis();
+    if (t.partitionColumn >= 0)
+       createPartitions(t);
+    final AtomicLong rows = new AtomicLong();
+    List<Future<Object>> chunks = new ArrayList<Future<Object>>();
+
+    BufferedReader csv = new BufferedReader(new InputStreamReader(
+       new FileInputStream(new File(this._dataDir, t.file)), "UTF-8"), 1 << 16);
+    try {
+       // skip the header
+       String line = csv.readLine();
+       int lineNo = 1;
+       List<Object[]> chunk = new ArrayList<Object[]>(ROWS_PER_CHUNK);
+       while ((line = csv.readLine()) != null) {
+          ++lineNo;
+          line = line.trim();
+          if (line.isEmpty())
+             continue;
+          chunk.add(parse(t, line, lineNo));
+          if (chunk.size() == ROWS_PER_CHUNK) {
+             chunks.add(submit(t, chunk, rows));
+             chunk = new ArrayList<Object[]>(ROWS_PER_CHUNK);
+          }
+       }
+       if (!chunk.isEmpty())
+          chunks.add(submit(t, chunk, rows));
+    } finally {
+       csv.close();
+    }
+    for (Future<Object> f : chunks)
+       await(f);
+
+    long elapsed = Math.max(1, System.currentTimeMillis() - start);
+    System.out.println(t.name + ": " + rows.get() + " rows in " + elapsed + " ms ("
+       + (rows.get() * 1000L / elapsed) + " rows/sec)");
+    return rows.get();
+ }//end loadTable
+
+ // creates the monthly partitions the file's rows fall into, so they do not
+ // all land in the default partition and have to be moved afterwards; a
+ // schema without partitions.sql loaded is left alone
+ private void createPartitions(Table t) throws SQLException, IOException {
+    java.sql.Timestamp lo = null, hi = null;
+    BufferedReader csv = new BufferedReader(new InputStreamReader(
+       new FileInputStream(new File(this._dataDir, t.file)), "UTF-8"), 1 << 16);
+    try {
+       String line = csv.readLine();
+       int lineNo = 1;
+       while ((line = csv.readLine()) != null) {
+          ++lineNo;
+          line = line.trim();
+          if (line.isEmpty())
+             continue;
+          java.sql.Timestamp ts = (java.sql.Timestamp) parse(t, line, lineNo)[t.partitionColumn];
+          if (lo == null || ts.before(lo))
+             lo = ts;
+          if (hi == null || ts.after(hi))
+             hi = ts;
+       }
+    } finally {
+       csv.close();
+    }
+    if (lo == null)
+       return;
+
+    ConnectionPool.PooledConnection pc = this._pool.borrow();
+    try {
+       Statement probe = pc.connection().createStatement();
+       ResultSet rs = probe.executeQuery("SELECT 1 FROM pg_proc WHERE proname = 'create_month_partitions'");
+       boolean available = rs.next();
+       rs.close();
+       probe.close();
+       if (!available)
+          return;
+       PreparedStatement stmt = pc.connection().prepareStatement("SELECT create_month_partitions(?, ?, ?)");
+       stmt.setString(1, t.name);
+       stmt.setTimestamp(2, lo);
+       stmt.setTimestamp(3, hi);
+       stmt.executeQuery().close();
+       stmt.close();
+    } finally {
+       this._pool.release(pc);
+    }
+ }//end createPartitions
+
+ private static Object[] parse(Table t, String line, int lineNo) throws IOException {
+    String[] f = line.split(",", -1);
+    if (f.length != t.columns.length)
+       throw new IOException(t.file + ":" + lineNo + ": expected " + t.columns.length
+          + " fields, got " + f.length);
+    Object[] row = new Object[f.length];
+    try {
+       for (int i = 0; i < f.length; ++i) {
+          String v = f[i].trim();
+          row[i] = v.isEmpty() ? null : t.types[i].parse(v);
+       }
+    } catch (IllegalArgumentException e) {
+       throw new IOException(t.file + ":" + lineNo + ": " + e.getMessage());
+    }
+    return row;
+ }//end parse
+
+ private Future<Object> submit(final Table t, final List<Object[]> chunk, final AtomicLong rows)
+    throws InterruptedException {
+    this._inFlight.acquire();
+    try {
+       return this._writerPool.submit(new Callable<Object>() {
+          public Object call() throws SQLException {
+             try {
+                writeChunk(t, chunk);
+                rows.addAndGet(chunk.size());
+                return null;
+             } finally {
+                _inFlight.release();
+             }
+          }
+       });
+    } catch (RuntimeException e) {
+       this._inFlight.release();
+       throw e;
+    }
+ }//end submit
+
+ // inserts one chunk in a single transaction
+ private void writeChunk(Table t, List<Object[]> chunk) throws SQLException {
+    ConnectionPool.PooledConnection pc = this._pool.borrow();
+    Connection c = pc.connection();
+    boolean ok = false;
+    try {
+       c.setAutoCommit(false);
+       int full = chunk.size() / ROWS_PER_STATEMENT;
+       if (full > 0) {
+          PreparedStatement stmt = pc.statements().prepare(t.insert(ROWS_PER_STATEMENT));
+          try {
+             for (int s = 0; s < full; ++s) {
+                bind(stmt, chunk, s * ROWS_PER_STATEMENT, ROWS_PER_STATEMENT);
+                stmt.addBatch();
+             }
+             stmt.executeBatch();
+          } finally {
+             stmt.clearBatch();
+          }
+       }
+       int rest = chunk.size() - full * ROWS_PER_STATEMENT;
+       if (rest > 0) {
+          PreparedStatement stmt = pc.statements().prepare(t.insert(rest));
+          bind(stmt, chunk, full * ROWS_PER_STATEMENT, rest);
+          stmt.executeUpdate();
+       }
+       c.commit();
+       ok = true;
+    } finally {
+       try {
+          if (!ok)
+             c.rollback();
+          c.setAutoCommit(true);
+       } finally {
+          this._pool.release(pc);
+       }
+    }
+ }//end writeChunk
+
+ private static void bind(PreparedStatement stmt, List<Object[]> chunk, int from, int count)
+    throws SQLException {
+    int p = 1;
+    for (int r = from; r < from + count; ++r) {
+       for (Object v : chunk.get(r)) {
+          if (v == null)
+             stmt.setNull(p, java.sql.Types.VARCHAR);
+          else
+             stmt.setObject(p, v);
+          ++p;
+       }
+    }
+ }//end bind
+
+ // the loaded tables as a quoted SQL list
+ private static String tableNames() {
+    StringBuilder tables = new StringBuilder();
+    for (Table[] level : LEVELS)
+       for (Table t : level)
+          tables.append(tables.length() == 0 ? "'" : ", '").append(t.name.toLowerCase()).append("'");
+    return tables.toString();
+ }
+
+ // drops non-unique indexes that are not backing a constraint, returning their definitions.
+ // On a partitioned table pg_get_indexdef() gives "CREATE INDEX ... ON ONLY parent", which
+ // would rebuild the parent's index alone, invalid and without the partitions' copies that
+ // DROP INDEX removed with it; ONLY is stripped so the rebuild cascades to the partitions
+ private List<String> dropSecondaryIndexes() throws SQLException {
+    String tables = tableNames();
+    List<String> names = new ArrayList<String>();
+    List<String> ddl = new ArrayList<String>();
+    ConnectionPool.PooledConnection pc = this._pool.borrow();
+    try {
+       Statement stmt = pc.connection().createStatement();
+       try {
+          ResultSet rs = stmt.executeQuery(
+             "SELECT ic.relname, pg_get_indexdef(i.indexrelid) " +
+             "FROM pg_index i JOIN pg_class ic ON ic.oid = i.indexrelid " +
+             "JOIN pg_class tc ON tc.oid = i.indrelid " +
+             "WHERE NOT i.indisprimary AND NOT i.indisunique AND tc.relname IN (" + tables + ")");
+          while (rs.next()) {
+             names.add(rs.getString(1));
+             ddl.add(rs.getString(2).replaceFirst(" ON ONLY ", " ON "));
+          }
+          rs.close();
+          for (String name : names)
+             stmt.executeUpdate("DROP INDEX " + name);
+       } finally {
+          stmt.close();
+       }
+    } finally {
+       this._pool.release(pc);
+    }
+    return ddl;
+ }//end dropSecondaryIndexes
+
+ private void execute(String sql) throws SQLException {
+    ConnectionPool.PooledConnection pc = this._pool.borrow();
+    try {
+       Statement stmt = pc.connection().createStatement();
+       try {
+          stmt.execute(sql);
+       } finally {
+          stmt.close();
+       }
+    } finally {
+       this._pool.release(pc);
+    }
+ }//end execute
+
+ // waits for a task, unwrapping the failure it ended with
+ private static <T> T await(Future<T> f) throws SQLException, IOException {
+    try {
+       return f.get();
+    } catch (InterruptedException e) {
+       Thread.currentThread().interrupt();
+       throw new IOException("Interrupted while loading");
+    } catch (ExecutionException e) {
+       Throwable cause = e.getCause();
+       if (cause instanceof SQLException)
+          throw (SQLException) cause;
+       if (cause instanceof IOException)
+          throw (IOException) cause;
+       if (cause instanceof RuntimeException)
+          throw (RuntimeException) cause;
+       throw new IOException(String.valueOf(cause));
+    }
+ }//end await
+
+ /**
+  * @param args <dbname> <port> <user> <data dir> [writers]
+  */
+ public static void main(String[] args) throws Exception {
+    if (args.length < 4) {
+       System.err.println(
+          "Usage: " +
+          "java [-classpath <classpath>] " +
+          BulkLoader.class.getName() +
+          " <dbname> <port> <user> <data dir> [writers]");
+       return;
+    }
+
+    // use postgres JDBC driver.
+    Class.forName("org.postgresql.Driver");
+    int writers = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+    ConnectionPool.Config config = new ConnectionPool.Config(Amazon.url(args[0], args[1]), args[2], "");
+    config.maxSize = writers + 1;
+    config.borrowTimeoutMillis = 10 * 60 * 1000L;
+    ConnectionPool pool = new ConnectionPool(config);
+
+    BulkLoader loader = new BulkLoader(pool, new File(args[3]), writers);
+    try {
+       loader.load();
+    } finally {
+       loader.close();
+       pool.close();
+    }
+ }//end main
+
+}//end BulkLoader
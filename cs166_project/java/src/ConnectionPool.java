@@ -0,0 +1,313 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+
+/**
+* A small bounded JDBC connection pool. Connections are validated before
+* being handed out when they have sat idle for a while, are evicted once
+* idle for too long, and are retired after a maximum lifetime. Each pooled
+* connection carries its own prepared statement cache.
+*
+*/
+public class ConnectionPool {
+
+ /**
+  * Pool settings. The defaults suit a single console session; a server
+  * will usually raise maxSize.
+  */
+ public static class Config {
+    public String url;
+    public String user;
+    public String password = "";
+
+    // hard upper bound on open connections
+    public int maxSize = 8;
+
+    // how long borrow() waits for a free connection before failing
+    public long borrowTimeoutMillis = 5000;
+
+    // idle connections older than this are closed by the evictor
+    public long idleTimeoutMillis = 10 * 60 * 1000L;
+
+    // connections are retired once they have been open this long
+    public long maxLifetimeMillis = 30 * 60 * 1000L;
+
+    // idle connections older than this are re-validated on borrow
+    public long validateAfterMillis = 30 * 1000L;
+
+    // per-connection statement cache settings
+    public int statementCacheSize = Amazon.STATEMENT_CACHE_SIZE;
+    public int serverPrepareThreshold = Amazon.SERVER_PREPARE_THRESHOLD;
+
+    public Config(String url, String user, String password) {
+       this.url = url;
+       this.user = user;
+       this.password = password;
+    }
+ }//end Config
+
+ /**
+  * A physical connection owned by the pool.
+  */
+ public static class PooledConnection {
+    private final Connection _connection;
+    private final StatementCache _statements;
+    private final long _createdAt;
+    private long _lastUsed;
+
+    PooledConnection(Connection connection, StatementCache statements) {
+       this._connection = connection;
+       this._statements = statements;
+       this._createdAt = System.currentTimeMillis();
+       this._lastUsed = this._createdAt;
+    }
+
+    public Connection connection() {
+       return this._connection;
+    }
+
+    public StatementCache statements() {
+       return this._statements;
+    }
+ }//end PooledConnection
+
+ private final Config _config;
+
+ // names this pool's writes in ProductChanges; see origin()
+ private final String _origin = java.util.UUID.randomUUID().toString();
+
+ // idle connections, most recently used first
+ private final LinkedList<PooledConnection> _idle = new LinkedList<PooledConnection>();
+
+ // number of open connections, idle or borrowed
+ private int _total = 0;
+ private boolean _closed = false;
+
+ private final Timer _evictor;
+
+ /**
+  * Creates a pool. No connection is opened until the first borrow.
+  */
+ public ConnectionPool(Config config) {
+    this._config = config;
+    this._evictor = new Timer("ConnectionPool-evictor", true);
+    long period = Math.max(1000L, Math.min(config.idleTimeoutMillis, config.maxLifetimeMillis) / 2);
+    this._evictor.schedule(new TimerTask() {
+       public void run() {
+          evict();
+       }
+    }, period, period);
+ }//end ConnectionPool
+
+ /**
+  * Borrows a connection, opening a new one if the pool is below its
+  * maximum size, or waiting up to borrowTimeoutMillis for one to be
+  * released.
+  *
+  * @return a healthy connection; hand it back with release()
+  * @throws java.sql.SQLException when no connection could be obtained
+  */
+ public PooledConnection borrow() throws SQLException {
+    long deadline = System.currentTimeMillis() + this._config.borrowTimeoutMillis;
+    while (true) {
+       PooledConnection candidate = null;
+       synchronized (this) {
+          if (this._closed)
+             throw new SQLException("Connection pool is closed");
+          while (this._idle.isEmpty() && this._total >= this._config.maxSize) {
+             long remaining = deadline - System.currentTimeMillis();
+             if (remaining <= 0)
+                throw new SQLException("Timed out waiting for a database connection");
+             try {
+                wait(remaining);
+             } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted waiting for a database connection");
+             }
+             if (this._closed)
+                throw new SQLException("Connection pool is closed");
+          }
+          if (!this._idle.isEmpty())
+             candidate = this._idle.removeFirst();
+          else
+             ++this._total;
+       }
+
+       if (candidate == null)
+          return open();
+       if (isUsable(candidate))
+          return candidate;
+       destroy(candidate);
+    }
+ }//end borrow
+
+ /**
+  * Returns a borrowed connection to the pool. Any open transaction is
+  * rolled back first; connections that turn out to be broken are closed.
+  */
+ public void release(PooledConnection pc) {
+    boolean healthy = true;
+    try {
+       if (pc._connection.isClosed()) {
+          healthy = false;
+       } else if (!pc._connection.getAutoCommit()) {
+          pc._connection.rollback();
+          pc._connection.setAutoCommit(true);
+       }
+    } catch (SQLException e) {
+       healthy = false;
+    }
+
+    synchronized (this) {
+       if (healthy && !this._closed) {
+          pc._lastUsed = System.currentTimeMillis();
+          this._idle.addFirst(pc);
+          notify();
+          return;
+       }
+    }
+    destroy(pc);
+ }//end release
+
+ /**
+  * Opens a connection with the pool's settings that is not managed by the
+  * pool, for long-lived uses such as LISTEN that would otherwise pin a
+  * pool slot forever. The caller closes it.
+  */
+ public Connection openUnpooled() throws SQLException {
+    return DriverManager.getConnection(
+       this._config.url, this._config.user, this._config.password);
+ }
+
+ /**
+  * @return the id the product change trigger records for writes made
+  *         through this pool's connections (amazon.origin), so the
+  *         process's ProductChangeListener can tell its own writes apart
+  */
+ public String origin() {
+    return this._origin;
+ }
+
+ /**
+  * @return the number of open connections, idle or borrowed
+  */
+ public synchronized int size() {
+    return this._total;
+ }
+
+ /**
+  * @return the number of connections currently waiting in the pool
+  */
+ public synchronized int idle() {
+    return this._idle.size();
+ }
+
+ /**
+  * @return the most connections the pool will open at once
+  */
+ public int maxSize() {
+    return this._config.maxSize;
+ }
+
+ /**
+  * Closes every idle connection and refuses further borrows. Borrowed
+  * connections are closed as they are released.
+  */
+ public void close() {
+    this._evictor.cancel();
+    List<PooledConnection> drained;
+    synchronized (this) {
+       this._closed = true;
+       drained = new ArrayList<PooledConnection>(this._idle);
+       this._idle.clear();
+       notifyAll();
+    }
+    for (PooledConnection pc : drained)
+       destroy(pc);
+ }//end close
+
+ // opens a new physical connection; the slot has already been counted
+ private PooledConnection open() throws SQLException {
+    try {
+       Connection c = DriverManager.getConnection(
+          this._config.url, this._config.user, this._config.password);
+       try {
+          Statement stmt = c.createStatement();
+          stmt.execute("SET amazon.origin = '" + this._origin + "'");
+          stmt.close();
+       } catch (SQLException e) {
+          c.close();
+          throw e;
+       }
+       return new PooledConnection(c, new StatementCache(c,
+          this._config.statementCacheSize, this._config.serverPrepareThreshold));
+    } catch (SQLException e) {
+       synchronized (this) {
+          --this._total;
+          notify();
+       }
+       throw e;
+    }
+ }//end open
+
+ // checks lifetime and, if the connection sat idle for a while, pings it
+ private boolean isUsable(PooledConnection pc) {
+    long now = System.currentTimeMillis();
+    if (now - pc._createdAt >= this._config.maxLifetimeMillis)
+       return false;
+    if (now - pc._lastUsed < this._config.validateAfterMillis)
+       return true;
+    try {
+       Statement stmt = pc._connection.createStatement();
+       ResultSet rs = stmt.executeQuery("SELECT 1");
+       boolean ok = rs.next();
+       stmt.close();
+       return ok;
+    } catch (SQLException e) {
+       return false;
+    }
+ }//end isUsable
+
+ // closes a connection and frees its slot
+ private void destroy(PooledConnection pc) {
+    pc._statements.close();
+    try {
+       pc._connection.close();
+    } catch (SQLException e) {
+       // ignored.
+    }
+    synchronized (this) {
+       --this._total;
+       notify();
+    }
+ }//end destroy
+
+ // closes connections that have been idle too long or lived too long
+ private void evict() {
+    List<PooledConnection> expired = new ArrayList<PooledConnection>();
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+       Iterator<PooledConnection> it = this._idle.iterator();
+       while (it.hasNext()) {
+          PooledConnection pc = it.next();
+          if (now - pc._lastUsed >= this._config.idleTimeoutMillis
+                || now - pc._createdAt >= this._config.maxLifetimeMillis) {
+             it.remove();
+             expired.add(pc);
+          }
+       }
+    }
+    for (PooledConnection pc : expired)
+       destroy(pc);
+ }//end evict
+
+}//end ConnectionPool
@@ -0,0 +1,215 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+
+/**
+* Deterministic synthetic data generator for the data/*.csv fixtures. It
+* writes the same files and columns as the shipped fixtures, at any scale,
+* keeping every foreign key of create_tables.sql valid. Rows are written as
+* they are generated, so memory use only depends on the number of stores,
+* not on the number of users or orders.
+*
+* The same seed and settings always produce byte-identical files.
+*
+*/
+public class DataGenerator {
+
+ // the product catalog of the shipped fixtures; larger catalogs add numbered products
+ private static final String[] CATALOG = {
+    "7up", "Brisk", "Donuts", "Egg", "Hot and Sour Soup",
+    "Ice Cream", "Lemonade", "Orange Juice", "Pepsi", "Pudding"
+ };
+
+ // first order / update timestamp, matching the shipped fixtures
+ private static final long START_MILLIS = java.sql.Timestamp.valueOf("2016-09-10 13:01:00").getTime();
+
+ // settings with their defaults, which reproduce the size of the shipped fixtures
+ private final Map<String, Long> _settings = new LinkedHashMap<String, Long>();
+
+ public DataGenerator() {
+    this._settings.put("seed", 166L);
+    this._settings.put("users", 100L);
+    this._settings.put("stores", 20L);
+    this._settings.put("productsPerStore", 10L);
+    this._settings.put("warehouses", 5L);
+    this._settings.put("orders", 500L);
+    this._settings.put("supplyRequests", 10L);
+    this._settings.put("updates", 50L);
+ }//end DataGenerator
+
+ /**
+  * Overrides a setting; see the constructor for the names.
+  */
+ public void set(String name, long value) {
+    if (!this._settings.containsKey(name))
+       throw new IllegalArgumentException("Unknown setting: " + name);
+    if (value < 0 && !name.equals("seed"))
+       throw new IllegalArgumentException(name + " must not be negative");
+    this._settings.put(name, value);
+ }
+
+ private long get(String name) {
+    return this._settings.get(name);
+ }
+
+ /**
+  * Writes all seven CSV files into a directory.
+  */
+ public void generate(File dir) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs())
+       throw new IOException("Cannot create " + dir);
+
+    long users = get("users");
+    int stores = (int) get("stores");
+    int perStore = (int) get("productsPerStore");
+    int warehouses = (int) get("warehouses");
+    if (stores < 1 || perStore < 1 || warehouses < 1)
+       throw new IllegalArgumentException("stores, productsPerStore and warehouses must be positive");
+
+    // user 1 is the admin, users 2..managers+1 are managers, the rest customers
+    long managers = Math.max(1, Math.min(stores / 4 + 1, users - 2));
+    if (users < managers + 2)
+       throw new IllegalArgumentException("users must be at least " + (managers + 2));
+    long firstCustomer = managers + 2;
+
+    // each file gets its own random stream so changing one table's size does not reshuffle the others
+    long seed = get("seed");
+    int[] storeManager = new int[stores + 1];
+
+    Writer w = open(dir, "users.csv", "userID,name,password,latitude,longitude,type");
+    Random r = new Random(seed);
+    for (long id = 1; id <= users; ++id) {
+       String type = id == 1 ? "admin" : id < firstCustomer ? "manager" : "customer";
+       String name = id == 1 ? "Admin" : "User" + id;
+       w.write(id + "," + name + ",xyz," + coordinate(r) + "," + coordinate(r) + "," + type + "\n");
+    }
+    w.close();
+
+    w = open(dir, "stores.csv", "storeID,latitude,longitude,managerID,dateEstablished");
+    r = new Random(seed + 1);
+    for (int id = 1; id <= stores; ++id) {
+       storeManager[id] = 2 + r.nextInt((int) managers);
+       w.write(id + "," + coordinate(r) + "," + coordinate(r) + "," + storeManager[id] + ","
+               + (1 + r.nextInt(12)) + "/" + (1 + r.nextInt(28)) + "/" + (1950 + r.nextInt(60)) + "\n");
+    }
+    w.close();
+
+    w = open(dir, "products.csv", "storeID,productName,numberOfUnits,pricePerUnit");
+    r = new Random(seed + 2);
+    for (int id = 1; id <= stores; ++id)
+       for (int p = 0; p < perStore; ++p)
+          w.write(id + "," + productName(p) + "," + (10 + r.nextInt(90)) + "," + (1 + r.nextInt(9)) + "\n");
+    w.close();
+
+    w = open(dir, "warehouse.csv", "wareHouseID,area,latitude,longitude");
+    r = new Random(seed + 3);
+    for (int id = 1; id <= warehouses; ++id)
+       w.write(id + "," + (5000 + r.nextInt(20000)) + "," + coordinate(r) + "," + coordinate(r) + "\n");
+    w.close();
+
+    // orders go to customers; popular products are skewed towards the start of the catalog
+    w = open(dir, "orders.csv", "orderNumber,customerID,storeID,productName,unitsOrdered,orderTime");
+    r = new Random(seed + 4);
+    long customers = users - firstCustomer + 1;
+    long orders = get("orders");
+    for (long id = 1; id <= orders; ++id) {
+       long customer = firstCustomer + (long) (r.nextDouble() * customers);
+       int store = 1 + r.nextInt(stores);
+       w.write(id + "," + customer + "," + store + "," + productName(skewed(r, perStore)) + ","
+               + (1 + r.nextInt(50)) + "," + timestamp(id) + "\n");
+    }
+    w.close();
+
+    w = open(dir, "productSupplyRequests.csv",
+             "requestNumber,managerID,warehouseID,storeID,productName,unitsRequested");
+    r = new Random(seed + 5);
+    long requests = get("supplyRequests");
+    for (long id = 1; id <= requests; ++id) {
+       int store = 1 + r.nextInt(stores);
+       w.write(id + "," + storeManager[store] + "," + (1 + r.nextInt(warehouses)) + "," + store + ","
+               + productName(r.nextInt(perStore)) + "," + (1 + r.nextInt(100)) + "\n");
+    }
+    w.close();
+
+    w = open(dir, "productUpdates.csv", "updateNumber,managerID,storeID,productName,updatedOn");
+    r = new Random(seed + 6);
+    long updates = get("updates");
+    for (long id = 1; id <= updates; ++id) {
+       int store = 1 + r.nextInt(stores);
+       w.write(id + "," + storeManager[store] + "," + store + ","
+               + productName(r.nextInt(perStore)) + "," + timestamp(id) + "\n");
+    }
+    w.close();
+ }//end generate
+
+ private static Writer open(File dir, String name, String header) throws IOException {
+    Writer w = new BufferedWriter(new OutputStreamWriter(
+       new FileOutputStream(new File(dir, name)), "UTF-8"), 1 << 16);
+    w.write(header + "\n");
+    return w;
+ }
+
+ // a coordinate in [0, 100) with five decimals, like the shipped fixtures
+ private static String coordinate(Random r) {
+    long v = (long) (r.nextDouble() * 10000000L);
+    StringBuilder sb = new StringBuilder();
+    sb.append(v / 100000).append('.');
+    String frac = Long.toString(v % 100000);
+    for (int i = frac.length(); i < 5; ++i)
+       sb.append('0');
+    return sb.append(frac).toString();
+ }
+
+ private static String productName(int index) {
+    return index < CATALOG.length ? CATALOG[index] : "Product " + index;
+ }
+
+ // index in [0, n) where low indexes are much more likely (roughly Zipf-like)
+ private static int skewed(Random r, int n) {
+    double u = r.nextDouble();
+    return (int) Math.min(n - 1, Math.floor(Math.pow(n + 1, u * u) - 1));
+ }
+
+ // one row per second from the fixture start time
+ private static String timestamp(long index) {
+    String ts = new java.sql.Timestamp(START_MILLIS + (index - 1) * 1000L).toString();
+    // drop the trailing ".0" fraction
+    return ts.substring(0, 19);
+ }
+
+ /**
+  * @param args <output dir> [name=value ...], e.g. users=1000000 stores=10000 orders=100000000
+  */
+ public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+       System.err.println(
+          "Usage: " +
+          "java [-classpath <classpath>] " +
+          DataGenerator.class.getName() +
+          " <output dir> [seed=N] [users=N] [stores=N] [productsPerStore=N] [warehouses=N]" +
+          " [orders=N] [supplyRequests=N] [updates=N]");
+       return;
+    }
+
+    DataGenerator gen = new DataGenerator();
+    for (int i = 1; i < args.length; ++i) {
+       int eq = args[i].indexOf('=');
+       if (eq < 0)
+          throw new IllegalArgumentException("Expected name=value, got " + args[i]);
+       gen.set(args[i].substring(0, eq), Long.parseLong(args[i].substring(eq + 1)));
+    }
+
+    long start = System.currentTimeMillis();
+    gen.generate(new File(args[0]));
+    System.out.println("Generated " + gen._settings + " into " + args[0]
+       + " in " + (System.currentTimeMillis() - start) + " ms");
+ }//end main
+
+}//end DataGenerator
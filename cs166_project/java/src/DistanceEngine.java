@@ -0,0 +1,201 @@
+/**
+* Distance between latitude / longitude points, in one of three modes:
+*
+*  - EUCLIDEAN: straight-line distance on the raw coordinates, the
+*    original formula. Its unit is whatever the coordinates are in, which
+*    is only "miles" for the synthetic [0, 100] coordinates of the course
+*    data set;
+*  - HAVERSINE: great-circle distance in miles on a spherical Earth, exact
+*    to the model at any distance;
+*  - EQUIRECTANGULAR: flat-Earth approximation in miles, scaling the
+*    longitude difference by the cosines of both latitudes. Within a
+*    fraction of a percent of haversine at store radius distances, and as
+*    cheap as the Euclidean formula.
+*
+* Longitude differences are taken the short way round, within [-180, 180]
+* degrees, so points either side of the antimeridian are close. Haversine
+* needs no adjustment, its sines of half the difference already being
+* periodic.
+*
+* The batch form computes the distances from one point to many, given as
+* packed coordinate arrays. Its loops are straight-line arithmetic over
+* primitive arrays with no calls or branches in the Euclidean and
+* equirectangular modes, which HotSpot's superword pass compiles to SIMD
+* instructions. The JDK Vector API is not used; it is an incubator module
+* in JDK 17 and would need --add-modules at every build and run.
+*
+*/
+public abstract class DistanceEngine {
+
+ // mean Earth radius
+ public static final double EARTH_RADIUS_MILES = 3958.8;
+
+ // miles per degree of latitude (and of longitude at the equator)
+ public static final double MILES_PER_DEGREE = EARTH_RADIUS_MILES * Math.PI / 180;
+
+ /**
+  * @return the distance between two points
+  */
+ public abstract double distance(double lat1, double lon1, double lat2, double lon2);
+
+ /**
+  * Computes the distances from one point to n points.
+  *
+  * @param lats the points' latitudes
+  * @param lons the points' longitudes
+  * @param cosLats cosines of the points' latitudes, see cosines()
+  * @param out receives the n distances
+  */
+ public abstract void distances(double lat, double lon, double[] lats, double[] lons, double[] cosLats,
+                                int n, double[] out);
+
+ /**
+  * @return how many degrees of latitude a distance spans
+  */
+ public abstract double latitudeSpan(double distance);
+
+ /**
+  * @return how many degrees of longitude a distance spans at a latitude;
+  *         360 near the poles, where it covers every longitude
+  */
+ public abstract double longitudeSpan(double latitude, double distance);
+
+ /**
+  * @return the name accepted by forName()
+  */
+ public abstract String name();
+
+ /**
+  * @return the cosines of latitudes, for the batch form
+  */
+ public static double[] cosines(double[] lats, int n) {
+    double[] cos = new double[lats.length];
+    for (int i = 0; i < n; ++i)
+       cos[i] = Math.cos(Math.toRadians(lats[i]));
+    return cos;
+ }
+
+ /**
+  * @return the engine with the given name: euclidean, haversine or equirectangular
+  */
+ public static DistanceEngine forName(String name) {
+    if (name.equalsIgnoreCase(HAVERSINE.name()))
+       return HAVERSINE;
+    if (name.equalsIgnoreCase(EQUIRECTANGULAR.name()))
+       return EQUIRECTANGULAR;
+    if (name.equalsIgnoreCase(EUCLIDEAN.name()))
+       return EUCLIDEAN;
+    throw new IllegalArgumentException("Unknown distance mode: " + name);
+ }
+
+ // a longitude difference brought into [-180, 180]; branch free, so the
+ // batch loops stay vectorizable
+ static double wrapLongitude(double d) {
+    return d - 360 * Math.rint(d / 360);
+ }
+
+ // longitude degrees spanned by a distance in miles at a latitude
+ private static double milesLongitudeSpan(double latitude, double distance) {
+    double cos = Math.cos(Math.toRadians(Math.min(90, Math.abs(latitude) + distance / MILES_PER_DEGREE)));
+    double span = distance / (MILES_PER_DEGREE * cos);
+    return cos <= 0 || span >= 360 ? 360 : span;
+ }
+
+ public static final DistanceEngine EUCLIDEAN = new DistanceEngine() {
+    public double distance(double lat1, double lon1, double lat2, double lon2) {
+       double t1 = (lat1 - lat2) * (lat1 - lat2);
+       double dx = wrapLongitude(lon1 - lon2);
+       double t2 = dx * dx;
+       return Math.sqrt(t1 + t2);
+    }
+
+    public void distances(double lat, double lon, double[] lats, double[] lons, double[] cosLats,
+                          int n, double[] out) {
+       for (int i = 0; i < n; ++i) {
+          double dy = lats[i] - lat;
+          double dx = lons[i] - lon;
+          dx -= 360 * Math.rint(dx / 360);
+          out[i] = Math.sqrt(dy * dy + dx * dx);
+       }
+    }
+
+    public double latitudeSpan(double distance) {
+       return distance;
+    }
+
+    public double longitudeSpan(double latitude, double distance) {
+       return distance;
+    }
+
+    public String name() {
+       return "euclidean";
+    }
+ };
+
+ public static final DistanceEngine HAVERSINE = new DistanceEngine() {
+    public double distance(double lat1, double lon1, double lat2, double lon2) {
+       double sinLat = Math.sin(Math.toRadians(lat2 - lat1) / 2);
+       double sinLon = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+       double a = sinLat * sinLat
+          + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinLon * sinLon;
+       return 2 * EARTH_RADIUS_MILES * Math.asin(Math.sqrt(Math.min(1, a)));
+    }
+
+    public void distances(double lat, double lon, double[] lats, double[] lons, double[] cosLats,
+                          int n, double[] out) {
+       double cos0 = Math.cos(Math.toRadians(lat));
+       double half = Math.PI / 360;
+       for (int i = 0; i < n; ++i) {
+          double sinLat = Math.sin((lats[i] - lat) * half);
+          double sinLon = Math.sin((lons[i] - lon) * half);
+          double a = sinLat * sinLat + cos0 * cosLats[i] * sinLon * sinLon;
+          out[i] = 2 * EARTH_RADIUS_MILES * Math.asin(Math.sqrt(Math.min(1, a)));
+       }
+    }
+
+    public double latitudeSpan(double distance) {
+       return distance / MILES_PER_DEGREE;
+    }
+
+    public double longitudeSpan(double latitude, double distance) {
+       return milesLongitudeSpan(latitude, distance);
+    }
+
+    public String name() {
+       return "haversine";
+    }
+ };
+
+ public static final DistanceEngine EQUIRECTANGULAR = new DistanceEngine() {
+    public double distance(double lat1, double lon1, double lat2, double lon2) {
+       double cos = Math.sqrt(Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)));
+       double dy = lat2 - lat1;
+       double dx = wrapLongitude(lon2 - lon1) * cos;
+       return MILES_PER_DEGREE * Math.sqrt(dy * dy + dx * dx);
+    }
+
+    public void distances(double lat, double lon, double[] lats, double[] lons, double[] cosLats,
+                          int n, double[] out) {
+       double cos0 = Math.cos(Math.toRadians(lat));
+       for (int i = 0; i < n; ++i) {
+          double dy = lats[i] - lat;
+          double dx = lons[i] - lon;
+          dx = (dx - 360 * Math.rint(dx / 360)) * Math.sqrt(cos0 * cosLats[i]);
+          out[i] = MILES_PER_DEGREE * Math.sqrt(dy * dy + dx * dx);
+       }
+    }
+
+    public double latitudeSpan(double distance) {
+       return distance / MILES_PER_DEGREE;
+    }
+
+    public double longitudeSpan(double latitude, double distance) {
+       return milesLongitudeSpan(latitude, distance);
+    }
+
+    public String name() {
+       return "equirectangular";
+    }
+ };
+
+}//end DistanceEngine
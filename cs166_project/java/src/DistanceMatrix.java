@@ -0,0 +1,401 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+
+/**
+* Precomputed distances between stores and from stores to warehouses,
+* kept in flat double[] matrices indexed by slot so that nearest-warehouse
+* and store-neighborhood questions are answered by scanning one row,
+* without touching the database or recomputing a distance.
+*
+* Changes are applied incrementally: adding, moving or removing one store
+* recomputes only its row and column (O(stores + warehouses)), and a
+* warehouse only its column. sync() compares a fresh read of the tables
+* with the current contents and applies just the differences.
+*
+* Rows are computed with the batch form of a DistanceEngine over packed
+* coordinate arrays.
+*
+* The store-to-store matrix takes 8 * capacity^2 bytes, so it is only kept
+* up to MAX_DENSE_STORES stores, and it grows by a quarter at a time
+* rather than doubling; past that, store-to-store queries fall back to
+* computing distances from the packed coordinates (still without the
+* database). The store-to-warehouse matrix is always kept.
+*
+*/
+public class DistanceMatrix {
+
+ // most stores for which the store-to-store matrix is kept (32 MiB)
+ public static final int MAX_DENSE_STORES = 2048;
+
+ private static final int INITIAL_CAPACITY = 16;
+
+ private final DistanceEngine _engine;
+
+ // stores and warehouses by slot; slots [0, count) are in use
+ private Store[] _stores = new Store[INITIAL_CAPACITY];
+ private int _storeCount = 0;
+ private Warehouse[] _warehouses = new Warehouse[INITIAL_CAPACITY];
+ private int _warehouseCount = 0;
+
+ // packed coordinates by slot, and the cosines of the latitudes
+ private double[] _storeLat = new double[INITIAL_CAPACITY];
+ private double[] _storeLon = new double[INITIAL_CAPACITY];
+ private double[] _storeCos = new double[INITIAL_CAPACITY];
+ private double[] _warehouseLat = new double[INITIAL_CAPACITY];
+ private double[] _warehouseLon = new double[INITIAL_CAPACITY];
+ private double[] _warehouseCos = new double[INITIAL_CAPACITY];
+
+ // one row of batch results
+ private double[] _scratch = new double[INITIAL_CAPACITY];
+
+ // slot by ID
+ private final IntMap<Integer> _storeSlot = new IntMap<Integer>();
+ private final IntMap<Integer> _warehouseSlot = new IntMap<Integer>();
+
+ // distance between store slots i and j at [i * _stores.length + j], or null past MAX_DENSE_STORES
+ private double[] _storeToStore = new double[INITIAL_CAPACITY * INITIAL_CAPACITY];
+
+ // distance from store slot i to warehouse slot w at [i * _warehouses.length + w]
+ private double[] _storeToWarehouse = new double[INITIAL_CAPACITY * INITIAL_CAPACITY];
+
+ /**
+  * @param engine the distance formula; should match the one used elsewhere
+  */
+ public DistanceMatrix(DistanceEngine engine) {
+    this._engine = engine;
+ }
+
+ private double distance(Store a, Store b) {
+    return this._engine.distance(a.latitude, a.longitude, b.latitude, b.longitude);
+ }
+
+ // records a store's coordinates in its slot
+ private void placeStore(int i, Store store) {
+    this._stores[i] = store;
+    this._storeLat[i] = store.latitude;
+    this._storeLon[i] = store.longitude;
+    this._storeCos[i] = Math.cos(Math.toRadians(store.latitude));
+ }
+
+ private void placeWarehouse(int w, Warehouse warehouse) {
+    this._warehouses[w] = warehouse;
+    this._warehouseLat[w] = warehouse.latitude;
+    this._warehouseLon[w] = warehouse.longitude;
+    this._warehouseCos[w] = Math.cos(Math.toRadians(warehouse.latitude));
+ }
+
+ private double[] scratch(int n) {
+    if (this._scratch.length < n)
+       this._scratch = new double[Math.max(n, this._scratch.length * 2)];
+    return this._scratch;
+ }
+
+ // -------------------------------------------------------------------
+ // changes
+ // -------------------------------------------------------------------
+
+ /**
+  * Adds a store or updates its location, recomputing its row and column.
+  */
+ public synchronized void putStore(Store store) {
+    Integer slot = this._storeSlot.get(store.storeID);
+    int i;
+    if (slot != null) {
+       i = slot;
+       Store old = this._stores[i];
+       placeStore(i, store);
+       if (old.latitude == store.latitude && old.longitude == store.longitude)
+          return;
+    } else {
+       growStores(this._storeCount + 1);
+       i = this._storeCount++;
+       placeStore(i, store);
+       this._storeSlot.put(store.storeID, i);
+    }
+
+    int stride = this._stores.length;
+    if (this._storeToStore != null) {
+       double[] row = scratch(this._storeCount);
+       this._engine.distances(store.latitude, store.longitude, this._storeLat, this._storeLon, this._storeCos,
+                              this._storeCount, row);
+       row[i] = 0;
+       System.arraycopy(row, 0, this._storeToStore, i * stride, this._storeCount);
+       for (int j = 0; j < this._storeCount; ++j)
+          this._storeToStore[j * stride + i] = row[j];
+    }
+    double[] row = scratch(this._warehouseCount);
+    this._engine.distances(store.latitude, store.longitude, this._warehouseLat, this._warehouseLon,
+                           this._warehouseCos, this._warehouseCount, row);
+    System.arraycopy(row, 0, this._storeToWarehouse, i * this._warehouses.length, this._warehouseCount);
+ }//end putStore
+
+ /**
+  * Removes a store. The last store moves into its slot, so the rows stay
+  * packed.
+  *
+  * @return whether the store was present
+  */
+ public synchronized boolean removeStore(int storeID) {
+    Integer slot = this._storeSlot.remove(storeID);
+    if (slot == null)
+       return false;
+    int i = slot, last = --this._storeCount;
+    if (i != last) {
+       Store moved = this._stores[last];
+       placeStore(i, moved);
+       this._storeSlot.put(moved.storeID, i);
+       int stride = this._stores.length;
+       if (this._storeToStore != null) {
+          for (int j = 0; j < this._storeCount; ++j) {
+             double d = j == i ? 0 : this._storeToStore[last * stride + j];
+             this._storeToStore[i * stride + j] = d;
+             this._storeToStore[j * stride + i] = d;
+          }
+       }
+       int wStride = this._warehouses.length;
+       System.arraycopy(this._storeToWarehouse, last * wStride, this._storeToWarehouse, i * wStride,
+                        this._warehouseCount);
+    }
+    this._stores[last] = null;
+    return true;
+ }//end removeStore
+
+ /**
+  * Adds a warehouse or updates its location, recomputing its column.
+  */
+ public synchronized void putWarehouse(Warehouse warehouse) {
+    Integer slot = this._warehouseSlot.get(warehouse.warehouseID);
+    int w;
+    if (slot != null) {
+       w = slot;
+       Warehouse old = this._warehouses[w];
+       placeWarehouse(w, warehouse);
+       if (old.latitude == warehouse.latitude && old.longitude == warehouse.longitude)
+          return;
+    } else {
+       growWarehouses(this._warehouseCount + 1);
+       w = this._warehouseCount++;
+       placeWarehouse(w, warehouse);
+       this._warehouseSlot.put(warehouse.warehouseID, w);
+    }
+    double[] column = scratch(this._storeCount);
+    this._engine.distances(warehouse.latitude, warehouse.longitude, this._storeLat, this._storeLon,
+                           this._storeCos, this._storeCount, column);
+    int wStride = this._warehouses.length;
+    for (int i = 0; i < this._storeCount; ++i)
+       this._storeToWarehouse[i * wStride + w] = column[i];
+ }//end putWarehouse
+
+ /**
+  * Removes a warehouse; the last warehouse moves into its column.
+  *
+  * @return whether the warehouse was present
+  */
+ public synchronized boolean removeWarehouse(int warehouseID) {
+    Integer slot = this._warehouseSlot.remove(warehouseID);
+    if (slot == null)
+       return false;
+    int w = slot, last = --this._warehouseCount;
+    if (w != last) {
+       Warehouse moved = this._warehouses[last];
+       placeWarehouse(w, moved);
+       this._warehouseSlot.put(moved.warehouseID, w);
+       int wStride = this._warehouses.length;
+       for (int i = 0; i < this._storeCount; ++i)
+          this._storeToWarehouse[i * wStride + w] = this._storeToWarehouse[i * wStride + last];
+    }
+    this._warehouses[last] = null;
+    return true;
+ }//end removeWarehouse
+
+ /**
+  * Brings the stores in line with a fresh read of the Store table,
+  * touching only the rows that were added, moved or removed.
+  */
+ public synchronized void syncStores(List<Store> stores) {
+    IntMap<Store> fresh = new IntMap<Store>();
+    for (Store s : stores)
+       fresh.put(s.storeID, s);
+    for (int i = this._storeCount - 1; i >= 0; --i)
+       if (fresh.get(this._stores[i].storeID) == null)
+          removeStore(this._stores[i].storeID);
+    // one re-layout for a bulk load instead of one per growth step
+    growStores(stores.size());
+    for (Store s : stores)
+       putStore(s);
+ }//end syncStores
+
+ /**
+  * Brings the warehouses in line with a fresh read of the Warehouse table.
+  */
+ public synchronized void syncWarehouses(List<Warehouse> warehouses) {
+    IntMap<Warehouse> fresh = new IntMap<Warehouse>();
+    for (Warehouse w : warehouses)
+       fresh.put(w.warehouseID, w);
+    for (int w = this._warehouseCount - 1; w >= 0; --w)
+       if (fresh.get(this._warehouses[w].warehouseID) == null)
+          removeWarehouse(this._warehouses[w].warehouseID);
+    for (Warehouse w : warehouses)
+       putWarehouse(w);
+ }//end syncWarehouses
+
+ // makes room for n stores, re-laying out the matrices with the new stride
+ private void growStores(int n) {
+    if (n <= this._stores.length)
+       return;
+    int oldCap = this._stores.length, cap = Math.max(n, oldCap * 2);
+    boolean dense = this._storeToStore != null && n <= MAX_DENSE_STORES;
+    // the matrix is quadratic in the capacity, so doubling would overshoot
+    // by up to four times the memory actually needed
+    if (dense)
+       cap = Math.min(Math.max(n, oldCap + oldCap / 4), MAX_DENSE_STORES);
+    Store[] stores = new Store[cap];
+    System.arraycopy(this._stores, 0, stores, 0, this._storeCount);
+    this._stores = stores;
+
+    if (this._storeToStore != null) {
+       if (!dense) {
+          this._storeToStore = null;
+       } else {
+          double[] ss = new double[cap * cap];
+          for (int i = 0; i < this._storeCount; ++i)
+             System.arraycopy(this._storeToStore, i * oldCap, ss, i * cap, this._storeCount);
+          this._storeToStore = ss;
+       }
+    }
+
+    cap = this._stores.length;
+    this._storeLat = java.util.Arrays.copyOf(this._storeLat, cap);
+    this._storeLon = java.util.Arrays.copyOf(this._storeLon, cap);
+    this._storeCos = java.util.Arrays.copyOf(this._storeCos, cap);
+
+    int wStride = this._warehouses.length;
+    double[] sw = new double[cap * wStride];
+    System.arraycopy(this._storeToWarehouse, 0, sw, 0, this._storeCount * wStride);
+    this._storeToWarehouse = sw;
+ }//end growStores
+
+ private void growWarehouses(int n) {
+    if (n <= this._warehouses.length)
+       return;
+    int oldCap = this._warehouses.length, cap = Math.max(n, oldCap * 2);
+    Warehouse[] warehouses = new Warehouse[cap];
+    System.arraycopy(this._warehouses, 0, warehouses, 0, this._warehouseCount);
+    this._warehouses = warehouses;
+    this._warehouseLat = java.util.Arrays.copyOf(this._warehouseLat, cap);
+    this._warehouseLon = java.util.Arrays.copyOf(this._warehouseLon, cap);
+    this._warehouseCos = java.util.Arrays.copyOf(this._warehouseCos, cap);
+    double[] sw = new double[this._stores.length * cap];
+    for (int i = 0; i < this._storeCount; ++i)
+       System.arraycopy(this._storeToWarehouse, i * oldCap, sw, i * cap, this._warehouseCount);
+    this._storeToWarehouse = sw;
+ }//end growWarehouses
+
+ // -------------------------------------------------------------------
+ // queries
+ // -------------------------------------------------------------------
+
+ /**
+  * @return the number of stores held
+  */
+ public synchronized int stores() {
+    return this._storeCount;
+ }
+
+ /**
+  * @return the number of warehouses held
+  */
+ public synchronized int warehouses() {
+    return this._warehouseCount;
+ }
+
+ // distance between two store slots
+ private double storeDistance(int i, int j) {
+    if (this._storeToStore != null)
+       return this._storeToStore[i * this._stores.length + j];
+    return i == j ? 0 : distance(this._stores[i], this._stores[j]);
+ }
+
+ /**
+  * @return the distance between two stores, or -1 if either is unknown
+  */
+ public synchronized double storeToStore(int storeA, int storeB) {
+    Integer i = this._storeSlot.get(storeA), j = this._storeSlot.get(storeB);
+    return i == null || j == null ? -1 : storeDistance(i, j);
+ }
+
+ /**
+  * @return the distance from a store to a warehouse, or -1 if either is unknown
+  */
+ public synchronized double storeToWarehouse(int storeID, int warehouseID) {
+    Integer i = this._storeSlot.get(storeID), w = this._warehouseSlot.get(warehouseID);
+    return i == null || w == null ? -1 : this._storeToWarehouse[i * this._warehouses.length + w];
+ }
+
+ /**
+  * @return the warehouse nearest to a store, or null if the store is
+  *         unknown or there are no warehouses
+  */
+ public synchronized Warehouse nearestWarehouse(int storeID) {
+    Integer i = this._storeSlot.get(storeID);
+    if (i == null || this._warehouseCount == 0)
+       return null;
+    int row = i * this._warehouses.length, best = 0;
+    for (int w = 1; w < this._warehouseCount; ++w)
+       if (this._storeToWarehouse[row + w] < this._storeToWarehouse[row + best])
+          best = w;
+    return this._warehouses[best];
+ }//end nearestWarehouse
+
+ /**
+  * @return a store's n nearest other stores, nearest first; empty if the
+  *         store is unknown
+  */
+ public synchronized List<StoreIndex.Neighbor> nearestStores(int storeID, int n) {
+    Integer slot = this._storeSlot.get(storeID);
+    if (slot == null || n <= 0)
+       return new ArrayList<StoreIndex.Neighbor>();
+    int i = slot;
+    // farthest of the best n so far on top
+    PriorityQueue<StoreIndex.Neighbor> best =
+       new PriorityQueue<StoreIndex.Neighbor>(n + 1, Collections.reverseOrder(StoreIndex.BY_DISTANCE));
+    for (int j = 0; j < this._storeCount; ++j) {
+       if (j == i)
+          continue;
+       double d = storeDistance(i, j);
+       if (best.size() == n && d >= best.peek().distance)
+          continue;
+       best.add(new StoreIndex.Neighbor(this._stores[j], d));
+       if (best.size() > n)
+          best.poll();
+    }
+    List<StoreIndex.Neighbor> result = new ArrayList<StoreIndex.Neighbor>(best);
+    Collections.sort(result, StoreIndex.BY_DISTANCE);
+    return result;
+ }//end nearestStores
+
+ /**
+  * @return the other stores within radius of a store, nearest first;
+  *         empty if the store is unknown
+  */
+ public synchronized List<StoreIndex.Neighbor> storesWithin(int storeID, double radius) {
+    List<StoreIndex.Neighbor> result = new ArrayList<StoreIndex.Neighbor>();
+    Integer slot = this._storeSlot.get(storeID);
+    if (slot == null)
+       return result;
+    int i = slot;
+    for (int j = 0; j < this._storeCount; ++j) {
+       if (j == i)
+          continue;
+       double d = storeDistance(i, j);
+       if (d <= radius)
+          result.add(new StoreIndex.Neighbor(this._stores[j], d));
+    }
+    Collections.sort(result, StoreIndex.BY_DISTANCE);
+    return result;
+ }//end storesWithin
+
+}//end DistanceMatrix
@@ -0,0 +1,175 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+* Open-addressing hash map from primitive int keys to objects. Used on hot
+* paths keyed by storeID (and similar) to avoid boxing every key into an
+* Integer the way HashMap would. Not thread-safe.
+*
+*/
+public class IntMap<V> {
+
+ private static final int FREE = 0;
+ private static final int USED = 1;
+ private static final int DELETED = 2;
+
+ private int[] _keys;
+ private Object[] _values;
+ private byte[] _states;
+ private int _size = 0;
+ private int _occupied = 0;
+
+ public IntMap() {
+    this(16);
+ }
+
+ public IntMap(int expected) {
+    int cap = 16;
+    while (cap < expected * 2)
+       cap <<= 1;
+    alloc(cap);
+ }
+
+ private void alloc(int cap) {
+    this._keys = new int[cap];
+    this._values = new Object[cap];
+    this._states = new byte[cap];
+    this._size = 0;
+    this._occupied = 0;
+ }
+
+ // spreads the key bits so sequential IDs do not cluster
+ private static int mix(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+ }
+
+ // slot holding key, or -1
+ private int find(int key) {
+    int mask = this._keys.length - 1;
+    int i = mix(key) & mask;
+    while (this._states[i] != FREE) {
+       if (this._states[i] == USED && this._keys[i] == key)
+          return i;
+       i = (i + 1) & mask;
+    }
+    return -1;
+ }
+
+ @SuppressWarnings("unchecked")
+ public V get(int key) {
+    int i = find(key);
+    return i < 0 ? null : (V) this._values[i];
+ }
+
+ public boolean containsKey(int key) {
+    return find(key) >= 0;
+ }
+
+ /**
+  * @return the previous value for the key, or null
+  */
+ @SuppressWarnings("unchecked")
+ public V put(int key, V value) {
+    int i = find(key);
+    if (i >= 0) {
+       V old = (V) this._values[i];
+       this._values[i] = value;
+       return old;
+    }
+    if ((this._occupied + 1) * 4 > this._keys.length * 3)
+       rehash(this._size * 2 > this._keys.length / 2 ? this._keys.length * 2 : this._keys.length);
+
+    int mask = this._keys.length - 1;
+    i = mix(key) & mask;
+    while (this._states[i] == USED)
+       i = (i + 1) & mask;
+    if (this._states[i] == FREE)
+       ++this._occupied;
+    this._keys[i] = key;
+    this._values[i] = value;
+    this._states[i] = USED;
+    ++this._size;
+    return null;
+ }//end put
+
+ /**
+  * @return the removed value, or null
+  */
+ @SuppressWarnings("unchecked")
+ public V remove(int key) {
+    int i = find(key);
+    if (i < 0)
+       return null;
+    V old = (V) this._values[i];
+    this._values[i] = null;
+    this._states[i] = DELETED;
+    --this._size;
+    return old;
+ }
+
+ public int size() {
+    return this._size;
+ }
+
+ public boolean isEmpty() {
+    return this._size == 0;
+ }
+
+ public void clear() {
+    Arrays.fill(this._states, (byte) FREE);
+    Arrays.fill(this._values, null);
+    this._size = 0;
+    this._occupied = 0;
+ }
+
+ /**
+  * @return the keys in table order
+  */
+ public int[] keys() {
+    int[] out = new int[this._size];
+    int n = 0;
+    for (int i = 0; i < this._keys.length; ++i)
+       if (this._states[i] == USED)
+          out[n++] = this._keys[i];
+    return out;
+ }
+
+ /**
+  * @return the values in table order
+  */
+ @SuppressWarnings("unchecked")
+ public List<V> values() {
+    List<V> out = new ArrayList<V>(this._size);
+    for (int i = 0; i < this._keys.length; ++i)
+       if (this._states[i] == USED)
+          out.add((V) this._values[i]);
+    return out;
+ }
+
+ private void rehash(int cap) {
+    int[] keys = this._keys;
+    Object[] values = this._values;
+    byte[] states = this._states;
+    alloc(cap);
+    for (int i = 0; i < keys.length; ++i)
+       if (states[i] == USED)
+          putFresh(keys[i], values[i]);
+ }
+
+ // inserts a key known to be absent into a table without tombstones
+ private void putFresh(int key, Object value) {
+    int mask = this._keys.length - 1;
+    int i = mix(key) & mask;
+    while (this._states[i] == USED)
+       i = (i + 1) & mask;
+    this._keys[i] = key;
+    this._values[i] = value;
+    this._states[i] = USED;
+    ++this._size;
+    ++this._occupied;
+ }
+
+}//end IntMap
@@ -0,0 +1,97 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+* Lock-free latency histogram with logarithmic buckets, in the style of
+* HdrHistogram. Each power of two is split into SUB_BUCKETS linear
+* buckets, so any recorded value is reported within about 3% of its true
+* value while the whole histogram stays a fixed array of counters.
+* Values are nanoseconds; anything above MAX_VALUE is clamped.
+*
+*/
+public class LatencyHistogram {
+
+ private static final int SUB_BITS = 5;
+ private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+ // about 18 minutes in nanoseconds
+ public static final long MAX_VALUE = (1L << 40) - 1;
+
+ private static final int BUCKETS = (40 - SUB_BITS + 1) * SUB_BUCKETS;
+
+ private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+ private final AtomicLong _count = new AtomicLong();
+ private final AtomicLong _sum = new AtomicLong();
+ private final AtomicLong _max = new AtomicLong();
+
+ // bucket holding a value; values below SUB_BUCKETS get a bucket each
+ private static int bucketOf(long value) {
+    if (value < SUB_BUCKETS)
+       return (int) value;
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+ }
+
+ // largest value that falls into a bucket
+ private static long highestIn(int bucket) {
+    if (bucket < SUB_BUCKETS)
+       return bucket;
+    int shift = bucket / SUB_BUCKETS - 1;
+    long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+    return ((sub + 1) << shift) - 1;
+ }
+
+ /**
+  * Records one value, in nanoseconds.
+  */
+ public void record(long nanos) {
+    long v = Math.max(0, Math.min(nanos, MAX_VALUE));
+    this._counts.incrementAndGet(bucketOf(v));
+    this._count.incrementAndGet();
+    this._sum.addAndGet(v);
+    long max;
+    while (v > (max = this._max.get()) && !this._max.compareAndSet(max, v))
+       ;
+ }//end record
+
+ public long count() {
+    return this._count.get();
+ }
+
+ /**
+  * @return the sum of all recorded values, in nanoseconds
+  */
+ public long sum() {
+    return this._sum.get();
+ }
+
+ public long max() {
+    return this._max.get();
+ }
+
+ /**
+  * @param quantile between 0 and 1, e.g. 0.99
+  * @return the value at the quantile in nanoseconds, or 0 if empty
+  */
+ public long valueAt(double quantile) {
+    // read the buckets once so concurrent recording cannot move the target
+    long[] counts = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+       counts[i] = this._counts.get(i);
+       total += counts[i];
+    }
+    if (total == 0)
+       return 0;
+    long rank = Math.max(1, (long) Math.ceil(quantile * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+       seen += counts[i];
+       if (seen >= rank)
+          return Math.min(highestIn(i), max());
+    }
+    return max();
+ }//end valueAt
+
+}//end LatencyHistogram
@@ -0,0 +1,529 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+* Headless load generator. Simulated customers and managers run the
+* regular menu handlers with scripted console input (the same way
+* AmazonServer sessions do), each logged in with a session of their own,
+* picking operations from a weighted mix and products with Zipf-skewed
+* popularity.
+*
+* Two modes:
+*  - closed loop (rate=0): each of the clients users runs an operation,
+*    thinks for an exponentially distributed time, and repeats;
+*  - open loop (rate=N): operations arrive as a Poisson process at N per
+*    second regardless of how fast earlier ones finish, and are served by
+*    up to clients workers. Latency is measured from the scheduled arrival,
+*    so queueing delay is included rather than hidden.
+*
+* For every operation it reports throughput, latency percentiles, the
+* error rate (handler printed "Error:" or threw) and, for placeOrder, the
+* stock-conflict rate (orders refused for insufficient stock). Orders,
+* product updates and supply requests are really written, so point it at
+* a scratch database loaded from DataGenerator / BulkLoader.
+*
+*/
+public class LoadTest {
+
+ private static final String[] CUSTOMER_OPS = { "viewStores", "viewProducts", "placeOrder", "viewRecentOrders" };
+ private static final String[] MANAGER_OPS = { "updateProduct", "viewPopularProducts", "placeProductSupplyRequests" };
+
+ // arrivals allowed to wait for a worker in open-loop mode before they are dropped
+ private static final int MAX_BACKLOG = 10000;
+
+ // settings with their defaults
+ private final Map<String, String> _settings = new LinkedHashMap<String, String>();
+
+ /**
+  * Counters and latencies of one operation.
+  */
+ static class Stats {
+    final String name;
+    final LatencyHistogram latency = new LatencyHistogram();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong conflicts = new AtomicLong();
+
+    Stats(String name) {
+       this.name = name;
+    }
+ }//end Stats
+
+ // a product with its store's location and manager
+ private static class Item {
+    final int storeID;
+    final String productName;
+    final String latitude;
+    final String longitude;
+    final int managerID;
+    final double price;
+
+    Item(int storeID, String productName, String latitude, String longitude, int managerID, double price) {
+       this.storeID = storeID;
+       this.productName = productName;
+       this.latitude = latitude;
+       this.longitude = longitude;
+       this.managerID = managerID;
+       this.price = price;
+    }
+ }//end Item
+
+ // a customer with their home location
+ private static class Customer {
+    final SessionStore.Session session;
+    final String latitude;
+    final String longitude;
+
+    Customer(SessionStore.Session session, String latitude, String longitude) {
+       this.session = session;
+       this.latitude = latitude;
+       this.longitude = longitude;
+    }
+ }//end Customer
+
+ // one operation to run: the handler, its console input and who runs it
+ private static class Step {
+    final String op;
+    final String script;
+    final SessionStore.Session session;
+
+    Step(String op, String script, SessionStore.Session session) {
+       this.op = op;
+       this.script = script;
+       this.session = session;
+    }
+ }//end Step
+
+ private final List<Customer> _customers = new ArrayList<Customer>();
+ private final List<Item> _items = new ArrayList<Item>();
+
+ // store managers' sessions by userID
+ private final IntMap<SessionStore.Session> _managers = new IntMap<SessionStore.Session>();
+
+ // cumulative Zipf probabilities over _items, most popular first
+ private double[] _zipf;
+
+ private final Map<String, Stats> _stats = new LinkedHashMap<String, Stats>();
+ private final AtomicLong _dropped = new AtomicLong();
+
+ private String[] _ops;
+ private double[] _opWeights;
+
+ public LoadTest() {
+    this._settings.put("db", "");
+    this._settings.put("port", "5432");
+    this._settings.put("user", System.getProperty("user.name"));
+    this._settings.put("clients", "16");
+    this._settings.put("rate", "0");
+    this._settings.put("think", "500");
+    this._settings.put("warmup", "5");
+    this._settings.put("duration", "60");
+    this._settings.put("managers", "0.1");
+    this._settings.put("mix", "viewStores=2,viewProducts=3,placeOrder=4,viewRecentOrders=1," +
+                              "updateProduct=1,viewPopularProducts=2,placeProductSupplyRequests=1");
+    this._settings.put("zipf", "1.0");
+    this._settings.put("seed", "166");
+    this._settings.put("format", "csv");
+    this._settings.put("out", "");
+ }//end LoadTest
+
+ private String get(String name) {
+    return this._settings.get(name);
+ }
+
+ private double getDouble(String name) {
+    return Double.parseDouble(get(name));
+ }
+
+ /**
+  * Overrides a setting; see the constructor for the names.
+  */
+ public void set(String name, String value) {
+    if (!this._settings.containsKey(name))
+       throw new IllegalArgumentException("Unknown setting: " + name);
+    this._settings.put(name, value);
+ }
+
+ // -------------------------------------------------------------------
+ // workload
+ // -------------------------------------------------------------------
+
+ /**
+  * Reads the customers, products and managers the scripts draw from,
+  * logging each customer and manager in.
+  */
+ void loadFixtures(final Amazon esql) throws SQLException {
+    esql.queryEach("SELECT userID, name, type, latitude, longitude FROM Users WHERE type = 'customer'",
+       new Amazon.RowHandler() {
+          public boolean row(ResultSet rs) throws SQLException {
+             _customers.add(new Customer(esql.sessions().open(rs.getInt(1), rs.getString(2), rs.getString(3)),
+                                         rs.getString(4), rs.getString(5)));
+             return true;
+          }
+       });
+    for (SessionStore.Session m : openSessions(esql,
+          "SELECT userID, name, type FROM Users WHERE userID IN (SELECT managerID FROM Store)"))
+       this._managers.put(m.userID, m);
+    esql.queryEach("SELECT p.storeID, p.productName, s.latitude, s.longitude, s.managerID, p.pricePerUnit " +
+                   "FROM Product p JOIN Store s ON s.storeID = p.storeID " +
+                   "ORDER BY p.storeID, p.productName", new Amazon.RowHandler() {
+       public boolean row(ResultSet rs) throws SQLException {
+          _items.add(new Item(rs.getInt(1), rs.getString(2).trim(), rs.getString(3), rs.getString(4),
+                              rs.getInt(5), rs.getDouble(6)));
+          return true;
+       }
+    });
+    if (this._customers.isEmpty() || this._items.isEmpty())
+       throw new SQLException("The database has no customers or products to load test with");
+
+    // popularity ranks are a seeded shuffle, so hot products are spread over stores
+    Collections.shuffle(this._items, new Random(Long.parseLong(get("seed"))));
+    double s = getDouble("zipf");
+    this._zipf = new double[this._items.size()];
+    double sum = 0;
+    for (int k = 0; k < this._zipf.length; ++k) {
+       sum += 1.0 / Math.pow(k + 1, s);
+       this._zipf[k] = sum;
+    }
+    for (int k = 0; k < this._zipf.length; ++k)
+       this._zipf[k] /= sum;
+ }//end loadFixtures
+
+ /**
+  * Opens a session for every user a query returns, as if each had logged
+  * in; the query selects userID, name and type.
+  */
+ static List<SessionStore.Session> openSessions(final Amazon esql, String sql) throws SQLException {
+    final List<SessionStore.Session> sessions = new ArrayList<SessionStore.Session>();
+    esql.queryEach(sql, new Amazon.RowHandler() {
+       public boolean row(ResultSet rs) throws SQLException {
+          sessions.add(esql.sessions().open(rs.getInt(1), rs.getString(2), rs.getString(3)));
+          return true;
+       }
+    });
+    return sessions;
+ }//end openSessions
+
+ private Item pickItem(Random r) {
+    double u = r.nextDouble();
+    int lo = 0, hi = this._zipf.length - 1;
+    while (lo < hi) {
+       int mid = (lo + hi) >>> 1;
+       if (this._zipf[mid] < u)
+          lo = mid + 1;
+       else
+          hi = mid;
+    }
+    return this._items.get(lo);
+ }
+
+ // parses the mix and the customer / manager split into one weighted table
+ private void buildMix() {
+    Map<String, Double> weights = new LinkedHashMap<String, Double>();
+    for (String entry : get("mix").split(",")) {
+       String[] kv = entry.trim().split("=");
+       weights.put(kv[0], Double.parseDouble(kv[1]));
+    }
+    double managers = getDouble("managers");
+    List<String> ops = new ArrayList<String>();
+    List<Double> ws = new ArrayList<Double>();
+    addGroup(CUSTOMER_OPS, weights, 1 - managers, ops, ws);
+    addGroup(MANAGER_OPS, weights, managers, ops, ws);
+    if (ops.isEmpty())
+       throw new IllegalArgumentException("The mix selects no operations");
+    this._ops = ops.toArray(new String[0]);
+    this._opWeights = new double[ws.size()];
+    double sum = 0;
+    for (int i = 0; i < ws.size(); ++i)
+       this._opWeights[i] = sum += ws.get(i);
+    for (String op : this._ops)
+       this._stats.put(op, new Stats(op));
+ }//end buildMix
+
+ // adds a group of operations whose weights together make up share
+ private static void addGroup(String[] group, Map<String, Double> weights, double share,
+                              List<String> ops, List<Double> ws) {
+    double total = 0;
+    for (String op : group)
+       if (weights.containsKey(op))
+          total += weights.get(op);
+    if (total <= 0 || share <= 0)
+       return;
+    for (String op : group) {
+       Double w = weights.get(op);
+       if (w != null && w > 0) {
+          ops.add(op);
+          ws.add(share * w / total);
+       }
+    }
+ }//end addGroup
+
+ private String pickOp(Random r) {
+    double u = r.nextDouble() * this._opWeights[this._opWeights.length - 1];
+    for (int i = 0; i < this._ops.length; ++i)
+       if (u < this._opWeights[i])
+          return this._ops[i];
+    return this._ops[this._ops.length - 1];
+ }
+
+ // console input and user for one run of a handler; manager operations
+ // are run by the manager of the picked product's store
+ private Step step(String op, Random r) {
+    Item item = pickItem(r);
+    Customer customer = this._customers.get(r.nextInt(this._customers.size()));
+    SessionStore.Session manager = this._managers.get(item.managerID);
+    if (op.equals("viewStores"))
+       return new Step(op, customer.latitude + "\n" + customer.longitude + "\n", customer.session);
+    if (op.equals("viewProducts"))
+       return new Step(op, item.storeID + "\n", customer.session);
+    if (op.equals("placeOrder"))
+       // order from the store's own location so the radius check passes
+       return new Step(op, item.latitude + "\n" + item.longitude + "\n" + item.storeID + "\n"
+          + item.productName + "\n" + (1 + r.nextInt(3)) + "\n", customer.session);
+    if (op.equals("viewRecentOrders"))
+       return new Step(op, "", customer.session);
+    if (op.equals("updateProduct"))
+       return new Step(op, item.storeID + "\n" + item.productName + "\n"
+          + (50 + r.nextInt(450)) + "\n" + item.price + "\n", manager);
+    if (op.equals("viewPopularProducts"))
+       return new Step(op, "", manager);
+    // placeProductSupplyRequests, routed automatically
+    return new Step(op, item.storeID + "\n" + item.productName + "\n" + (10 + r.nextInt(90)) + "\n\n", manager);
+ }//end step
+
+ private static void call(Step step, Amazon esql) {
+    String op = step.op;
+    if (op.equals("viewStores"))
+       Amazon.viewStores(esql);
+    else if (op.equals("viewProducts"))
+       Amazon.viewProducts(esql);
+    else if (op.equals("placeOrder"))
+       Amazon.placeOrder(esql, step.session);
+    else if (op.equals("viewRecentOrders"))
+       Amazon.viewRecentOrders(esql, step.session);
+    else if (op.equals("updateProduct"))
+       Amazon.updateProduct(esql, step.session);
+    else if (op.equals("viewPopularProducts"))
+       Amazon.viewPopularProducts(esql, step.session);
+    else
+       Amazon.placeProductSupplyRequests(esql, step.session);
+ }
+
+ /**
+  * Runs one operation on the calling thread and records it.
+  *
+  * @param scheduled System.nanoTime() the operation was due to start
+  * @param record false during the warmup
+  */
+ void execute(Step step, long scheduled, boolean record, Amazon esql) {
+    ByteArrayOutputStream captured = new ByteArrayOutputStream();
+    PrintStream capture = new PrintStream(captured, false);
+    boolean failed = false;
+    SessionIO.bind(new BufferedReader(new StringReader(step.script)), capture);
+    try {
+       call(step, esql);
+    } catch (RuntimeException e) {
+       failed = true;
+    } finally {
+       SessionIO.unbind();
+    }
+    long elapsed = System.nanoTime() - scheduled;
+    if (!record)
+       return;
+    capture.flush();
+    String output = captured.toString();
+    Stats s = this._stats.get(step.op);
+    s.latency.record(elapsed);
+    if (failed || output.indexOf("Error:") >= 0)
+       s.errors.incrementAndGet();
+    else if (output.indexOf("Insufficient stock") >= 0)
+       s.conflicts.incrementAndGet();
+ }//end execute
+
+ // -------------------------------------------------------------------
+ // runner
+ // -------------------------------------------------------------------
+
+ private void closedLoop(final Amazon esql, final long warmupEnd, final long end) throws InterruptedException {
+    final double think = getDouble("think");
+    final long seed = Long.parseLong(get("seed"));
+    int clients = Integer.parseInt(get("clients"));
+    Thread[] users = new Thread[clients];
+    for (int t = 0; t < clients; ++t) {
+       final int id = t;
+       users[t] = new Thread("LoadTest-user-" + t) {
+          public void run() {
+             Random r = new Random(seed + id);
+             try {
+                while (true) {
+                   long start = System.nanoTime();
+                   if (start >= end)
+                      return;
+                   execute(step(pickOp(r), r), start, start >= warmupEnd, esql);
+                   if (think > 0)
+                      Thread.sleep((long) (-think * Math.log(1 - r.nextDouble())));
+                }
+             } catch (InterruptedException e) {
+                // stopped.
+             }
+          }
+       };
+       users[t].start();
+    }
+    for (Thread u : users)
+       u.join();
+ }//end closedLoop
+
+ private void openLoop(final Amazon esql, long warmupEnd, long end) throws InterruptedException {
+    double rate = getDouble("rate");
+    int clients = Integer.parseInt(get("clients"));
+    ThreadPoolExecutor workers = new ThreadPoolExecutor(clients, clients, 60L, TimeUnit.SECONDS,
+       new ArrayBlockingQueue<Runnable>(MAX_BACKLOG));
+    Random r = new Random(Long.parseLong(get("seed")));
+    long next = System.nanoTime();
+    while (next < end) {
+       final Step step = step(pickOp(r), r);
+       final long scheduled = next;
+       final boolean record = scheduled >= warmupEnd;
+       long wait = scheduled - System.nanoTime();
+       if (wait > 0)
+          TimeUnit.NANOSECONDS.sleep(wait);
+       try {
+          workers.execute(new Runnable() {
+             public void run() {
+                execute(step, scheduled, record, esql);
+             }
+          });
+       } catch (RejectedExecutionException e) {
+          if (record)
+             this._dropped.incrementAndGet();
+       }
+       // exponential gaps make the arrivals a Poisson process
+       next += (long) (-Math.log(1 - r.nextDouble()) / rate * 1e9);
+    }
+    workers.shutdown();
+    workers.awaitTermination(1, TimeUnit.MINUTES);
+ }//end openLoop
+
+ /**
+  * Runs the load test and writes the report.
+  */
+ public void run() throws Exception {
+    if (get("db").isEmpty())
+       throw new IllegalArgumentException("db=<name> is required");
+    buildMix();
+
+    // use postgres JDBC driver.
+    Class.forName("org.postgresql.Driver");
+    ConnectionPool.Config config = new ConnectionPool.Config(
+       Amazon.url(get("db"), get("port")), get("user"), "");
+    config.maxSize = Integer.parseInt(get("clients"));
+    Amazon esql = new Amazon(new ConnectionPool(config));
+    double seconds = getDouble("duration");
+    try {
+       loadFixtures(esql);
+       long warmupEnd = System.nanoTime() + (long) (getDouble("warmup") * 1e9);
+       long end = warmupEnd + (long) (seconds * 1e9);
+       if (getDouble("rate") > 0)
+          openLoop(esql, warmupEnd, end);
+       else
+          closedLoop(esql, warmupEnd, end);
+    } finally {
+       esql.cleanup();
+    }
+
+    PrintStream out = get("out").isEmpty() ? System.out
+                                           : new PrintStream(new FileOutputStream(get("out")), true);
+    try {
+       report(out, seconds, get("format").equals("json"));
+    } finally {
+       if (out != System.out)
+          out.close();
+    }
+    if (this._dropped.get() > 0)
+       System.err.println(this._dropped.get() + " arrivals dropped: the backlog was full, raise clients or lower rate");
+ }//end run
+
+ private static String fmt(double v) {
+    return String.format(java.util.Locale.ROOT, "%.3f", v);
+ }
+
+ private static String millis(long nanos) {
+    return fmt(nanos / 1e6);
+ }
+
+ private void report(PrintStream out, double seconds, boolean json) {
+    String[] header = { "operation", "ops", "ops_per_sec", "p50_ms", "p90_ms", "p99_ms", "p999_ms", "max_ms",
+                        "error_rate", "conflict_rate" };
+    List<String[]> rows = new ArrayList<String[]>();
+    for (Stats s : this._stats.values()) {
+       long n = s.latency.count();
+       rows.add(new String[] {
+          s.name, Long.toString(n), fmt(n / seconds),
+          millis(s.latency.valueAt(0.5)), millis(s.latency.valueAt(0.9)), millis(s.latency.valueAt(0.99)),
+          millis(s.latency.valueAt(0.999)), millis(s.latency.max()),
+          fmt(n == 0 ? 0 : (double) s.errors.get() / n), fmt(n == 0 ? 0 : (double) s.conflicts.get() / n)
+       });
+    }
+    if (!json) {
+       out.println(String.join(",", header));
+       for (String[] row : rows)
+          out.println(String.join(",", row));
+       return;
+    }
+    out.println("[");
+    for (int i = 0; i < rows.size(); ++i) {
+       StringBuilder sb = new StringBuilder("  {");
+       for (int f = 0; f < header.length; ++f) {
+          if (f > 0)
+             sb.append(", ");
+          sb.append('"').append(header[f]).append("\": ");
+          if (f == 0)
+             sb.append('"').append(rows.get(i)[f]).append('"');
+          else
+             sb.append(rows.get(i)[f]);
+       }
+       out.println(sb.append(i + 1 < rows.size() ? "}," : "}"));
+    }
+    out.println("]");
+ }//end report
+
+ /**
+  * @param args name=value settings; see the usage message
+  */
+ public static void main(String[] args) throws Exception {
+    LoadTest test = new LoadTest();
+    for (String arg : args) {
+       int eq = arg.indexOf('=');
+       if (eq < 0) {
+          System.err.println(
+             "Usage: " +
+             "java [-classpath <classpath>] " +
+             LoadTest.class.getName() +
+             " db=name [port=N] [user=name] [clients=N] [rate=ops/s, 0 for closed loop] [think=ms]" +
+             " [warmup=s] [duration=s] [managers=share] [mix=op=weight,...] [zipf=s] [seed=N]" +
+             " [format=csv|json] [out=file]");
+          return;
+       }
+       test.set(arg.substring(0, eq), arg.substring(eq + 1));
+    }
+    test.run();
+ }//end main
+
+}//end LoadTest
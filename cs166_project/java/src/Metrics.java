@@ -0,0 +1,345 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+* Latency, row and error metrics for the database helpers and the menu
+* operations. Queries are labeled by their SQL text with literals and
+* whitespace normalized; operations by the name passed to begin(). Query
+* failures are also charged to the operation running on the same thread,
+* so a slow or failing handler can be traced to its statements.
+*
+* The metrics are rendered in the Prometheus text format, either on
+* demand or periodically to a file (e.g. for the node_exporter textfile
+* collector).
+*
+*/
+public class Metrics {
+
+ /**
+  * The metrics kept for one query or operation.
+  */
+ public static class Series {
+    public final LatencyHistogram latency = new LatencyHistogram();
+    public final AtomicLong rows = new AtomicLong();
+
+    // failures keyed by SQLState
+    public final ConcurrentHashMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+
+    void error(String state) {
+       AtomicLong n = this.errors.get(state);
+       if (n == null) {
+          AtomicLong fresh = new AtomicLong();
+          n = this.errors.putIfAbsent(state, fresh);
+          if (n == null)
+             n = fresh;
+       }
+       n.incrementAndGet();
+    }
+ }//end Series
+
+ // an operation in progress on some thread
+ private static class Running {
+    final String name;
+    final long start;
+    final long inputWaitAtStart;
+    long rows = 0;
+
+    Running(String name, long start, long inputWaitAtStart) {
+       this.name = name;
+       this.start = start;
+       this.inputWaitAtStart = inputWaitAtStart;
+    }
+ }//end Running
+
+ // distinct SQL texts whose normalized label is remembered
+ private static final int LABEL_CACHE_SIZE = 1000;
+
+ private static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+
+ private final ConcurrentHashMap<String, Series> _queries = new ConcurrentHashMap<String, Series>();
+ private final ConcurrentHashMap<String, Series> _operations = new ConcurrentHashMap<String, Series>();
+ private final ConcurrentHashMap<String, String> _labels = new ConcurrentHashMap<String, String>();
+ private final LatencyHistogram _connectionWait = new LatencyHistogram();
+ private final AtomicLong _connectionErrors = new AtomicLong();
+ private final ThreadLocal<Running> _running = new ThreadLocal<Running>();
+
+ private Timer _dumper;
+
+ private static Series series(ConcurrentHashMap<String, Series> map, String name) {
+    Series s = map.get(name);
+    if (s == null) {
+       Series fresh = new Series();
+       s = map.putIfAbsent(name, fresh);
+       if (s == null)
+          s = fresh;
+    }
+    return s;
+ }
+
+ // the older drivers often leave SQLState empty
+ private static String stateOf(SQLException e) {
+    String state = e.getSQLState();
+    return state == null || state.isEmpty() ? "unknown" : state;
+ }
+
+ /**
+  * Collapses whitespace and replaces numeric and string literals with '?',
+  * so queries built with inlined values share one label.
+  */
+ static String normalize(String sql) {
+    StringBuilder sb = new StringBuilder(sql.length());
+    int n = sql.length();
+    for (int i = 0; i < n; ++i) {
+       char c = sql.charAt(i);
+       if (Character.isWhitespace(c)) {
+          if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ')
+             sb.append(' ');
+       } else if (c == '\'') {
+          // skip the literal; '' inside it is an escaped quote
+          ++i;
+          while (i < n) {
+             if (sql.charAt(i) == '\'') {
+                if (i + 1 < n && sql.charAt(i + 1) == '\'') {
+                   i += 2;
+                   continue;
+                }
+                break;
+             }
+             ++i;
+          }
+          sb.append('?');
+       } else if (Character.isDigit(c) && !inIdentifier(sb)) {
+          while (i + 1 < n && (Character.isDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '.'))
+             ++i;
+          sb.append('?');
+       } else {
+          sb.append(c);
+       }
+    }
+    // IN (?,?,?) lists of any length become IN (?)
+    return sb.toString().trim().replaceAll("\\?(\\s*,\\s*\\?)+", "?");
+ }//end normalize
+
+ // whether a digit after the text so far continues a name such as t1
+ private static boolean inIdentifier(StringBuilder sb) {
+    if (sb.length() == 0)
+       return false;
+    char last = sb.charAt(sb.length() - 1);
+    return Character.isLetterOrDigit(last) || last == '_';
+ }
+
+ private String label(String sql) {
+    String label = this._labels.get(sql);
+    if (label == null) {
+       label = normalize(sql);
+       if (this._labels.size() < LABEL_CACHE_SIZE)
+          this._labels.put(sql, label);
+    }
+    return label;
+ }
+
+ /**
+  * Records a statement that completed.
+  *
+  * @param start System.nanoTime() taken before the statement ran
+  * @param rows rows returned or affected
+  */
+ public void query(String sql, long start, long rows) {
+    Series s = series(this._queries, label(sql));
+    s.latency.record(System.nanoTime() - start);
+    s.rows.addAndGet(rows);
+    Running op = this._running.get();
+    if (op != null)
+       op.rows += rows;
+ }//end query
+
+ /**
+  * Records a statement that failed, charging the error to the running
+  * operation as well.
+  */
+ public void failed(String sql, long start, SQLException e) {
+    Series s = series(this._queries, label(sql));
+    s.latency.record(System.nanoTime() - start);
+    String state = stateOf(e);
+    s.error(state);
+    Running op = this._running.get();
+    if (op != null)
+       series(this._operations, op.name).error(state);
+ }//end failed
+
+ /**
+  * Records how long a caller waited for a pooled connection.
+  */
+ public void connectionWait(long nanos) {
+    this._connectionWait.record(nanos);
+ }
+
+ /**
+  * Records a failure to obtain a connection.
+  */
+ public void connectionFailed(SQLException e) {
+    this._connectionErrors.incrementAndGet();
+    Running op = this._running.get();
+    if (op != null)
+       series(this._operations, op.name).error(stateOf(e));
+ }
+
+ /**
+  * Starts timing an operation on the calling thread. Every begin() must
+  * be followed by end() on the same thread. Time spent blocked on
+  * SessionIO input in between is not counted, so interactive handlers
+  * report their own latency rather than the user's typing speed.
+  */
+ public void begin(String operation) {
+    this._running.set(new Running(operation, System.nanoTime(), SessionIO.inputWaitNanos()));
+ }
+
+ /**
+  * Finishes the operation started by begin().
+  */
+ public void end() {
+    Running op = this._running.get();
+    if (op == null)
+       return;
+    this._running.remove();
+    Series s = series(this._operations, op.name);
+    long inputWait = SessionIO.inputWaitNanos() - op.inputWaitAtStart;
+    s.latency.record(System.nanoTime() - op.start - inputWait);
+    s.rows.addAndGet(op.rows);
+ }//end end
+
+ /**
+  * @return the series of a query label, or null if it never ran
+  */
+ public Series query(String sql) {
+    return this._queries.get(label(sql));
+ }
+
+ /**
+  * @return the series of an operation, or null if it never ran
+  */
+ public Series operation(String name) {
+    return this._operations.get(name);
+ }
+
+ public LatencyHistogram connectionWait() {
+    return this._connectionWait;
+ }
+
+ // -------------------------------------------------------------------
+ // export
+ // -------------------------------------------------------------------
+
+ private static String escape(String v) {
+    return v.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+ }
+
+ private static String seconds(long nanos) {
+    return Double.toString(nanos / 1e9);
+ }
+
+ private static void summary(StringBuilder sb, String metric, String labels, LatencyHistogram h) {
+    String sep = labels.isEmpty() ? "" : ",";
+    for (double q : QUANTILES)
+       sb.append(metric).append('{').append(labels).append(sep).append("quantile=\"").append(q)
+         .append("\"} ").append(seconds(h.valueAt(q))).append('\n');
+    String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+    sb.append(metric).append("_sum").append(braces).append(' ').append(seconds(h.sum())).append('\n');
+    sb.append(metric).append("_count").append(braces).append(' ').append(h.count()).append('\n');
+ }
+
+ private static void family(StringBuilder sb, String prefix, String label, Map<String, Series> series) {
+    // sorted so successive dumps diff cleanly
+    Map<String, Series> sorted = new TreeMap<String, Series>(series);
+
+    sb.append("# HELP ").append(prefix).append("_latency_seconds Latency per ").append(label).append(".\n");
+    sb.append("# TYPE ").append(prefix).append("_latency_seconds summary\n");
+    for (Map.Entry<String, Series> e : sorted.entrySet())
+       summary(sb, prefix + "_latency_seconds", label + "=\"" + escape(e.getKey()) + "\"", e.getValue().latency);
+
+    sb.append("# HELP ").append(prefix).append("_rows_total Rows returned or affected per ").append(label).append(".\n");
+    sb.append("# TYPE ").append(prefix).append("_rows_total counter\n");
+    for (Map.Entry<String, Series> e : sorted.entrySet())
+       sb.append(prefix).append("_rows_total{").append(label).append("=\"").append(escape(e.getKey()))
+         .append("\"} ").append(e.getValue().rows.get()).append('\n');
+
+    sb.append("# HELP ").append(prefix).append("_errors_total Failures per ").append(label).append(" and SQLState.\n");
+    sb.append("# TYPE ").append(prefix).append("_errors_total counter\n");
+    for (Map.Entry<String, Series> e : sorted.entrySet())
+       for (Map.Entry<String, AtomicLong> err : new TreeMap<String, AtomicLong>(e.getValue().errors).entrySet())
+          sb.append(prefix).append("_errors_total{").append(label).append("=\"").append(escape(e.getKey()))
+            .append("\",sqlstate=\"").append(escape(err.getKey())).append("\"} ").append(err.getValue().get())
+            .append('\n');
+ }//end family
+
+ /**
+  * @return every metric in the Prometheus text exposition format
+  */
+ public String prometheus() {
+    StringBuilder sb = new StringBuilder();
+    family(sb, "amazon_query", "query", this._queries);
+    family(sb, "amazon_operation", "operation", this._operations);
+    sb.append("# HELP amazon_connection_wait_seconds Time spent waiting for a pooled connection.\n");
+    sb.append("# TYPE amazon_connection_wait_seconds summary\n");
+    summary(sb, "amazon_connection_wait_seconds", "", this._connectionWait);
+    sb.append("# HELP amazon_connection_errors_total Failures to obtain a pooled connection.\n");
+    sb.append("# TYPE amazon_connection_errors_total counter\n");
+    sb.append("amazon_connection_errors_total ").append(this._connectionErrors.get()).append('\n');
+    return sb.toString();
+ }//end prometheus
+
+ /**
+  * Writes the metrics to a file, replacing it in one step so readers
+  * never see a partial dump.
+  */
+ public void dump(File file) throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+    try {
+       w.write(prometheus());
+    } finally {
+       w.close();
+    }
+    if (!tmp.renameTo(file)) {
+       file.delete();
+       if (!tmp.renameTo(file))
+          throw new IOException("Cannot replace " + file);
+    }
+ }//end dump
+
+ /**
+  * Dumps the metrics to a file every periodMillis until stopDumping().
+  */
+ public synchronized void startDumping(final File file, long periodMillis) {
+    stopDumping();
+    this._dumper = new Timer("Metrics-dump", true);
+    this._dumper.schedule(new TimerTask() {
+       public void run() {
+          try {
+             dump(file);
+          } catch (IOException e) {
+             System.err.println("Metrics dump failed: " + e.getMessage());
+          }
+       }
+    }, periodMillis, periodMillis);
+ }//end startDumping
+
+ public synchronized void stopDumping() {
+    if (this._dumper != null) {
+       this._dumper.cancel();
+       this._dumper = null;
+    }
+ }
+
+}//end Metrics
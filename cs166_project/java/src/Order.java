@@ -0,0 +1,39 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+
+/**
+* A row of the Orders table.
+*
+*/
+public class Order {
+
+ public static final String COLUMNS = "orderNumber, customerID, storeID, productName, unitsOrdered, orderTime";
+
+ // maps a row selected with COLUMNS
+ public static final Amazon.RowMapper<Order> MAPPER = new Amazon.RowMapper<Order>() {
+    public Order map(ResultSet rs) throws SQLException {
+       return new Order(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getString(4),
+                        rs.getInt(5), rs.getTimestamp(6));
+    }
+ };
+
+ public final int orderNumber;
+ public final int customerID;
+ public final int storeID;
+ public final String productName;
+ public final int unitsOrdered;
+ public final Timestamp orderTime;
+
+ public Order(int orderNumber, int customerID, int storeID, String productName,
+              int unitsOrdered, Timestamp orderTime) {
+    this.orderNumber = orderNumber;
+    this.customerID = customerID;
+    this.storeID = storeID;
+    this.productName = productName;
+    this.unitsOrdered = unitsOrdered;
+    this.orderTime = orderTime;
+ }
+
+}//end Order
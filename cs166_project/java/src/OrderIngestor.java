@@ -0,0 +1,283 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+
+
+/**
+* Batched order ingestion for bulk and replayed order streams. Orders are
+* buffered and written in one transaction per batch: orders are grouped by
+* (storeID, productName), stock is checked and locked with one query per
+* group, and the Orders inserts and Product decrements go out as JDBC
+* batches. Each order gets its own accept/reject result.
+*
+* A batch is flushed when it reaches the configured size, when the flush
+* interval elapses, or when flush() / close() is called.
+*
+*/
+public class OrderIngestor {
+
+ /**
+  * An order waiting to be ingested.
+  */
+ public static class Order {
+    public final int customerID;
+    public final int storeID;
+    public final String productName;
+    public final int units;
+
+    // when the order was placed; null means now
+    public final Timestamp orderTime;
+
+    public Order(int customerID, int storeID, String productName, int units, Timestamp orderTime) {
+       this.customerID = customerID;
+       this.storeID = storeID;
+       this.productName = productName;
+       this.units = units;
+       this.orderTime = orderTime;
+    }
+ }//end Order
+
+ /**
+  * Receives the results of every flushed batch, including those flushed
+  * by the background timer.
+  */
+ public interface Listener {
+    void flushed(List<Order> orders, List<OrderResult> results);
+ }
+
+ private final Amazon _esql;
+ private final int _batchSize;
+ private final Listener _listener;
+ private final Timer _timer;
+
+ private List<Order> _pending = new ArrayList<Order>();
+
+ /**
+  * Creates an ingestor.
+  *
+  * @param esql the store orders are written to
+  * @param batchSize the number of buffered orders that triggers a flush
+  * @param flushIntervalMillis how often buffered orders are flushed in the
+  *        background; 0 disables the timer
+  * @param listener notified after each flush; may be null
+  */
+ public OrderIngestor(Amazon esql, int batchSize, long flushIntervalMillis, Listener listener) {
+    if (batchSize <= 0)
+       throw new IllegalArgumentException("batchSize must be positive");
+    this._esql = esql;
+    this._batchSize = batchSize;
+    this._listener = listener;
+    if (flushIntervalMillis > 0) {
+       this._timer = new Timer("OrderIngestor-flush", true);
+       this._timer.schedule(new TimerTask() {
+          public void run() {
+             try {
+                flush();
+             } catch (SQLException e) {
+                System.err.println("Background order flush failed: " + e.getMessage());
+             }
+          }
+       }, flushIntervalMillis, flushIntervalMillis);
+    } else {
+       this._timer = null;
+    }
+ }//end OrderIngestor
+
+ /**
+  * Buffers an order, flushing the batch if it is now full.
+  *
+  * @return the results of the flush this order triggered, or an empty list
+  */
+ public synchronized List<OrderResult> submit(Order order) throws SQLException {
+    this._pending.add(order);
+    if (this._pending.size() >= this._batchSize)
+       return flush();
+    return new ArrayList<OrderResult>();
+ }//end submit
+
+ /**
+  * Writes every buffered order in one transaction.
+  *
+  * @return one result per flushed order, in submission order
+  * @throws java.sql.SQLException when the batch could not be written; the
+  *         orders are dropped from the buffer and nothing is committed
+  */
+ public synchronized List<OrderResult> flush() throws SQLException {
+    if (this._pending.isEmpty())
+       return new ArrayList<OrderResult>();
+
+    final List<Order> batch = this._pending;
+    this._pending = new ArrayList<Order>();
+
+    List<OrderResult> results = this._esql.inTransaction(new Amazon.Work<List<OrderResult>>() {
+       public List<OrderResult> run() throws SQLException {
+          return ingest(batch);
+       }
+    });
+
+    // drop the touched products from the cache now that the batch has committed
+    for (Order o : batch)
+       this._esql.products().invalidate(new ProductKey(o.storeID, o.productName));
+    for (int i = 0; i < batch.size(); ++i)
+       if (results.get(i).placed())
+          this._esql.stockDecremented(batch.get(i).storeID, batch.get(i).productName,
+                                      results.get(i).remainingUnits);
+    if (this._listener != null)
+       this._listener.flushed(batch, results);
+    return results;
+ }//end flush
+
+ /**
+  * Flushes what is left and stops the background timer.
+  */
+ public List<OrderResult> close() throws SQLException {
+    if (this._timer != null)
+       this._timer.cancel();
+    return flush();
+ }
+
+ // validates and writes one batch; runs inside the flush transaction
+ private List<OrderResult> ingest(List<Order> batch) throws SQLException {
+    OrderResult[] results = new OrderResult[batch.size()];
+
+    // group orders by product, sorted so row locks are always taken in the same order
+    Map<ProductKey, List<Integer>> groups = new TreeMap<ProductKey, List<Integer>>();
+    for (int i = 0; i < batch.size(); ++i) {
+       Order o = batch.get(i);
+       if (o.units <= 0) {
+          results[i] = OrderResult.rejected(OrderResult.Status.INVALID);
+          continue;
+       }
+       ProductKey key = new ProductKey(o.storeID, o.productName);
+       List<Integer> members = groups.get(key);
+       if (members == null) {
+          members = new ArrayList<Integer>();
+          groups.put(key, members);
+       }
+       members.add(i);
+    }
+
+    // lock each product row once and hand out its stock in arrival order
+    List<Object[]> decrements = new ArrayList<Object[]>();
+    List<Integer> accepted = new ArrayList<Integer>();
+    for (Map.Entry<ProductKey, List<Integer>> group : groups.entrySet()) {
+       ProductKey key = group.getKey();
+       int remaining = this._esql.queryInt(
+          "SELECT numberOfUnits FROM Product WHERE storeID = ? AND productName = ? FOR UPDATE",
+          -1, key.storeID, key.productName);
+       if (remaining < 0) {
+          for (int i : group.getValue())
+             results[i] = OrderResult.rejected(OrderResult.Status.NO_SUCH_PRODUCT);
+          continue;
+       }
+
+       int taken = 0;
+       for (int i : group.getValue()) {
+          int units = batch.get(i).units;
+          if (units <= remaining) {
+             remaining -= units;
+             taken += units;
+             accepted.add(i);
+             // order number is filled in below
+             results[i] = new OrderResult(OrderResult.Status.PLACED, -1, remaining);
+          } else {
+             results[i] = new OrderResult(OrderResult.Status.OUT_OF_STOCK, -1, remaining);
+          }
+       }
+       if (taken > 0)
+          decrements.add(new Object[] { taken, key.storeID, key.productName });
+    }
+
+    if (!accepted.isEmpty()) {
+       // reserve all order numbers for the batch in one round trip
+       int[] keys = this._esql.queryInts(
+          "SELECT nextval('orders_ordernumber_seq') FROM generate_series(1, ?)",
+          accepted.size());
+
+       Timestamp now = new Timestamp(System.currentTimeMillis());
+       List<Object[]> inserts = new ArrayList<Object[]>(accepted.size());
+       for (int k = 0; k < accepted.size(); ++k) {
+          int i = accepted.get(k);
+          Order o = batch.get(i);
+          int orderNumber = keys[k];
+          results[i] = new OrderResult(OrderResult.Status.PLACED, orderNumber, results[i].remainingUnits);
+          inserts.add(new Object[] { orderNumber, o.customerID, o.storeID, o.productName, o.units,
+                                     o.orderTime != null ? o.orderTime : now });
+       }
+
+       this._esql.executeBatch(
+          "INSERT INTO Orders (orderNumber, customerID, storeID, productName, unitsOrdered, orderTime) " +
+          "VALUES (?, ?, ?, ?, ?, ?)", inserts);
+       this._esql.executeBatch(
+          "UPDATE Product SET numberOfUnits = numberOfUnits - ? WHERE storeID = ? AND productName = ?",
+          decrements);
+    }
+    return Arrays.asList(results);
+ }//end ingest
+
+ /**
+  * Replays an orders CSV file (same layout as data/orders.csv) through the
+  * batch API and prints a summary.
+  *
+  * @param args <dbname> <port> <user> <orders.csv> [batch size]
+  */
+ public static void main(String[] args) throws Exception {
+    if (args.length < 4) {
+       System.err.println(
+          "Usage: " +
+          "java [-classpath <classpath>] " +
+          OrderIngestor.class.getName() +
+          " <dbname> <port> <user> <orders.csv> [batch size]");
+       return;
+    }
+
+    // use postgres JDBC driver.
+    Class.forName("org.postgresql.Driver");
+    Amazon esql = new Amazon(args[0], args[1], args[2], "");
+    int batchSize = args.length > 4 ? Integer.parseInt(args[4]) : 500;
+
+    final int[] counts = new int[OrderResult.Status.values().length];
+    OrderIngestor ingestor = new OrderIngestor(esql, batchSize, 0, new Listener() {
+       public void flushed(List<Order> orders, List<OrderResult> results) {
+          for (OrderResult r : results)
+             ++counts[r.status.ordinal()];
+       }
+    });
+
+    long start = System.currentTimeMillis();
+    BufferedReader csv = new BufferedReader(new FileReader(args[3]));
+    try {
+       // orderNumber,customerID,storeID,productName,unitsOrdered,orderTime
+       String line = csv.readLine();
+       while ((line = csv.readLine()) != null) {
+          line = line.trim();
+          if (line.isEmpty())
+             continue;
+          String[] f = line.split(",");
+          ingestor.submit(new Order(Integer.parseInt(f[1]), Integer.parseInt(f[2]), f[3],
+                                    Integer.parseInt(f[4]), Timestamp.valueOf(f[5])));
+       }
+       ingestor.close();
+    } finally {
+       csv.close();
+       esql.cleanup();
+    }
+
+    long elapsed = Math.max(1, System.currentTimeMillis() - start);
+    int total = 0;
+    for (OrderResult.Status status : OrderResult.Status.values()) {
+       System.out.println(status + ": " + counts[status.ordinal()]);
+       total += counts[status.ordinal()];
+    }
+    System.out.println(total + " orders in " + elapsed + " ms (" + (total * 1000L / elapsed) + " orders/sec)");
+ }//end main
+
+}//end OrderIngestor
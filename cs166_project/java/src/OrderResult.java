@@ -0,0 +1,46 @@
+/**
+* Outcome of placing a single order.
+*
+*/
+public class OrderResult {
+
+ public enum Status {
+    // the order was written and stock was decremented
+    PLACED,
+    // the product exists but has fewer units than were ordered
+    OUT_OF_STOCK,
+    // the store does not carry the product
+    NO_SUCH_PRODUCT,
+    // the order was refused before reaching the database
+    INVALID
+ }
+
+ public final Status status;
+
+ // orderNumber of the new Orders row, or -1 if nothing was written
+ public final int orderNumber;
+
+ // units left after the order, or -1 when unknown
+ public final int remainingUnits;
+
+ public OrderResult(Status status, int orderNumber, int remainingUnits) {
+    this.status = status;
+    this.orderNumber = orderNumber;
+    this.remainingUnits = remainingUnits;
+ }
+
+ public static OrderResult rejected(Status status) {
+    return new OrderResult(status, -1, -1);
+ }
+
+ public boolean placed() {
+    return this.status == Status.PLACED;
+ }
+
+ public String toString() {
+    return this.placed()
+       ? "PLACED #" + this.orderNumber + " (" + this.remainingUnits + " left)"
+       : this.status.toString();
+ }
+
+}//end OrderResult
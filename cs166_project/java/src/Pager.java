@@ -0,0 +1,67 @@
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+
+
+/**
+* Shows a listing one page at a time on the session console. Pages are
+* fetched by key ("the rows after the last one shown"), not by OFFSET, so
+* every page costs one short index range scan however deep the user goes,
+* and only the current page is held in memory.
+*
+*/
+public class Pager {
+
+ /**
+  * Fetches one page of a listing.
+  */
+ public interface Query<T> {
+    // up to limit rows following last in key order, or the first rows if last is null
+    List<T> next(T last, int limit) throws SQLException;
+ }
+
+ /**
+  * Prints one row of a listing.
+  */
+ public interface Printer<T> {
+    void print(T row);
+ }
+
+ /**
+  * Prints the listing page by page, asking before each further page.
+  *
+  * @param pageSize rows per page
+  * @return the number of rows shown
+  */
+ public static <T> int browse(Query<T> query, Printer<T> printer, int pageSize)
+       throws SQLException, IOException {
+    if (pageSize <= 0)
+       throw new IllegalArgumentException("pageSize must be positive");
+    int shown = 0;
+    T last = null;
+    while (true) {
+       // one extra row tells whether another page follows
+       List<T> page = query.next(last, pageSize + 1);
+       boolean more = page.size() > pageSize;
+       int n = Math.min(page.size(), pageSize);
+       for (int i = 0; i < n; ++i)
+          printer.print(page.get(i));
+       shown += n;
+       if (!more)
+          return shown;
+       last = page.get(n - 1);
+
+       SessionIO.out().print("-- " + shown + " shown; Enter for more, q to stop: ");
+       String answer;
+       try {
+          answer = SessionIO.in.readLine();
+       } catch (java.io.EOFException e) {
+          // no more input: show nothing further
+          return shown;
+       }
+       if (answer.trim().equalsIgnoreCase("q"))
+          return shown;
+    }
+ }//end browse
+
+}//end Pager
@@ -0,0 +1,246 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+* Keeps the monthly partitions of Orders and ProductUpdates in shape (see
+* sql/src/partitions.sql). Each run creates the partitions for the coming
+* months, moves rows that fell into a default partition into their own
+* month, and detaches months older than the retention period into the
+* archive schema. Archived months can optionally be exported to gzipped
+* CSV files and dropped from the database; a month whose export failed
+* stays in the archive schema and is exported again by the next run.
+*
+*/
+public class PartitionMaintainer {
+
+ // tables partitioned by month
+ private static final String[] TABLES = { "Orders", "ProductUpdates" };
+
+ private final Amazon _esql;
+ private final int _monthsAhead;
+ private final int _keepMonths;
+ private final File _exportDir;
+ private Timer _timer;
+
+ /**
+  * @param esql where the partitions live
+  * @param monthsAhead how many future months get a partition in advance
+  * @param keepMonths how many months before the current one stay attached;
+  *        0 disables archiving
+  * @param exportDir where archived months are exported before being
+  *        dropped; null keeps them in the archive schema
+  */
+ public PartitionMaintainer(Amazon esql, int monthsAhead, int keepMonths, File exportDir) {
+    this._esql = esql;
+    this._monthsAhead = monthsAhead;
+    this._keepMonths = keepMonths;
+    this._exportDir = exportDir;
+ }//end PartitionMaintainer
+
+ /**
+  * Runs one maintenance pass.
+  *
+  * @return the tables archived by this run, as archive.name
+  * @throws java.sql.SQLException when a step failed; earlier steps stay
+  *         done, and exports carry on past a failed table
+  */
+ public List<String> run() throws SQLException, IOException {
+    List<String> archived = new ArrayList<String>();
+    for (String table : TABLES) {
+       this._esql.queryInt("SELECT ensure_month_partitions(?, ?)", 0, table, this._monthsAhead);
+       if (this._keepMonths > 0) {
+          final List<String> names = new ArrayList<String>();
+          // one transaction, so counters and detaching stay in step
+          this._esql.queryEach("SELECT archive_month_partitions(?, ?)", new Amazon.RowHandler() {
+             public boolean row(ResultSet rs) throws SQLException {
+                names.add(rs.getString(1));
+                return true;
+             }
+          }, table, this._keepMonths);
+          archived.addAll(names);
+       }
+    }
+    if (this._exportDir != null)
+       exportArchived();
+    return archived;
+ }//end run
+
+ // exports every archived month still in the database, including those
+ // left behind by an earlier run whose export failed
+ private void exportArchived() throws SQLException, IOException {
+    final List<String> pending = new ArrayList<String>();
+    this._esql.queryEach(
+       "SELECT tablename FROM pg_tables WHERE schemaname = 'archive' " +
+       "AND (tablename LIKE 'orders\\_p%' OR tablename LIKE 'productupdates\\_p%') ORDER BY tablename",
+       new Amazon.RowHandler() {
+          public boolean row(ResultSet rs) throws SQLException {
+             pending.add("archive." + rs.getString(1));
+             return true;
+          }
+       });
+    Exception failure = null;
+    for (String name : pending) {
+       try {
+          export(name);
+       } catch (SQLException e) {
+          failure = failure == null ? e : failure;
+       } catch (IOException e) {
+          failure = failure == null ? e : failure;
+       }
+    }
+    if (failure instanceof SQLException)
+       throw (SQLException) failure;
+    if (failure != null)
+       throw (IOException) failure;
+ }//end exportArchived
+
+ /**
+  * Writes an archived table to <exportDir>/<name>.csv.gz with a header
+  * row, then drops it. The file follows RFC 4180: CRLF line breaks, and
+  * values holding a comma, quote or line break are quoted with quotes
+  * doubled. A NULL is an empty field and an empty string is "", as in
+  * COPY ... CSV. Only the blank padding of char(n) values is stripped.
+  */
+ public void export(final String table) throws SQLException, IOException {
+    if (!this._exportDir.isDirectory() && !this._exportDir.mkdirs())
+       throw new IOException("Cannot create " + this._exportDir);
+    File file = new File(this._exportDir, table + ".csv.gz");
+    File tmp = new File(this._exportDir, table + ".csv.gz.tmp");
+    final Writer w = new BufferedWriter(new OutputStreamWriter(
+       new GZIPOutputStream(new FileOutputStream(tmp)), "UTF-8"), 1 << 16);
+    final boolean[] header = { true };
+    try {
+       this._esql.streamQuery("SELECT * FROM " + table, Amazon.STREAM_FETCH_SIZE, new Amazon.RowHandler() {
+          public boolean row(ResultSet rs) throws SQLException {
+             try {
+                ResultSetMetaData md = rs.getMetaData();
+                StringBuilder sb = new StringBuilder();
+                if (header[0]) {
+                   header[0] = false;
+                   for (int i = 1; i <= md.getColumnCount(); ++i)
+                      csvField(sb.append(i > 1 ? "," : ""), md.getColumnName(i));
+                   sb.append("\r\n");
+                }
+                for (int i = 1; i <= md.getColumnCount(); ++i) {
+                   String v = rs.getString(i);
+                   if (v != null && md.getColumnType(i) == Types.CHAR)
+                      v = stripPadding(v);
+                   sb.append(i > 1 ? "," : "");
+                   if (v != null)
+                      csvField(sb, v);
+                }
+                w.write(sb.append("\r\n").toString());
+                return true;
+             } catch (IOException e) {
+                throw new SQLException("Export of " + table + " failed: " + e.getMessage());
+             }
+          }
+       });
+    } finally {
+       w.close();
+    }
+    if (!tmp.renameTo(file))
+       throw new IOException("Cannot rename " + tmp + " to " + file);
+    this._esql.executeUpdate("DROP TABLE " + table);
+ }//end export
+
+ // appends a non-null value as a CSV field, quoted when it has to be
+ private static void csvField(StringBuilder sb, String v) {
+    boolean quote = v.isEmpty();
+    for (int i = 0; i < v.length() && !quote; ++i) {
+       char c = v.charAt(i);
+       quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+    }
+    if (!quote) {
+       sb.append(v);
+       return;
+    }
+    sb.append('"');
+    for (int i = 0; i < v.length(); ++i) {
+       char c = v.charAt(i);
+       if (c == '"')
+          sb.append('"');
+       sb.append(c);
+    }
+    sb.append('"');
+ }//end csvField
+
+ // drops the trailing blanks char(n) pads values with
+ private static String stripPadding(String v) {
+    int end = v.length();
+    while (end > 0 && v.charAt(end - 1) == ' ')
+       --end;
+    return v.substring(0, end);
+ }
+
+ /**
+  * Runs a maintenance pass now and then every periodMillis in the
+  * background until stop().
+  */
+ public synchronized void start(long periodMillis) {
+    stop();
+    this._timer = new Timer("PartitionMaintainer", true);
+    this._timer.schedule(new TimerTask() {
+       public void run() {
+          try {
+             for (String name : PartitionMaintainer.this.run())
+                System.out.println("Archived " + name);
+          } catch (Exception e) {
+             System.err.println("Partition maintenance failed: " + e.getMessage());
+          }
+       }
+    }, 0, periodMillis);
+ }//end start
+
+ public synchronized void stop() {
+    if (this._timer != null) {
+       this._timer.cancel();
+       this._timer = null;
+    }
+ }
+
+ /**
+  * Runs one maintenance pass, e.g. from cron.
+  *
+  * @param args <dbname> <port> <user> [months ahead] [months kept] [export dir]
+  */
+ public static void main(String[] args) throws Exception {
+    if (args.length < 3) {
+       System.err.println(
+          "Usage: " +
+          "java [-classpath <classpath>] " +
+          PartitionMaintainer.class.getName() +
+          " <dbname> <port> <user> [months ahead] [months kept] [export dir]");
+       return;
+    }
+
+    // use postgres JDBC driver.
+    Class.forName("org.postgresql.Driver");
+    Amazon esql = new Amazon(args[0], args[1], args[2], "");
+    try {
+       PartitionMaintainer maintainer = new PartitionMaintainer(esql,
+          args.length > 3 ? Integer.parseInt(args[3]) : 2,
+          args.length > 4 ? Integer.parseInt(args[4]) : 0,
+          args.length > 5 ? new File(args[5]) : null);
+       for (String name : maintainer.run())
+          System.out.println("Archived " + name);
+    } finally {
+       esql.cleanup();
+    }
+ }//end main
+
+}//end PartitionMaintainer
@@ -0,0 +1,39 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+
+/**
+* A row of the Product table.
+*
+*/
+public class Product {
+
+ public static final String COLUMNS = "storeID, productName, numberOfUnits, pricePerUnit";
+
+ // maps a row selected with COLUMNS
+ public static final Amazon.RowMapper<Product> MAPPER = new Amazon.RowMapper<Product>() {
+    public Product map(ResultSet rs) throws SQLException {
+       return new Product(rs.getInt(1), rs.getString(2), rs.getInt(3), rs.getDouble(4));
+    }
+ };
+
+ public final int storeID;
+ public final String productName;
+ public final int numberOfUnits;
+ public final double pricePerUnit;
+
+ public Product(int storeID, String productName, int numberOfUnits, double pricePerUnit) {
+    this.storeID = storeID;
+    this.productName = productName;
+    this.numberOfUnits = numberOfUnits;
+    this.pricePerUnit = pricePerUnit;
+ }
+
+ /**
+  * @return the cache key of this product
+  */
+ public ProductKey key() {
+    return new ProductKey(this.storeID, this.productName);
+ }
+
+}//end Product
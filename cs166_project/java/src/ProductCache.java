@@ -0,0 +1,141 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+* Bounded in-process cache of Product rows keyed by ProductKey. Least
+* recently used entries are evicted once the cache is full. Writes made by
+* the application update the cache directly; changes made by other writers
+* are picked up by ProductChangeListener, which invalidates entries.
+*
+* While the listener is not connected the cache is disabled, since it
+* would have no way of hearing about outside changes.
+*
+* A read that misses goes to the database and then fills the cache; a
+* write or invalidation landing in between would be overwritten by the
+* older row. Readers therefore take generation() before querying and fill
+* with putIfUnchanged(), which drops the row if the key's generation moved.
+* Generations are kept per stripe of keys rather than per key so that
+* evicted keys need no bookkeeping.
+*
+*/
+public class ProductCache {
+
+ // number of generation counters keys are spread over
+ public static final int GENERATION_STRIPES = 256;
+
+ private final long[] _generations = new long[GENERATION_STRIPES];
+ private final LinkedHashMap<ProductKey, Product> _entries;
+ private boolean _enabled = false;
+ private long _hits = 0;
+ private long _misses = 0;
+
+ /**
+  * Creates an empty, disabled cache.
+  *
+  * @param capacity the maximum number of products kept
+  */
+ public ProductCache(final int capacity) {
+    this._entries = new LinkedHashMap<ProductKey, Product>(16, 0.75f, true) {
+       protected boolean removeEldestEntry(Map.Entry<ProductKey, Product> eldest) {
+          return size() > capacity;
+       }
+    };
+ }//end ProductCache
+
+ /**
+  * @return the cached product, or null on a miss
+  */
+ public synchronized Product get(ProductKey key) {
+    Product p = this._enabled ? this._entries.get(key) : null;
+    if (p != null)
+       ++this._hits;
+    else
+       ++this._misses;
+    return p;
+ }//end get
+
+ /**
+  * Stores the current state of a product.
+  */
+ public synchronized void put(Product product) {
+    ProductKey key = product.key();
+    bump(key);
+    if (this._enabled)
+       this._entries.put(key, product);
+ }
+
+ /**
+  * @return the key's generation, to be passed to putIfUnchanged()
+  */
+ public synchronized long generation(ProductKey key) {
+    return this._generations[stripe(key)];
+ }
+
+ /**
+  * Stores a product read from the database, unless the key was written or
+  * invalidated since generation() was taken.
+  */
+ public synchronized void putIfUnchanged(Product product, long generation) {
+    ProductKey key = product.key();
+    if (this._enabled && this._generations[stripe(key)] == generation)
+       this._entries.put(key, product);
+ }
+
+ /**
+  * Updates the unit count of a cached product, keeping its price. Does
+  * nothing if the product is not cached.
+  */
+ public synchronized void updateUnits(ProductKey key, int numberOfUnits) {
+    bump(key);
+    Product p = this._entries.get(key);
+    if (p != null)
+       this._entries.put(key, new Product(p.storeID, p.productName, numberOfUnits, p.pricePerUnit));
+ }
+
+ /**
+  * Drops a product from the cache.
+  */
+ public synchronized void invalidate(ProductKey key) {
+    bump(key);
+    this._entries.remove(key);
+ }
+
+ /**
+  * Turns the cache on or off. Turning it off also empties it.
+  */
+ public synchronized void setEnabled(boolean enabled) {
+    this._enabled = enabled;
+    if (!enabled) {
+       this._entries.clear();
+       for (int i = 0; i < this._generations.length; ++i)
+          ++this._generations[i];
+    }
+ }
+
+ public synchronized boolean isEnabled() {
+    return this._enabled;
+ }
+
+ public synchronized int size() {
+    return this._entries.size();
+ }
+
+ public synchronized long hits() {
+    return this._hits;
+ }
+
+ public synchronized long misses() {
+    return this._misses;
+ }
+
+ // the generation counter a key belongs to
+ private int stripe(ProductKey key) {
+    return (key.hashCode() & 0x7fffffff) % GENERATION_STRIPES;
+ }
+
+ private void bump(ProductKey key) {
+    ++this._generations[stripe(key)];
+ }
+
+}//end ProductCache
@@ -0,0 +1,180 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.TreeMap;
+
+
+/**
+* Keeps a ProductCache coherent with writes made by other processes. The
+* product_change_trigger in triggers.sql logs every changed key into
+* ProductChanges together with the writer's origin; this listener polls
+* the log on a dedicated connection and invalidates the keys written by
+* anyone but its own pool, whose writes the process has already applied
+* to its cache.
+*
+* Change IDs are handed out at insert but become visible at commit, so a
+* transaction can commit an ID lower than one already read. IDs skipped
+* over are remembered and read again on every poll until they show up or
+* GAP_MILLIS has passed (a rolled back write leaves an ID that never
+* does); if more than MAX_GAPS are outstanding the cache is emptied
+* instead.
+*
+*/
+public class ProductChangeListener extends Thread {
+
+ // how often the change log is polled
+ public static final long POLL_MILLIS = 500;
+
+ // how long a skipped change ID is waited for; longer running writers can
+ // leave a stale entry behind
+ public static final long GAP_MILLIS = 60 * 1000L;
+
+ // most skipped change IDs remembered; past that the cache is emptied
+ public static final int MAX_GAPS = 1000;
+
+ // how long to wait before reconnecting after a failure
+ public static final long RETRY_MILLIS = 30 * 1000L;
+
+ // change log rows older than this are deleted
+ public static final String CHANGE_LOG_RETENTION = "1 hour";
+
+ private final ConnectionPool _pool;
+ private final ProductCache _cache;
+ private volatile boolean _running = true;
+
+ // change IDs below the last one read that have not shown up yet, with
+ // when they were first missed
+ private final TreeMap<Long, Long> _gaps = new TreeMap<Long, Long>();
+
+ public ProductChangeListener(ConnectionPool pool, ProductCache cache) {
+    super("ProductChangeListener");
+    setDaemon(true);
+    this._pool = pool;
+    this._cache = cache;
+ }
+
+ /**
+  * Stops listening; the cache is disabled.
+  */
+ public void shutdown() {
+    this._running = false;
+    interrupt();
+ }
+
+ public void run() {
+    boolean warned = false;
+    while (this._running) {
+       Connection conn = null;
+       try {
+          conn = this._pool.openUnpooled();
+          listen(conn);
+       } catch (SQLException e) {
+          if (!warned) {
+             System.err.println("Product cache disabled, change listener failed: " + e.getMessage());
+             warned = true;
+          }
+       } catch (InterruptedException e) {
+          // shutting down.
+       } finally {
+          this._cache.setEnabled(false);
+          if (conn != null) {
+             try {
+                conn.close();
+             } catch (SQLException e) {
+                // ignored.
+             }
+          }
+       }
+       try {
+          if (this._running)
+             Thread.sleep(RETRY_MILLIS);
+       } catch (InterruptedException e) {
+          // shutting down.
+       }
+    }
+ }//end run
+
+ // polls the change log and invalidates changed keys until the connection fails
+ private void listen(Connection conn) throws SQLException, InterruptedException {
+    Statement stmt = conn.createStatement();
+
+    // start after whatever is already logged; the cache starts out empty
+    long lastSeen = 0;
+    ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(changeID), 0) FROM ProductChanges");
+    if (rs.next())
+       lastSeen = rs.getLong(1);
+    rs.close();
+    this._gaps.clear();
+    this._cache.setEnabled(true);
+
+    long nextTrim = 0;
+    while (this._running) {
+       Thread.sleep(POLL_MILLIS);
+       lastSeen = poll(stmt, lastSeen);
+
+       long now = System.currentTimeMillis();
+       if (now >= nextTrim) {
+          stmt.executeUpdate("DELETE FROM ProductChanges " +
+             "WHERE changedOn < CURRENT_TIMESTAMP - INTERVAL '" + CHANGE_LOG_RETENTION + "'");
+          nextTrim = now + 10 * 60 * 1000L;
+       }
+    }
+ }//end listen
+
+ // reads the changes logged after lastSeen and those that filled a gap,
+ // returning the new lastSeen
+ private long poll(Statement stmt, long lastSeen) throws SQLException {
+    long now = System.currentTimeMillis();
+    for (Iterator<Long> it = this._gaps.values().iterator(); it.hasNext(); )
+       if (now - it.next() >= GAP_MILLIS)
+          it.remove();
+
+    StringBuilder sql = new StringBuilder(
+       "SELECT changeID, storeID, productName, origin FROM ProductChanges WHERE changeID > ").append(lastSeen);
+    if (!this._gaps.isEmpty()) {
+       sql.append(" OR changeID IN (");
+       boolean first = true;
+       for (Long id : this._gaps.keySet()) {
+          sql.append(first ? "" : ", ").append(id);
+          first = false;
+       }
+       sql.append(')');
+    }
+    sql.append(" ORDER BY changeID");
+
+    String origin = this._pool.origin();
+    ResultSet rs = stmt.executeQuery(sql.toString());
+    try {
+       while (rs.next()) {
+          long id = rs.getLong(1);
+          if (id > lastSeen) {
+             for (long gap = lastSeen + 1; gap < id; ++gap)
+                missed(gap, now);
+             lastSeen = id;
+          } else {
+             this._gaps.remove(id);
+          }
+          if (!origin.equals(rs.getString(4)))
+             this._cache.invalidate(new ProductKey(rs.getInt(2), rs.getString(3)));
+       }
+    } finally {
+       rs.close();
+    }
+    return lastSeen;
+ }//end poll
+
+ // remembers a skipped change ID; too many and the cache is emptied, as
+ // any entry might be stale
+ private void missed(long id, long now) {
+    if (this._gaps.size() < MAX_GAPS) {
+       this._gaps.put(id, now);
+       return;
+    }
+    this._gaps.clear();
+    this._cache.setEnabled(false);
+    this._cache.setEnabled(true);
+ }//end missed
+
+}//end ProductChangeListener
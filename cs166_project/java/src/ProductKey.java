@@ -0,0 +1,51 @@
+/**
+* Compact key for a Product row: the store ID plus the interned product
+* name. Product names are char(30) in the database, so trailing padding is
+* stripped before interning so that 'Pepsi' and 'Pepsi   ' share a key.
+*
+*/
+public final class ProductKey implements Comparable<ProductKey> {
+
+ public final int storeID;
+ public final String productName;
+ private final int _hash;
+
+ public ProductKey(int storeID, String productName) {
+    this.storeID = storeID;
+    this.productName = trimRight(productName).intern();
+    this._hash = 31 * storeID + this.productName.hashCode();
+ }
+
+ // strips the blank padding Postgres adds to char(n) values
+ static String trimRight(String s) {
+    int end = s.length();
+    while (end > 0 && s.charAt(end - 1) == ' ')
+       --end;
+    return s.substring(0, end);
+ }
+
+ public boolean equals(Object o) {
+    if (this == o)
+       return true;
+    if (!(o instanceof ProductKey))
+       return false;
+    ProductKey k = (ProductKey) o;
+    // names are interned, so reference comparison is enough
+    return this.storeID == k.storeID && this.productName == k.productName;
+ }
+
+ public int hashCode() {
+    return this._hash;
+ }
+
+ public int compareTo(ProductKey k) {
+    if (this.storeID != k.storeID)
+       return this.storeID < k.storeID ? -1 : 1;
+    return this.productName.compareTo(k.productName);
+ }
+
+ public String toString() {
+    return this.storeID + "/" + this.productName;
+ }
+
+}//end ProductKey
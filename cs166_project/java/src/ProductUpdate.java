@@ -0,0 +1,36 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+
+/**
+* A row of the ProductUpdates table.
+*
+*/
+public class ProductUpdate {
+
+ public static final String COLUMNS = "updateNumber, managerID, storeID, productName, updatedOn";
+
+ // maps a row selected with COLUMNS
+ public static final Amazon.RowMapper<ProductUpdate> MAPPER = new Amazon.RowMapper<ProductUpdate>() {
+    public ProductUpdate map(ResultSet rs) throws SQLException {
+       return new ProductUpdate(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getString(4),
+                                rs.getTimestamp(5));
+    }
+ };
+
+ public final int updateNumber;
+ public final int managerID;
+ public final int storeID;
+ public final String productName;
+ public final Timestamp updatedOn;
+
+ public ProductUpdate(int updateNumber, int managerID, int storeID, String productName, Timestamp updatedOn) {
+    this.updateNumber = updateNumber;
+    this.managerID = managerID;
+    this.storeID = storeID;
+    this.productName = productName;
+    this.updatedOn = updatedOn;
+ }
+
+}//end ProductUpdate
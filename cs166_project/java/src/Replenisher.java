@@ -0,0 +1,257 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiFunction;
+
+
+/**
+* Background low-stock replenishment. Order writes report the stock they
+* leave behind through observe(), which only compares it with the
+* product's reorder point and queues the product; it never touches the
+* database, so the order path stays as fast as before.
+*
+* Every window the queued products are routed to warehouses
+* (WarehouseRouter) and written to ProductSupplyRequests in one batch,
+* sorted so each (store, warehouse) pair forms one shipment. The requests
+* stay outstanding (fulfilledOn is NULL) until fulfil() records their
+* arrival as a separate event, which is when the units reach the store's
+* stock. A product is not reordered while it has a request outstanding,
+* whether placed here or by a manager.
+*
+* Reorder points and quantities come from ReorderPolicies; products
+* without a policy use DEFAULT_REORDER_POINT and DEFAULT_REORDER_QUANTITY.
+*
+*/
+public class Replenisher {
+
+ // stock at or below which a product without a policy is reordered
+ public static final int DEFAULT_REORDER_POINT = 10;
+
+ // units ordered for a product without a policy
+ public static final int DEFAULT_REORDER_QUANTITY = 100;
+
+ // orders routes by store, then warehouse, then product
+ private static final Comparator<WarehouseRouter.Route> BY_SHIPMENT = new Comparator<WarehouseRouter.Route>() {
+    public int compare(WarehouseRouter.Route a, WarehouseRouter.Route b) {
+       if (a.demand.storeID != b.demand.storeID)
+          return Integer.compare(a.demand.storeID, b.demand.storeID);
+       if (a.warehouse.warehouseID != b.warehouse.warehouseID)
+          return Integer.compare(a.warehouse.warehouseID, b.warehouse.warehouseID);
+       return a.demand.productName.compareTo(b.demand.productName);
+    }
+ };
+
+ private final Amazon _esql;
+
+ // {reorder point, reorder quantity} per product with a policy
+ private final ConcurrentHashMap<ProductKey, int[]> _policies = new ConcurrentHashMap<ProductKey, int[]>();
+
+ // per product, whether it is queued (one) plus its outstanding requests;
+ // products with none are absent
+ private final ConcurrentHashMap<ProductKey, Integer> _onOrder = new ConcurrentHashMap<ProductKey, Integer>();
+
+ private static final BiFunction<Integer, Integer, Integer> ADD = new BiFunction<Integer, Integer, Integer>() {
+    public Integer apply(Integer a, Integer b) {
+       return a + b;
+    }
+ };
+
+ // takes one off a count, dropping the product once none is left
+ private static final BiFunction<ProductKey, Integer, Integer> DECREMENT = new BiFunction<ProductKey, Integer, Integer>() {
+    public Integer apply(ProductKey key, Integer n) {
+       return n > 1 ? n - 1 : null;
+    }
+ };
+
+ // products queued since the last flush
+ private final ConcurrentLinkedQueue<ProductKey> _queued = new ConcurrentLinkedQueue<ProductKey>();
+
+ private Timer _timer;
+
+ public Replenisher(Amazon esql) {
+    this._esql = esql;
+ }
+
+ /**
+  * Loads the reorder policies and the products that already have a
+  * request outstanding.
+  *
+  * @throws java.sql.SQLException when failed to execute the queries
+  */
+ public void load() throws SQLException {
+    this._esql.queryEach("SELECT storeID, productName, reorderPoint, reorderQuantity FROM ReorderPolicies",
+       new Amazon.RowHandler() {
+          public boolean row(ResultSet rs) throws SQLException {
+             _policies.put(new ProductKey(rs.getInt(1), rs.getString(2)), new int[] { rs.getInt(3), rs.getInt(4) });
+             return true;
+          }
+       });
+    this._esql.queryEach("SELECT storeID, productName, COUNT(*) FROM ProductSupplyRequests " +
+                         "WHERE fulfilledOn IS NULL GROUP BY storeID, productName",
+       new Amazon.RowHandler() {
+          public boolean row(ResultSet rs) throws SQLException {
+             _onOrder.put(new ProductKey(rs.getInt(1), rs.getString(2)), rs.getInt(3));
+             return true;
+          }
+       });
+ }//end load
+
+ /**
+  * Sets a product's reorder point and quantity.
+  *
+  * @throws java.sql.SQLException when the policy could not be stored
+  */
+ public void setPolicy(int storeID, String productName, int reorderPoint, int reorderQuantity) throws SQLException {
+    this._esql.executeUpdate(
+       "INSERT INTO ReorderPolicies (storeID, productName, reorderPoint, reorderQuantity) VALUES (?, ?, ?, ?) " +
+       "ON CONFLICT (storeID, productName) DO UPDATE " +
+       "SET reorderPoint = EXCLUDED.reorderPoint, reorderQuantity = EXCLUDED.reorderQuantity",
+       storeID, productName, reorderPoint, reorderQuantity);
+    this._policies.put(new ProductKey(storeID, productName), new int[] { reorderPoint, reorderQuantity });
+ }//end setPolicy
+
+ private int[] policy(ProductKey key) {
+    int[] p = this._policies.get(key);
+    return p != null ? p : new int[] { DEFAULT_REORDER_POINT, DEFAULT_REORDER_QUANTITY };
+ }
+
+ /**
+  * Reports the stock a write left behind. Queues the product for
+  * reordering if it is at or below its reorder point and not already on
+  * order. Never blocks on the database.
+  */
+ public void observe(int storeID, String productName, int remainingUnits) {
+    if (remainingUnits < 0)
+       return;
+    ProductKey key = new ProductKey(storeID, productName);
+    if (remainingUnits > policy(key)[0])
+       return;
+    if (this._onOrder.putIfAbsent(key, 1) == null)
+       this._queued.add(key);
+ }//end observe
+
+ /**
+  * Routes and writes every product queued since the last flush.
+  *
+  * @return the number of supply requests written
+  * @throws java.sql.SQLException when the batch could not be written; the
+  *         products are queued again by their next decrement
+  */
+ public synchronized int flush() throws SQLException {
+    List<Object[]> needs = new ArrayList<Object[]>();
+    List<ProductKey> keys = new ArrayList<ProductKey>();
+    for (ProductKey key; (key = this._queued.poll()) != null; ) {
+       keys.add(key);
+       needs.add(new Object[] { key.storeID, key.productName, policy(key)[1] });
+    }
+    if (needs.isEmpty())
+       return 0;
+
+    // each queued product is counted once until the flush is over; its
+    // written requests are counted before that is dropped
+    List<WarehouseRouter.Route> routes = Collections.emptyList();
+    List<WarehouseRouter.Route> written = new ArrayList<WarehouseRouter.Route>();
+    List<WarehouseRouter.Route> skipped = new ArrayList<WarehouseRouter.Route>();
+    boolean done = false;
+    try {
+       routes = this._esql.planSupply(needs);
+       Collections.sort(routes, BY_SHIPMENT);
+
+       Timestamp now = new Timestamp(System.currentTimeMillis());
+       List<Object[]> rows = new ArrayList<Object[]>(routes.size());
+       for (WarehouseRouter.Route r : routes) {
+          // the store may have been deleted since the product was queued
+          Store store = this._esql.findStore(r.demand.storeID);
+          if (store == null) {
+             skipped.add(r);
+             continue;
+          }
+          rows.add(new Object[] { store.managerID, r.warehouse.warehouseID,
+                                  r.demand.storeID, r.demand.productName, r.demand.units, now });
+          written.add(r);
+       }
+       this._esql.executeBatch(Amazon.INSERT_SUPPLY_REQUEST, rows);
+       for (WarehouseRouter.Route r : written)
+          ordered(new ProductKey(r.demand.storeID, r.demand.productName));
+       done = true;
+       return rows.size();
+    } finally {
+       // give back the warehouse room of every route not written
+       for (WarehouseRouter.Route r : done ? skipped : routes)
+          this._esql.warehouses().release(r.warehouse.warehouseID, r.demand.units);
+       for (ProductKey key : keys)
+          delivered(key);
+    }
+ }//end flush
+
+ /**
+  * Records the arrival of a supply request; see Amazon.fulfilSupplyRequest().
+  *
+  * @return whether the request was outstanding
+  * @throws java.sql.SQLException when the transaction failed
+  */
+ public boolean fulfil(int requestNumber) throws SQLException {
+    return this._esql.fulfilSupplyRequest(requestNumber) != null;
+ }
+
+ /**
+  * Fulfils every outstanding request placed at least leadTimeMillis ago,
+  * manual ones included; see Amazon.fulfilDueSupplyRequests().
+  *
+  * @return the number of requests fulfilled
+  * @throws java.sql.SQLException when a request could not be fulfilled
+  */
+ public int fulfilDue(long leadTimeMillis) throws SQLException {
+    return this._esql.fulfilDueSupplyRequests(leadTimeMillis);
+ }
+
+ // a request for the product was written
+ void ordered(ProductKey key) {
+    this._onOrder.merge(key, 1, ADD);
+ }
+
+ // a request for the product was fulfilled; once none is left outstanding
+ // it may be reordered again
+ void delivered(ProductKey key) {
+    this._onOrder.computeIfPresent(key, DECREMENT);
+ }
+
+ /**
+  * Flushes every windowMillis and, unless leadTimeMillis is negative,
+  * fulfils requests once they are leadTimeMillis old, until stop().
+  */
+ public synchronized void start(long windowMillis, final long leadTimeMillis) {
+    stop();
+    this._timer = new Timer("Replenisher", true);
+    this._timer.schedule(new TimerTask() {
+       public void run() {
+          try {
+             flush();
+             if (leadTimeMillis >= 0)
+                fulfilDue(leadTimeMillis);
+          } catch (SQLException e) {
+             System.err.println("Replenishment failed: " + e.getMessage());
+          } catch (RuntimeException e) {
+             // an uncaught exception would kill the timer for good
+             System.err.println("Replenishment failed: " + e);
+          }
+       }
+    }, windowMillis, windowMillis);
+ }//end start
+
+ public synchronized void stop() {
+    if (this._timer != null) {
+       this._timer.cancel();
+       this._timer = null;
+    }
+ }
+
+}//end Replenisher
@@ -0,0 +1,101 @@
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.StringReader;
+
+
+/**
+* Per-thread console streams. The menu handlers in Amazon read from
+* SessionIO.in and write to SessionIO.out(); by default these are stdin and
+* stdout, but a server session can bind its own socket streams to the
+* thread it runs on so many sessions can share the same handlers.
+*
+*/
+public class SessionIO {
+
+ private static final BufferedReader CONSOLE_IN = new BufferedReader(
+                                                     new InputStreamReader(System.in));
+
+ private static final ThreadLocal<BufferedReader> _in = new ThreadLocal<BufferedReader>();
+ private static final ThreadLocal<PrintStream> _out = new ThreadLocal<PrintStream>();
+
+ // nanoseconds the current thread has spent blocked reading input
+ private static final ThreadLocal<long[]> _inputWait = new ThreadLocal<long[]>() {
+    protected long[] initialValue() {
+       return new long[1];
+    }
+ };
+
+ /**
+  * Reader that forwards to the current thread's input. Pending output is
+  * flushed before each read so prompts show up on the client. At the end
+  * of the input (the client disconnected, stdin was closed) readLine()
+  * throws EOFException instead of returning null, so a prompt loop cannot
+  * spin on a dead session. A socket read timeout ends the input the same
+  * way.
+  */
+ public static final BufferedReader in = new BufferedReader(new StringReader("")) {
+    public String readLine() throws IOException {
+       currentOut().flush();
+       long start = System.nanoTime();
+       try {
+          String line = currentIn().readLine();
+          if (line == null)
+             throw new EOFException("End of input");
+          return line;
+       } catch (java.net.SocketTimeoutException e) {
+          EOFException eof = new EOFException("Session timed out");
+          eof.initCause(e);
+          throw eof;
+       } finally {
+          _inputWait.get()[0] += System.nanoTime() - start;
+       }
+    }
+ };
+
+ /**
+  * @return the total time the calling thread has spent waiting for input,
+  *         in nanoseconds; used to keep user think time out of latencies
+  */
+ public static long inputWaitNanos() {
+    return _inputWait.get()[0];
+ }
+
+ /**
+  * @return the current thread's output stream. Each session binds a stream
+  *         of its own; sharing one wrapper would make every session's
+  *         output queue on its lock behind a client that stopped reading.
+  */
+ public static PrintStream out() {
+    return currentOut();
+ }
+
+ /**
+  * Binds streams to the calling thread until unbind() is called.
+  */
+ public static void bind(BufferedReader in, PrintStream out) {
+    _in.set(in);
+    _out.set(out);
+ }
+
+ /**
+  * Reverts the calling thread to stdin / stdout.
+  */
+ public static void unbind() {
+    _in.remove();
+    _out.remove();
+ }
+
+ private static BufferedReader currentIn() {
+    BufferedReader r = _in.get();
+    return r != null ? r : CONSOLE_IN;
+ }
+
+ private static PrintStream currentOut() {
+    PrintStream p = _out.get();
+    return p != null ? p : System.out;
+ }
+
+}//end SessionIO
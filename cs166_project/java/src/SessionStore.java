@@ -0,0 +1,318 @@
+import java.security.SecureRandom;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+* In-memory login sessions. Logging in creates a session identified by a
+* random token; the session expires once it has not been used for the
+* time-to-live. Sessions never touch the database on the request path, so
+* any number of users can be logged in at once without contending on a
+* shared table.
+*
+* With persistTo() the store also writes sessions behind to the
+* UserSessions table every few seconds, so tokens survive a restart
+* (see load()) and logins can be audited. Log outs are written through at
+* once so a restart cannot revive them. Without it sessions are purely in
+* memory.
+*
+* A session caches the user's name and type; updateUser() refreshes them
+* when an account changes so a demoted user loses their rights at once.
+*
+*/
+public class SessionStore {
+
+ /**
+  * A logged-in user.
+  */
+ public static class Session {
+    public final String token;
+    public final int userID;
+    public final String name;
+    public final String type;
+    public final long openedAt;
+    private volatile long _lastSeen;
+    private volatile long _closedAt = 0;
+
+    // changed since the last write-behind flush
+    private final AtomicBoolean _dirty = new AtomicBoolean(true);
+
+    // the stores the user manages, as cached by Amazon.managerStores()
+    volatile Amazon.ManagerStores managerStores = null;
+
+    Session(String token, int userID, String name, String type, long openedAt, long lastSeen) {
+       this.token = token;
+       this.userID = userID;
+       this.name = name;
+       this.type = type;
+       this.openedAt = openedAt;
+       this._lastSeen = lastSeen;
+    }
+
+    // the same session with the user's current details
+    Session(Session session, String name, String type) {
+       this(session.token, session.userID, name, type, session.openedAt, session._lastSeen);
+       this._dirty.set(session._dirty.get());
+    }
+
+    public long lastSeen() {
+       return this._lastSeen;
+    }
+
+    public boolean isManager() {
+       return "manager".equalsIgnoreCase(this.type);
+    }
+
+    public boolean isAdmin() {
+       return "admin".equalsIgnoreCase(this.type);
+    }
+ }//end Session
+
+ // bytes of randomness in a token
+ private static final int TOKEN_BYTES = 16;
+
+ private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+ private final SecureRandom _random = new SecureRandom();
+ private final ConcurrentHashMap<String, Session> _sessions = new ConcurrentHashMap<String, Session>();
+ private final long _ttlMillis;
+ private final Timer _timer;
+
+ // write-behind target and the closed sessions it has not seen yet
+ private volatile Amazon _esql = null;
+ private final ConcurrentLinkedQueue<Session> _closed = new ConcurrentLinkedQueue<Session>();
+
+ /**
+  * @param ttlMillis how long a session stays valid after its last use
+  */
+ public SessionStore(long ttlMillis) {
+    this._ttlMillis = ttlMillis;
+    this._timer = new Timer("SessionStore", true);
+    long period = Math.max(1000L, ttlMillis / 4);
+    this._timer.schedule(new TimerTask() {
+       public void run() {
+          expire();
+       }
+    }, period, period);
+ }//end SessionStore
+
+ private String newToken() {
+    byte[] bytes = new byte[TOKEN_BYTES];
+    this._random.nextBytes(bytes);
+    char[] token = new char[TOKEN_BYTES * 2];
+    for (int i = 0; i < TOKEN_BYTES; ++i) {
+       token[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+       token[2 * i + 1] = HEX[bytes[i] & 0xf];
+    }
+    return new String(token);
+ }
+
+ /**
+  * Starts a session for an authenticated user.
+  *
+  * @return the new session; hand its token to the client
+  */
+ public Session open(int userID, String name, String type) {
+    long now = System.currentTimeMillis();
+    Session session = new Session(newToken(), userID, name.trim(), type.trim(), now, now);
+    this._sessions.put(session.token, session);
+    return session;
+ }//end open
+
+ /**
+  * Looks up a session and extends its lifetime.
+  *
+  * @return the session, or null if the token is unknown or expired
+  */
+ public Session get(String token) {
+    if (token == null)
+       return null;
+    Session session = this._sessions.get(token);
+    if (session == null)
+       return null;
+    long now = System.currentTimeMillis();
+    if (now - session._lastSeen >= this._ttlMillis) {
+       end(session, session._lastSeen + this._ttlMillis);
+       return null;
+    }
+    session._lastSeen = now;
+    session._dirty.set(true);
+    return session;
+ }//end get
+
+ /**
+  * Ends a session, e.g. on log out. Unknown tokens are ignored. When
+  * persisting, the log out is written at once; if that fails it is
+  * retried by the next flush.
+  */
+ public void close(String token) {
+    Session session = token == null ? null : this._sessions.get(token);
+    if (session == null || !end(session, System.currentTimeMillis()) || this._esql == null)
+       return;
+    try {
+       flushClosed();
+    } catch (SQLException e) {
+       System.err.println("Session flush failed: " + e.getMessage());
+    }
+ }//end close
+
+ private boolean end(Session session, long closedAt) {
+    if (!this._sessions.remove(session.token, session))
+       return false;
+    session._closedAt = closedAt;
+    if (this._esql != null)
+       this._closed.add(session);
+    return true;
+ }
+
+ /**
+  * Refreshes the name and type cached by a user's sessions, e.g. after an
+  * admin changed the account.
+  */
+ public void updateUser(int userID, String name, String type) {
+    for (Session session : this._sessions.values())
+       if (session.userID == userID)
+          this._sessions.replace(session.token, session, new Session(session, name.trim(), type.trim()));
+ }//end updateUser
+
+ // drops every session past its time-to-live
+ private void expire() {
+    long now = System.currentTimeMillis();
+    for (Iterator<Session> it = this._sessions.values().iterator(); it.hasNext(); ) {
+       Session session = it.next();
+       if (now - session._lastSeen >= this._ttlMillis)
+          end(session, session._lastSeen + this._ttlMillis);
+    }
+ }//end expire
+
+ /**
+  * @return the number of live sessions
+  */
+ public int size() {
+    return this._sessions.size();
+ }
+
+ // -------------------------------------------------------------------
+ // write-behind persistence
+ // -------------------------------------------------------------------
+
+ private static final String UPSERT =
+    "INSERT INTO UserSessions (token, userID, openedOn, lastSeen) VALUES (?, ?, ?, ?) " +
+    "ON CONFLICT (token) DO UPDATE SET lastSeen = EXCLUDED.lastSeen";
+
+ private static final String UPSERT_CLOSED =
+    "INSERT INTO UserSessions (token, userID, openedOn, lastSeen, closedOn) VALUES (?, ?, ?, ?, ?) " +
+    "ON CONFLICT (token) DO UPDATE SET lastSeen = EXCLUDED.lastSeen, closedOn = EXCLUDED.closedOn";
+
+ /**
+  * Writes sessions to UserSessions every flushMillis from now on. Activity
+  * between flushes is lost if the process dies, which at worst logs those
+  * users out early.
+  */
+ public void persistTo(Amazon esql, long flushMillis) {
+    this._esql = esql;
+    this._timer.schedule(new TimerTask() {
+       public void run() {
+          try {
+             flush();
+          } catch (SQLException e) {
+             System.err.println("Session flush failed: " + e.getMessage());
+          }
+       }
+    }, flushMillis, flushMillis);
+ }//end persistTo
+
+ /**
+  * Writes every session changed since the last flush in two batches,
+  * closed sessions first. Sessions whose write failed are kept for the
+  * next flush.
+  */
+ public synchronized void flush() throws SQLException {
+    Amazon esql = this._esql;
+    if (esql == null)
+       return;
+    flushClosed();
+    List<Session> dirty = new ArrayList<Session>();
+    List<Object[]> live = new ArrayList<Object[]>();
+    for (Session s : this._sessions.values())
+       if (s._dirty.compareAndSet(true, false)) {
+          dirty.add(s);
+          live.add(new Object[] { s.token, s.userID, new Timestamp(s.openedAt), new Timestamp(s._lastSeen) });
+       }
+    boolean written = false;
+    try {
+       esql.executeBatch(UPSERT, live);
+       written = true;
+    } finally {
+       if (!written)
+          for (Session s : dirty)
+             s._dirty.set(true);
+    }
+ }//end flush
+
+ // writes the queued closed sessions; on failure they stay queued
+ private synchronized void flushClosed() throws SQLException {
+    Amazon esql = this._esql;
+    List<Session> ended = new ArrayList<Session>();
+    List<Object[]> closed = new ArrayList<Object[]>();
+    for (Session s; (s = this._closed.poll()) != null; ) {
+       ended.add(s);
+       closed.add(new Object[] { s.token, s.userID, new Timestamp(s.openedAt),
+                                 new Timestamp(s._lastSeen), new Timestamp(s._closedAt) });
+    }
+    if (closed.isEmpty())
+       return;
+    boolean written = false;
+    try {
+       esql.executeBatch(UPSERT_CLOSED, closed);
+       written = true;
+    } finally {
+       if (!written)
+          this._closed.addAll(ended);
+    }
+ }//end flushClosed
+
+ /**
+  * Restores the sessions persisted by an earlier process that are still
+  * within their time-to-live.
+  *
+  * @return the number of sessions restored
+  */
+ public int load(Amazon esql) throws SQLException {
+    Timestamp oldest = new Timestamp(System.currentTimeMillis() - this._ttlMillis);
+    return esql.queryEach(
+       "SELECT s.token, s.userID, u.name, u.type, s.openedOn, s.lastSeen " +
+       "FROM UserSessions s JOIN Users u ON u.userID = s.userID " +
+       "WHERE s.closedOn IS NULL AND s.lastSeen > ?", new Amazon.RowHandler() {
+          public boolean row(ResultSet rs) throws SQLException {
+             Session session = new Session(rs.getString(1).trim(), rs.getInt(2), rs.getString(3).trim(),
+                rs.getString(4).trim(), rs.getTimestamp(5).getTime(), rs.getTimestamp(6).getTime());
+             session._dirty.set(false);
+             _sessions.putIfAbsent(session.token, session);
+             return true;
+          }
+       }, oldest);
+ }//end load
+
+ /**
+  * Stops expiry and write-behind after a last flush.
+  */
+ public void shutdown() {
+    this._timer.cancel();
+    try {
+       flush();
+    } catch (SQLException e) {
+       System.err.println("Session flush failed: " + e.getMessage());
+    }
+ }//end shutdown
+
+}//end SessionStore
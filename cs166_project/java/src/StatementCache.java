@@ -0,0 +1,123 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.postgresql.PGStatement;
+
+
+/**
+* Per-connection LRU cache of PreparedStatements keyed by their SQL text.
+* Once a template has been used often enough it is switched over to a
+* server-side prepared statement so Postgres stops re-planning it.
+*
+*/
+public class StatementCache {
+
+ // a cached statement together with how often it has been handed out
+ private static class Entry {
+    final PreparedStatement stmt;
+    int uses = 0;
+
+    Entry(PreparedStatement stmt) {
+       this.stmt = stmt;
+    }
+ }//end Entry
+
+ private final Connection _connection;
+ private final int _capacity;
+ private final int _serverPrepareThreshold;
+ private final LinkedHashMap<String, Entry> _entries;
+
+ private long _hits = 0;
+ private long _misses = 0;
+
+ /**
+  * Creates a statement cache on top of a connection.
+  *
+  * @param connection the connection statements are prepared on
+  * @param capacity the maximum number of statements kept open
+  * @param serverPrepareThreshold the number of uses after which a template
+  *        is switched to a server-side prepared statement; 0 disables this
+  */
+ public StatementCache(Connection connection, int capacity, int serverPrepareThreshold) {
+    this._connection = connection;
+    this._capacity = capacity;
+    this._serverPrepareThreshold = serverPrepareThreshold;
+    this._entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+ }//end StatementCache
+
+ /**
+  * Returns a prepared statement for the given SQL template, reusing the
+  * cached one when possible. Parameters from a previous use are cleared.
+  * The returned statement is owned by the cache and must not be closed
+  * by the caller.
+  *
+  * @param sql the SQL template with '?' placeholders
+  * @return a ready-to-bind prepared statement
+  * @throws java.sql.SQLException when the statement cannot be prepared
+  */
+ public synchronized PreparedStatement prepare(String sql) throws SQLException {
+    Entry entry = this._entries.get(sql);
+    if (entry == null) {
+       ++this._misses;
+       entry = new Entry(this._connection.prepareStatement(sql));
+       this._entries.put(sql, entry);
+       evict();
+    } else {
+       ++this._hits;
+       entry.stmt.clearParameters();
+    }
+
+    if (++entry.uses == this._serverPrepareThreshold
+          && entry.stmt instanceof PGStatement) {
+       ((PGStatement) entry.stmt).setUseServerPrepare(true);
+    }
+    return entry.stmt;
+ }//end prepare
+
+ // closes the least recently used statements until we are within capacity
+ private void evict() {
+    Iterator<Map.Entry<String, Entry>> it = this._entries.entrySet().iterator();
+    while (this._entries.size() > this._capacity && it.hasNext()) {
+       Entry victim = it.next().getValue();
+       it.remove();
+       try {
+          victim.stmt.close();
+       } catch (SQLException e) {
+          // ignored.
+       }
+    }
+ }//end evict
+
+ /**
+  * @return the number of lookups served from the cache
+  */
+ public synchronized long hits() {
+    return this._hits;
+ }
+
+ /**
+  * @return the number of lookups that had to prepare a new statement
+  */
+ public synchronized long misses() {
+    return this._misses;
+ }
+
+ /**
+  * Closes every cached statement.
+  */
+ public synchronized void close() {
+    for (Entry entry : this._entries.values()) {
+       try {
+          entry.stmt.close();
+       } catch (SQLException e) {
+          // ignored.
+       }
+    }
+    this._entries.clear();
+ }//end close
+
+}//end StatementCache
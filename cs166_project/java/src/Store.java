@@ -0,0 +1,35 @@
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+
+/**
+* A row of the Store table.
+*
+*/
+public class Store {
+
+ public static final String COLUMNS = "storeID, latitude, longitude, managerID, dateEstablished";
+
+ // maps a row selected with COLUMNS
+ public static final Amazon.RowMapper<Store> MAPPER = new Amazon.RowMapper<Store>() {
+    public Store map(ResultSet rs) throws SQLException {
+       return new Store(rs.getInt(1), rs.getDouble(2), rs.getDouble(3), rs.getInt(4), rs.getDate(5));
+    }
+ };
+
+ public final int storeID;
+ public final double latitude;
+ public final double longitude;
+ public final int managerID;
+ public final Date dateEstablished;
+
+ public Store(int storeID, double latitude, double longitude, int managerID, Date dateEstablished) {
+    this.storeID = storeID;
+    this.latitude = latitude;
+    this.longitude = longitude;
+    this.managerID = managerID;
+    this.dateEstablished = dateEstablished;
+ }
+
+}//end Store
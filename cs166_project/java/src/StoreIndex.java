@@ -0,0 +1,204 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+* In-memory uniform grid over Store coordinates. Stores are bucketed into
+* square cells of a fixed size so that a radius lookup only has to look at
+* the cells overlapping the search circle instead of every store.
+*
+* The grid is in degrees while radii are in the DistanceEngine's unit
+* (miles for the geodesic modes), so a lookup converts the radius to a
+* latitude and a longitude span; the longitude span widens towards the
+* poles. Stores are bucketed at the longitude they have; a search box
+* crossing +-180 degrees is searched again on the other side.
+*
+*/
+public class StoreIndex {
+
+ /**
+  * A store returned by a radius lookup together with its distance from
+  * the query point.
+  */
+ public static class Neighbor {
+    public final Store store;
+    public final double distance;
+
+    Neighbor(Store store, double distance) {
+       this.store = store;
+       this.distance = distance;
+    }
+ }//end Neighbor
+
+ static final Comparator<Neighbor> BY_DISTANCE = new Comparator<Neighbor>() {
+    public int compare(Neighbor a, Neighbor b) {
+       int c = Double.compare(a.distance, b.distance);
+       return c != 0 ? c : Integer.compare(a.store.storeID, b.store.storeID);
+    }
+ };
+
+ // side length of a grid cell, in degrees
+ private final double _cellSize;
+
+ private final DistanceEngine _engine;
+
+ // grid cells keyed by packed (row, column)
+ private final IntMap<List<Store>> _cells = new IntMap<List<Store>>();
+
+ // direct lookup by storeID
+ private final IntMap<Store> _byID = new IntMap<Store>();
+
+ /**
+  * Creates an empty index.
+  *
+  * @param cellSize side length of a grid cell in degrees; the latitude
+  *                 span of the usual search radius is a good choice since
+  *                 a lookup then touches about 3x3 cells
+  * @param engine the distance formula radii are measured with
+  */
+ public StoreIndex(double cellSize, DistanceEngine engine) {
+    if (cellSize <= 0)
+       throw new IllegalArgumentException("cellSize must be positive");
+    this._cellSize = cellSize;
+    this._engine = engine;
+ }//end StoreIndex
+
+ private int cellOf(double coordinate) {
+    return (int) Math.floor(coordinate / this._cellSize);
+ }
+
+ // packs a cell position into an int; rows and columns are well within
+ // 16 bits for any radius-sized cell over lat/long coordinates
+ private static int key(int row, int col) {
+    return (row << 16) | (col & 0xffff);
+ }
+
+ /**
+  * Adds a store to the index, replacing any previous entry with the same
+  * storeID.
+  */
+ public synchronized void put(Store store) {
+    remove(store.storeID);
+    int k = key(cellOf(store.latitude), cellOf(store.longitude));
+    List<Store> cell = this._cells.get(k);
+    if (cell == null) {
+       cell = new ArrayList<Store>();
+       this._cells.put(k, cell);
+    }
+    cell.add(store);
+    this._byID.put(store.storeID, store);
+ }//end put
+
+ /**
+  * Removes a store from the index.
+  *
+  * @return true if the store was present
+  */
+ public synchronized boolean remove(int storeID) {
+    Store old = this._byID.remove(storeID);
+    if (old == null)
+       return false;
+    int k = key(cellOf(old.latitude), cellOf(old.longitude));
+    List<Store> cell = this._cells.get(k);
+    cell.remove(old);
+    if (cell.isEmpty())
+       this._cells.remove(k);
+    return true;
+ }//end remove
+
+ /**
+  * Replaces the whole contents of the index in one step.
+  */
+ public synchronized void reload(List<Store> stores) {
+    clear();
+    for (Store s : stores)
+       put(s);
+ }
+
+ /**
+  * Drops every store from the index.
+  */
+ public synchronized void clear() {
+    this._cells.clear();
+    this._byID.clear();
+ }
+
+ /**
+  * @return the store with the given ID, or null if it is not indexed
+  */
+ public synchronized Store get(int storeID) {
+    return this._byID.get(storeID);
+ }
+
+ /**
+  * @return the number of indexed stores
+  */
+ public synchronized int size() {
+    return this._byID.size();
+ }
+
+ /**
+  * Finds every store within the given radius of a point. Only the grid
+  * cells overlapping the bounding box of the search circle are examined;
+  * when that box covers more cells than there are stores (a huge radius)
+  * every store is checked once instead.
+  *
+  * @return the matching stores, nearest first; empty for a radius that
+  *         is not a finite, non-negative number
+  */
+ public synchronized List<Neighbor> within(double latitude, double longitude, double radius) {
+    List<Neighbor> result = new ArrayList<Neighbor>();
+    if (!(radius >= 0) || Double.isInfinite(radius) || Double.isNaN(latitude) || Double.isNaN(longitude))
+       return result;
+    double latSpan = this._engine.latitudeSpan(radius), lonSpan = this._engine.longitudeSpan(latitude, radius);
+    double rows = Math.floor((latitude + latSpan) / this._cellSize) - Math.floor((latitude - latSpan) / this._cellSize) + 1;
+    double cols = Math.floor((longitude + lonSpan) / this._cellSize) - Math.floor((longitude - lonSpan) / this._cellSize) + 1;
+    if (rows * cols > this._byID.size() || lonSpan >= 180
+        || !inGrid(latitude, latSpan) || !inGrid(longitude, lonSpan + 360)) {
+       for (Store s : this._byID.values())
+          add(result, s, latitude, longitude, radius);
+    } else {
+       int rowLo = cellOf(latitude - latSpan), rowHi = cellOf(latitude + latSpan);
+       int colLo = cellOf(longitude - lonSpan), colHi = cellOf(longitude + lonSpan);
+       search(result, rowLo, rowHi, colLo, colHi, latitude, longitude, radius);
+
+       // the part of the box past the antimeridian, minus any columns
+       // already searched
+       if (longitude + lonSpan > 180)
+          search(result, rowLo, rowHi, cellOf(longitude - lonSpan - 360),
+                 Math.min(cellOf(longitude + lonSpan - 360), colLo - 1), latitude, longitude, radius);
+       if (longitude - lonSpan < -180)
+          search(result, rowLo, rowHi, Math.max(cellOf(longitude - lonSpan + 360), colHi + 1),
+                 cellOf(longitude + lonSpan + 360), latitude, longitude, radius);
+    }
+    Collections.sort(result, BY_DISTANCE);
+    return result;
+ }//end within
+
+ private void search(List<Neighbor> result, int rowLo, int rowHi, int colLo, int colHi,
+                     double latitude, double longitude, double radius) {
+    for (int row = rowLo; row <= rowHi; ++row) {
+       for (int col = colLo; col <= colHi; ++col) {
+          List<Store> cell = this._cells.get(key(row, col));
+          if (cell == null)
+             continue;
+          for (Store s : cell)
+             add(result, s, latitude, longitude, radius);
+       }
+    }
+ }
+
+ // whether a coordinate range maps to cells that key() can pack
+ private boolean inGrid(double center, double span) {
+    return Math.abs(center) + span < this._cellSize * Short.MAX_VALUE;
+ }
+
+ private void add(List<Neighbor> result, Store s, double latitude, double longitude, double radius) {
+    double d = this._engine.distance(latitude, longitude, s.latitude, s.longitude);
+    if (d <= radius)
+       result.add(new Neighbor(s, d));
+ }
+
+}//end StoreIndex
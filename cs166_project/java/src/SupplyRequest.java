@@ -0,0 +1,38 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+
+/**
+* A row of the ProductSupplyRequests table.
+*
+*/
+public class SupplyRequest {
+
+ public static final String COLUMNS = "requestNumber, managerID, warehouseID, storeID, productName, unitsRequested";
+
+ // maps a row selected with COLUMNS
+ public static final Amazon.RowMapper<SupplyRequest> MAPPER = new Amazon.RowMapper<SupplyRequest>() {
+    public SupplyRequest map(ResultSet rs) throws SQLException {
+       return new SupplyRequest(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getInt(4),
+                                rs.getString(5), rs.getInt(6));
+    }
+ };
+
+ public final int requestNumber;
+ public final int managerID;
+ public final int warehouseID;
+ public final int storeID;
+ public final String productName;
+ public final int unitsRequested;
+
+ public SupplyRequest(int requestNumber, int managerID, int warehouseID, int storeID,
+                      String productName, int unitsRequested) {
+    this.requestNumber = requestNumber;
+    this.managerID = managerID;
+    this.warehouseID = warehouseID;
+    this.storeID = storeID;
+    this.productName = productName;
+    this.unitsRequested = unitsRequested;
+ }
+
+}//end SupplyRequest
@@ -0,0 +1,142 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+
+/**
+* Runs independent database calls of one operation concurrently and waits
+* for all of them in one place, in the spirit of structured concurrency:
+* every task forked in a scope has finished or been cancelled by the time
+* the scope is closed, and the first failure cancels the tasks that have
+* not started yet. A statement already running is not interrupted; its
+* result is simply dropped.
+*
+*    TaskScope scope = esql.scope();
+*    try {
+*       Future<Integer> user = scope.fork(...);
+*       Future<Store> store = scope.fork(...);
+*       scope.join();
+*       ... TaskScope.get(user), TaskScope.get(store) ...
+*    } finally {
+*       scope.close();
+*    }
+*
+* Forked work runs on other threads, so it cannot see the caller's
+* transaction or session streams; it should only issue its own queries.
+*
+*/
+public class TaskScope implements AutoCloseable {
+
+ private final Executor _executor;
+ private final List<CompletableFuture<?>> _tasks = new ArrayList<CompletableFuture<?>>();
+
+ TaskScope(Executor executor) {
+    this._executor = executor;
+ }
+
+ /**
+  * Starts work on the scope's executor.
+  *
+  * @return the pending result; get() it only after join()
+  */
+ public <T> Future<T> fork(final Amazon.Work<T> work) {
+    final CompletableFuture<T> task = new CompletableFuture<T>();
+    synchronized (this._tasks) {
+       this._tasks.add(task);
+    }
+    this._executor.execute(new Runnable() {
+       public void run() {
+          if (task.isDone())
+             return;
+          try {
+             task.complete(work.run());
+          } catch (Throwable e) {
+             task.completeExceptionally(e);
+             cancelAll();
+          }
+       }
+    });
+    return task;
+ }//end fork
+
+ // cancels every task that has not finished yet
+ private void cancelAll() {
+    synchronized (this._tasks) {
+       for (CompletableFuture<?> task : this._tasks)
+          task.cancel(false);
+    }
+ }
+
+ /**
+  * Waits until every forked task has finished.
+  *
+  * @throws java.sql.SQLException the first failure of any task, as thrown
+  */
+ public void join() throws SQLException {
+    List<CompletableFuture<?>> tasks;
+    synchronized (this._tasks) {
+       tasks = new ArrayList<CompletableFuture<?>>(this._tasks);
+    }
+    try {
+       CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+    } catch (CancellationException e) {
+       // a sibling failed; its exception is reported below
+    } catch (CompletionException e) {
+       // reported below, in fork order
+    }
+    for (CompletableFuture<?> task : tasks) {
+       if (task.isCompletedExceptionally() && !task.isCancelled()) {
+          try {
+             task.get();
+          } catch (ExecutionException e) {
+             throw unwrap(e.getCause());
+          } catch (InterruptedException e) {
+             Thread.currentThread().interrupt();
+             throw new SQLException("Interrupted while waiting for a query");
+          }
+       }
+    }
+ }//end join
+
+ /**
+  * @return the result of a task forked in a joined scope
+  * @throws java.sql.SQLException when the task failed
+  */
+ public static <T> T get(Future<T> task) throws SQLException {
+    try {
+       return task.get();
+    } catch (ExecutionException e) {
+       throw unwrap(e.getCause());
+    } catch (InterruptedException e) {
+       Thread.currentThread().interrupt();
+       throw new SQLException("Interrupted while waiting for a query");
+    }
+ }//end get
+
+ private static SQLException unwrap(Throwable cause) {
+    if (cause instanceof SQLException)
+       return (SQLException) cause;
+    if (cause instanceof RuntimeException)
+       throw (RuntimeException) cause;
+    if (cause instanceof Error)
+       throw (Error) cause;
+    SQLException e = new SQLException(cause.getMessage());
+    e.initCause(cause);
+    return e;
+ }
+
+ /**
+  * Cancels the tasks that have not finished, so none of their results
+  * are used after the scope.
+  */
+ public void close() {
+    cancelAll();
+ }
+
+}//end TaskScope
@@ -0,0 +1,37 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+
+/**
+* A row of the Users table.
+*
+*/
+public class User {
+
+ public static final String COLUMNS = "userID, name, password, latitude, longitude, type";
+
+ // maps a row selected with COLUMNS
+ public static final Amazon.RowMapper<User> MAPPER = new Amazon.RowMapper<User>() {
+    public User map(ResultSet rs) throws SQLException {
+       return new User(rs.getInt(1), rs.getString(2), rs.getString(3),
+                       rs.getDouble(4), rs.getDouble(5), rs.getString(6));
+    }
+ };
+
+ public final int userID;
+ public final String name;
+ public final String password;
+ public final double latitude;
+ public final double longitude;
+ public final String type;
+
+ public User(int userID, String name, String password, double latitude, double longitude, String type) {
+    this.userID = userID;
+    this.name = name;
+    this.password = password;
+    this.latitude = latitude;
+    this.longitude = longitude;
+    this.type = type;
+ }
+
+}//end User
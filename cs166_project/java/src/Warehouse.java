@@ -0,0 +1,32 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+
+/**
+* A row of the Warehouse table.
+*
+*/
+public class Warehouse {
+
+ public static final String COLUMNS = "warehouseID, area, latitude, longitude";
+
+ // maps a row selected with COLUMNS
+ public static final Amazon.RowMapper<Warehouse> MAPPER = new Amazon.RowMapper<Warehouse>() {
+    public Warehouse map(ResultSet rs) throws SQLException {
+       return new Warehouse(rs.getInt(1), rs.getInt(2), rs.getDouble(3), rs.getDouble(4));
+    }
+ };
+
+ public final int warehouseID;
+ public final int area;
+ public final double latitude;
+ public final double longitude;
+
+ public Warehouse(int warehouseID, int area, double latitude, double longitude) {
+    this.warehouseID = warehouseID;
+    this.area = area;
+    this.latitude = latitude;
+    this.longitude = longitude;
+ }
+
+}//end Warehouse
@@ -0,0 +1,192 @@
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+* In-memory model of the warehouses used to route supply requests. Each
+* warehouse can hold a number of outstanding (not yet fulfilled) units
+* proportional to its area. A request goes to the warehouse that
+* minimizes distance * (1 + load), where load is the share of its
+* capacity already outstanding, among the warehouses that still have room
+* for it: the nearest warehouse wins unless it is noticeably busier than
+* the next one.
+*
+* Routing reserves the units on the chosen warehouse; release() gives
+* them back once the request is fulfilled or was never written.
+* Distances come from a DistanceMatrix when one is given and knows the
+* store, so routing a demand is one row lookup.
+*
+*/
+public class WarehouseRouter {
+
+ // outstanding units a warehouse takes per unit of area
+ public static final double UNITS_PER_AREA = 1.0;
+
+ /**
+  * Units of one product a store needs.
+  */
+ public static class Demand {
+    public final int storeID;
+    public final String productName;
+    public final int units;
+    public final double latitude;
+    public final double longitude;
+
+    public Demand(int storeID, String productName, int units, double latitude, double longitude) {
+       this.storeID = storeID;
+       this.productName = productName;
+       this.units = units;
+       this.latitude = latitude;
+       this.longitude = longitude;
+    }
+ }//end Demand
+
+ /**
+  * A demand assigned to a warehouse.
+  */
+ public static class Route {
+    public final Demand demand;
+    public final Warehouse warehouse;
+    public final double distance;
+
+    Route(Demand demand, Warehouse warehouse, double distance) {
+       this.demand = demand;
+       this.warehouse = warehouse;
+       this.distance = distance;
+    }
+ }//end Route
+
+ private final DistanceMatrix _distances;
+
+ private Warehouse[] _warehouses = new Warehouse[0];
+ private long[] _capacity = new long[0];
+ private long[] _outstanding = new long[0];
+
+ // position in the arrays by warehouseID
+ private final IntMap<Integer> _slot = new IntMap<Integer>();
+
+ public WarehouseRouter() {
+    this(null);
+ }
+
+ /**
+  * @param distances precomputed distances to use, or null to compute them
+  */
+ public WarehouseRouter(DistanceMatrix distances) {
+    this._distances = distances;
+ }
+
+ // distance from a demand's store to a warehouse
+ private double distance(Demand d, Warehouse w) {
+    double known = this._distances == null ? -1 : this._distances.storeToWarehouse(d.storeID, w.warehouseID);
+    return known >= 0 ? known : Amazon.calculateDistance(d.latitude, d.longitude, w.latitude, w.longitude);
+ }
+
+ /**
+  * Replaces the model in one step.
+  *
+  * @param warehouses every Warehouse row
+  * @param outstanding unfulfilled units per warehouseID; missing means none
+  */
+ public synchronized void reload(List<Warehouse> warehouses, IntMap<Long> outstanding) {
+    int n = warehouses.size();
+    this._warehouses = warehouses.toArray(new Warehouse[n]);
+    this._capacity = new long[n];
+    this._outstanding = new long[n];
+    this._slot.clear();
+    for (int i = 0; i < n; ++i) {
+       Warehouse w = this._warehouses[i];
+       this._capacity[i] = (long) (w.area * UNITS_PER_AREA);
+       Long units = outstanding.get(w.warehouseID);
+       this._outstanding[i] = units == null ? 0 : units.longValue();
+       this._slot.put(w.warehouseID, i);
+    }
+ }//end reload
+
+ /**
+  * @return the warehouse with the given ID, or null if unknown
+  */
+ public synchronized Warehouse get(int warehouseID) {
+    Integer i = this._slot.get(warehouseID);
+    return i == null ? null : this._warehouses[i];
+ }
+
+ /**
+  * @return the unfulfilled units routed to a warehouse
+  */
+ public synchronized long outstanding(int warehouseID) {
+    Integer i = this._slot.get(warehouseID);
+    return i == null ? 0 : this._outstanding[i];
+ }
+
+ // best warehouse with room for the demand, or -1
+ private int choose(Demand d) {
+    int best = -1;
+    double bestScore = Double.MAX_VALUE;
+    for (int i = 0; i < this._warehouses.length; ++i) {
+       if (this._outstanding[i] + d.units > this._capacity[i])
+          continue;
+       Warehouse w = this._warehouses[i];
+       double load = this._capacity[i] == 0 ? 0 : (double) this._outstanding[i] / this._capacity[i];
+       double score = distance(d, w) * (1 + load);
+       if (score < bestScore) {
+          bestScore = score;
+          best = i;
+       }
+    }
+    return best;
+ }//end choose
+
+ /**
+  * Routes one demand and reserves its units on the chosen warehouse.
+  *
+  * @return the route, or null if no warehouse has room for it
+  */
+ public synchronized Route route(Demand d) {
+    int i = choose(d);
+    if (i < 0)
+       return null;
+    this._outstanding[i] += d.units;
+    Warehouse w = this._warehouses[i];
+    return new Route(d, w, distance(d, w));
+ }//end route
+
+ /**
+  * Routes many demands in one pass. Each assignment counts towards the
+  * load seen by the next, so a batch spreads over the warehouses instead
+  * of piling onto the nearest one. Demands no warehouse has room for are
+  * left out.
+  *
+  * @return the routes, in the order of the demands
+  */
+ public synchronized List<Route> plan(List<Demand> demands) {
+    List<Route> routes = new ArrayList<Route>(demands.size());
+    for (Demand d : demands) {
+       Route r = route(d);
+       if (r != null)
+          routes.add(r);
+    }
+    return routes;
+ }//end plan
+
+ /**
+  * Records units taken off a warehouse, either because a request was
+  * fulfilled or because a routed request was never written.
+  */
+ public synchronized void release(int warehouseID, int units) {
+    Integer i = this._slot.get(warehouseID);
+    if (i != null)
+       this._outstanding[i] = Math.max(0, this._outstanding[i] - units);
+ }
+
+ /**
+  * Records units routed to a warehouse outside route(), e.g. a request
+  * for a warehouse chosen by hand.
+  */
+ public synchronized void reserve(int warehouseID, int units) {
+    Integer i = this._slot.get(warehouseID);
+    if (i != null)
+       this._outstanding[i] += units;
+ }
+
+}//end WarehouseRouter
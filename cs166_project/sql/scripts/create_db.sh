@@ -12,5 +12,13 @@ cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/create_indexes.sq
 
 # Load data
 cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/load_data.sql
+# or load any data directory from the client side in parallel (compile the java sources first)
+#java -cp $DIR/../../java/classes:$DIR/../../java/lib/pg73jdbc3.jar BulkLoader $USER"_project_phase_3_DB" $PGPORT $USER $DIR/../../data 4
+
+# Split Orders and ProductUpdates into monthly partitions
+cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/partitions.sql
+
+# Create triggers (after loading so the bulk load does not fire them)
+cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/triggers.sql
 
 
@@ -0,0 +1,39 @@
+-- Secondary indexes for the access paths used by java/src/Amazon.java.
+-- Check plans with explain_indexes.sql (run it before and after this file).
+
+-- LogIn / placeOrder / viewRecentOrders / Admin look users up by name
+CREATE INDEX users_name_idx ON Users (name);
+
+-- manager reports and permission checks: storeIDs owned by a manager,
+-- answered from the index alone
+CREATE INDEX store_manager_idx ON Store (managerID, storeID);
+
+-- viewRecentOrders: WHERE customerID = ? ORDER BY orderTime DESC LIMIT 5
+CREATE INDEX orders_customer_time_idx ON Orders (customerID, orderTime DESC);
+
+-- Orders -> Product join and the foreign key; customerID is carried along
+-- so rebuild_order_counts() can group without visiting the heap
+CREATE INDEX orders_product_idx ON Orders (storeID, productName, customerID);
+
+-- viewRecentUpdates: WHERE managerID = ? ORDER BY updatedOn DESC LIMIT 5
+CREATE INDEX productupdates_manager_time_idx ON ProductUpdates (managerID, updatedOn DESC);
+
+-- ProductUpdates -> Product join and foreign key
+CREATE INDEX productupdates_product_idx ON ProductUpdates (storeID, productName);
+
+-- ProductSupplyRequests foreign keys, used when Product or Warehouse rows change
+CREATE INDEX supplyrequests_product_idx ON ProductSupplyRequests (storeID, productName);
+CREATE INDEX supplyrequests_warehouse_idx ON ProductSupplyRequests (warehouseID);
+
+-- warehouse routing: units still outstanding per warehouse
+CREATE INDEX supplyrequests_outstanding_idx ON ProductSupplyRequests (warehouseID, unitsRequested)
+    WHERE fulfilledOn IS NULL;
+
+-- Replenisher.fulfilDue(): outstanding requests by age
+CREATE INDEX supplyrequests_due_idx ON ProductSupplyRequests (requestedOn) WHERE fulfilledOn IS NULL;
+
+-- SessionStore.load(): live sessions used within the time-to-live
+CREATE INDEX usersessions_open_idx ON UserSessions (lastSeen) WHERE closedOn IS NULL;
+
+-- ProductChangeListener trims the change log by age
+CREATE INDEX productchanges_changedon_idx ON ProductChanges (changedOn);
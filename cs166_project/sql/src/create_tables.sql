@@ -6,6 +6,12 @@ DROP TABLE IF EXISTS Orders CASCADE;
 DROP TABLE IF EXISTS ProductSupplyRequests CASCADE;
 DROP TABLE IF EXISTS ProductUpdates CASCADE;
 DROP TABLE IF EXISTS LoggedInUser CASCADE;
+DROP TABLE IF EXISTS UserSessions CASCADE;
+DROP TABLE IF EXISTS ReorderPolicies CASCADE;
+DROP TABLE IF EXISTS ProductChanges CASCADE;
+DROP TABLE IF EXISTS ProductOrderCounts CASCADE;
+DROP TABLE IF EXISTS CustomerOrderCounts CASCADE;
+DROP SCHEMA IF EXISTS archive CASCADE;
 
 CREATE TABLE Users ( userID serial,
                      name char(50) NOT NULL,
@@ -49,10 +55,14 @@ CREATE TABLE Orders (
                      productName char(30) NOT NULL, 
                      unitsOrdered integer NOT NULL, 
                      orderTime timestamp NOT NULL,
-                     PRIMARY KEY(orderNumber),
+                     -- the partition key has to be part of the primary key
+                     PRIMARY KEY(orderNumber, orderTime),
                      FOREIGN KEY(customerID) REFERENCES Users(userID),
                      FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
-);
+) PARTITION BY RANGE (orderTime);
+
+-- monthly partitions are added by partitions.sql; rows outside them land here
+CREATE TABLE Orders_default PARTITION OF Orders DEFAULT;
 
 CREATE TABLE ProductSupplyRequests (  
 							   requestNumber serial NOT NULL,
@@ -61,6 +71,8 @@ CREATE TABLE ProductSupplyRequests (
                                storeID integer NOT NULL,
                                productName char(30) NOT NULL, 
 							   unitsRequested integer NOT NULL,
+                               requestedOn timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+                               fulfilledOn timestamp, -- NULL while outstanding; inserts state it
                                PRIMARY KEY(requestNumber),
 							   FOREIGN KEY(managerID) REFERENCES Users(userID), 
                                FOREIGN KEY(warehouseID) REFERENCES Warehouse(warehouseID),
@@ -73,14 +85,62 @@ CREATE TABLE ProductUpdates (
                         	storeID integer NOT NULL,
                        		productName char(30) NOT NULL, 
                             updatedOn timestamp NOT NULL,
-                        	PRIMARY KEY(updateNumber),
+                        	PRIMARY KEY(updateNumber, updatedOn),
                         	FOREIGN KEY(managerID) REFERENCES Users(userID),
                         	FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+) PARTITION BY RANGE (updatedOn);
+
+CREATE TABLE ProductUpdates_default PARTITION OF ProductUpdates DEFAULT;
+
+-- per-product reorder point and quantity for automatic replenishment;
+-- products without a row use the app's defaults
+CREATE TABLE ReorderPolicies (
+    storeID integer NOT NULL,
+    productName char(30) NOT NULL,
+    reorderPoint integer NOT NULL,
+    reorderQuantity integer NOT NULL CHECK (reorderQuantity > 0),
+    PRIMARY KEY(storeID, productName),
+    FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+);
+
+-- login sessions written behind by the app's in-memory session store;
+-- closedOn is null while the session is live
+CREATE TABLE UserSessions (
+    token char(32) NOT NULL,
+    userID integer NOT NULL,
+    openedOn timestamp NOT NULL,
+    lastSeen timestamp NOT NULL,
+    closedOn timestamp,
+    PRIMARY KEY(token),
+    FOREIGN KEY(userID) REFERENCES Users(userID)
 );
 
-CREATE TABLE LoggedInUser (
-    userID INT PRIMARY KEY,
-    name VARCHAR(50),
-    login BOOLEAN DEFAULT TRUE,
-    FOREIGN KEY (userID) REFERENCES Users(userID)
+-- log of changed Product keys, read by the app to invalidate its product cache
+CREATE TABLE ProductChanges (
+    changeID bigserial,
+    storeID integer NOT NULL,
+    productName char(30) NOT NULL,
+    changedOn timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    origin varchar(36), -- the writing app process (ConnectionPool.origin()), NULL for others
+    PRIMARY KEY(changeID)
 );
+
+-- running order counts per store, maintained by order_counts_trigger and
+-- recomputed from Orders by rebuild_order_counts(); the popularity reports
+-- read a manager's stores through the primary keys and sum across them
+CREATE TABLE ProductOrderCounts (
+    storeID integer NOT NULL,
+    productName char(30) NOT NULL,
+    orderCount bigint NOT NULL,
+    PRIMARY KEY(storeID, productName)
+);
+
+CREATE TABLE CustomerOrderCounts (
+    storeID integer NOT NULL,
+    customerID integer NOT NULL,
+    orderCount bigint NOT NULL,
+    PRIMARY KEY(storeID, customerID)
+);
+
+-- monthly partitions detached by archive_month_partitions() (partitions.sql)
+CREATE SCHEMA archive;
@@ -0,0 +1,55 @@
+-- Plans for the queries create_indexes.sql is designed for. Run this once
+-- on a scaled-up database before creating the indexes and once after, e.g.
+--   cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < explain_indexes.sql > before.txt
+-- Each query should move from a Seq Scan to an Index (Only) Scan.
+
+ANALYZE;
+
+-- LogIn
+EXPLAIN ANALYZE
+SELECT * FROM Users WHERE name = 'Amy' AND password = 'xyz';
+
+-- Admin check
+EXPLAIN ANALYZE
+SELECT * FROM Users WHERE name = 'Admin' AND type = 'admin';
+
+-- manager's stores
+EXPLAIN ANALYZE
+SELECT storeID FROM Store WHERE managerID = 25;
+
+-- viewRecentOrders
+EXPLAIN ANALYZE
+SELECT o.orderNumber, o.customerID, s.storeID, o.productName, o.unitsOrdered, o.orderTime
+FROM Orders o
+JOIN Product p ON o.storeID = p.storeID AND o.productName = p.productName
+JOIN Store s ON p.storeID = s.storeID
+WHERE o.customerID = 3
+ORDER BY o.orderTime DESC LIMIT 5;
+
+-- viewRecentUpdates
+EXPLAIN ANALYZE
+SELECT s.storeID, u.productName, p.numberOfUnits, p.pricePerUnit, u.updatedOn
+FROM ProductUpdates u
+JOIN Store s ON u.storeID = s.storeID
+JOIN Product p ON u.storeID = p.storeID AND u.productName = p.productName
+WHERE s.managerID = 25 AND u.managerID = 25
+ORDER BY u.updatedOn DESC LIMIT 5;
+
+-- viewPopularProducts (running counts; see order_counts_trigger)
+EXPLAIN ANALYZE
+SELECT c.productName, SUM(c.orderCount) AS orderCount
+FROM ProductOrderCounts c
+JOIN Store s ON s.storeID = c.storeID
+WHERE s.managerID = 25 AND c.orderCount > 0
+GROUP BY c.productName
+ORDER BY orderCount DESC LIMIT 5;
+
+-- viewPopularCustomers (running counts; see order_counts_trigger)
+EXPLAIN ANALYZE
+SELECT u.name, u.latitude, u.longitude, u.type, SUM(c.orderCount) AS orderCount
+FROM CustomerOrderCounts c
+JOIN Store s ON s.storeID = c.storeID
+JOIN Users u ON u.userID = c.customerID
+WHERE s.managerID = 25 AND c.orderCount > 0
+GROUP BY u.userID
+ORDER BY orderCount DESC LIMIT 5;
@@ -0,0 +1,112 @@
+-- Monthly range partitions for Orders (by orderTime) and ProductUpdates
+-- (by updatedOn). create_tables.sql creates both as partitioned tables with
+-- only a default partition; the functions below add one partition per
+-- month and retire old months to the archive schema. java/src/
+-- PartitionMaintainer.java calls them on a schedule.
+
+-- name of the single partition key column of a partitioned table
+CREATE OR REPLACE FUNCTION partition_key_column(parent text) RETURNS text AS $$
+    SELECT a.attname::text
+    FROM pg_partitioned_table pt
+    JOIN pg_attribute a ON a.attrelid = pt.partrelid AND a.attnum = pt.partattrs[0]
+    WHERE pt.partrelid = parent::regclass;
+$$ LANGUAGE sql STABLE;
+
+-- creates the partition holding the month of ts, named <parent>_pYYYYMM,
+-- unless it exists; rows of that month that already went to the default
+-- partition are moved into it first
+CREATE OR REPLACE FUNCTION ensure_month_partition(parent text, ts timestamp) RETURNS text AS $$
+DECLARE
+    lo timestamp := date_trunc('month', ts);
+    hi timestamp := date_trunc('month', ts) + interval '1 month';
+    part text := lower(parent) || '_p' || to_char(ts, 'YYYYMM');
+    keycol text := partition_key_column(parent);
+BEGIN
+    IF to_regclass(part) IS NOT NULL THEN
+        RETURN part;
+    END IF;
+    EXECUTE format('CREATE TABLE %I (LIKE %I INCLUDING DEFAULTS)', part, lower(parent));
+
+    -- the rows only change partition, so row triggers must not count them again
+    PERFORM set_config('amazon.moving_partition_rows', 'on', true);
+    EXECUTE format('WITH moved AS (DELETE FROM %I WHERE %I >= $1 AND %I < $2 RETURNING *) ' ||
+                   'INSERT INTO %I SELECT * FROM moved',
+                   lower(parent) || '_default', keycol, keycol, part) USING lo, hi;
+    PERFORM set_config('amazon.moving_partition_rows', 'off', true);
+
+    EXECUTE format('ALTER TABLE %I ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+                   lower(parent), part, lo, hi);
+    RETURN part;
+END;
+$$ LANGUAGE plpgsql;
+
+-- creates the partitions for every month from lo to hi
+CREATE OR REPLACE FUNCTION create_month_partitions(parent text, lo timestamp, hi timestamp) RETURNS integer AS $$
+DECLARE
+    m timestamp := date_trunc('month', lo);
+    n integer := 0;
+BEGIN
+    WHILE m <= hi LOOP
+        PERFORM ensure_month_partition(parent, m);
+        m := m + interval '1 month';
+        n := n + 1;
+    END LOOP;
+    RETURN n;
+END;
+$$ LANGUAGE plpgsql;
+
+-- gives every month found in the default partition its own partition and
+-- makes sure the current month and the next months_ahead months exist
+CREATE OR REPLACE FUNCTION ensure_month_partitions(parent text, months_ahead integer) RETURNS integer AS $$
+DECLARE
+    m timestamp;
+    n integer := 0;
+BEGIN
+    FOR m IN EXECUTE format('SELECT DISTINCT date_trunc(''month'', %I) FROM %I',
+                            partition_key_column(parent), lower(parent) || '_default') LOOP
+        PERFORM ensure_month_partition(parent, m);
+        n := n + 1;
+    END LOOP;
+    RETURN n + create_month_partitions(parent, now()::timestamp,
+                                       now()::timestamp + months_ahead * interval '1 month');
+END;
+$$ LANGUAGE plpgsql;
+
+-- detaches every monthly partition that ended more than keep_months months
+-- before the current month and moves it to the archive schema, returning
+-- the archived table names; archived orders are taken out of the running
+-- popularity counts so they keep matching Orders
+CREATE OR REPLACE FUNCTION archive_month_partitions(parent text, keep_months integer) RETURNS SETOF text AS $$
+DECLARE
+    cutoff timestamp := date_trunc('month', now()) - keep_months * interval '1 month';
+    prefix text := lower(parent) || '_p';
+    part text;
+BEGIN
+    FOR part IN
+        SELECT c.relname::text FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid
+        WHERE i.inhparent = parent::regclass AND c.relname LIKE prefix || '%'
+        ORDER BY c.relname
+    LOOP
+        IF to_timestamp(substr(part, length(prefix) + 1), 'YYYYMM')::timestamp
+           + interval '1 month' <= cutoff THEN
+            IF lower(parent) = 'orders' THEN
+                EXECUTE format('UPDATE ProductOrderCounts c SET orderCount = c.orderCount - d.n ' ||
+                               'FROM (SELECT storeID, productName, COUNT(*) AS n FROM %I ' ||
+                               'GROUP BY storeID, productName) d ' ||
+                               'WHERE c.storeID = d.storeID AND c.productName = d.productName', part);
+                EXECUTE format('UPDATE CustomerOrderCounts c SET orderCount = c.orderCount - d.n ' ||
+                               'FROM (SELECT storeID, customerID, COUNT(*) AS n FROM %I ' ||
+                               'GROUP BY storeID, customerID) d ' ||
+                               'WHERE c.storeID = d.storeID AND c.customerID = d.customerID', part);
+            END IF;
+            EXECUTE format('ALTER TABLE %I DETACH PARTITION %I', lower(parent), part);
+            EXECUTE format('ALTER TABLE %I SET SCHEMA archive', part);
+            RETURN NEXT 'archive.' || part;
+        END IF;
+    END LOOP;
+END;
+$$ LANGUAGE plpgsql;
+
+-- split the loaded data into monthly partitions and prepare the next months
+SELECT ensure_month_partitions('Orders', 2);
+SELECT ensure_month_partitions('ProductUpdates', 2);
@@ -1,13 +1,81 @@
-CREATE OR REPLACE FUNCTION store_logged_in_user() RETURNS TRIGGER AS $$
+-- login state is kept by the app (SessionStore); drop the old
+-- LoggedInUser trigger function from existing databases
+DROP FUNCTION IF EXISTS store_logged_in_user() CASCADE;
+
+-- every change is logged with the writing process's amazon.origin (set by
+-- ConnectionPool; NULL for other writers) so each process can skip the
+-- entries it has already applied to its own cache. The log is polled
+-- rather than announced with NOTIFY, which would make every order queue
+-- on the notify lock at commit.
+CREATE OR REPLACE FUNCTION log_product_change() RETURNS TRIGGER AS $$
+DECLARE
+    origin text := NULLIF(current_setting('amazon.origin', true), '');
+BEGIN
+    IF TG_OP = 'DELETE' THEN
+        INSERT INTO ProductChanges (storeID, productName, origin) VALUES (OLD.storeID, OLD.productName, origin);
+    ELSE
+        INSERT INTO ProductChanges (storeID, productName, origin) VALUES (NEW.storeID, NEW.productName, origin);
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER product_change_trigger
+AFTER INSERT OR UPDATE OR DELETE ON Product
+FOR EACH ROW
+EXECUTE PROCEDURE log_product_change();
+
+-- adds delta to the running counts of one order's product and customer,
+-- creating the rows on first use
+CREATE OR REPLACE FUNCTION bump_order_counts(s integer, p char(30), c integer, delta integer) RETURNS void AS $$
+BEGIN
+    INSERT INTO ProductOrderCounts (storeID, productName, orderCount) VALUES (s, p, delta)
+    ON CONFLICT (storeID, productName)
+    DO UPDATE SET orderCount = ProductOrderCounts.orderCount + EXCLUDED.orderCount;
+    INSERT INTO CustomerOrderCounts (storeID, customerID, orderCount) VALUES (s, c, delta)
+    ON CONFLICT (storeID, customerID)
+    DO UPDATE SET orderCount = CustomerOrderCounts.orderCount + EXCLUDED.orderCount;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION maintain_order_counts() RETURNS TRIGGER AS $$
 BEGIN
-    DELETE FROM LoggedInUser;
-    INSERT INTO LoggedInUser (userID, name)
-    VALUES (NEW.userID, NEW.name);
-    RETURN NEW;
+    -- ensure_month_partition() moving rows out of the default partition
+    IF current_setting('amazon.moving_partition_rows', true) = 'on' THEN
+        RETURN NULL;
+    END IF;
+    IF TG_OP = 'UPDATE' OR TG_OP = 'DELETE' THEN
+        PERFORM bump_order_counts(OLD.storeID, OLD.productName, OLD.customerID, -1);
+    END IF;
+    IF TG_OP = 'UPDATE' OR TG_OP = 'INSERT' THEN
+        PERFORM bump_order_counts(NEW.storeID, NEW.productName, NEW.customerID, 1);
+    END IF;
+    RETURN NULL;
 END;
 $$ LANGUAGE plpgsql;
 
-CREATE TRIGGER store_logged_in_user_trigger
-AFTER INSERT ON Users
+CREATE TRIGGER order_counts_trigger
+AFTER INSERT OR DELETE OR UPDATE OF storeID, productName, customerID ON Orders
 FOR EACH ROW
-EXECUTE PROCEDURE store_logged_in_user();
\ No newline at end of file
+EXECUTE PROCEDURE maintain_order_counts();
+
+-- recomputes the running counts from Orders, e.g. after a bulk load or to
+-- recover from drift; new orders wait until it is done
+CREATE OR REPLACE FUNCTION rebuild_order_counts() RETURNS bigint AS $$
+DECLARE
+    total bigint;
+BEGIN
+    LOCK TABLE Orders IN SHARE MODE;
+    DELETE FROM ProductOrderCounts;
+    DELETE FROM CustomerOrderCounts;
+    INSERT INTO ProductOrderCounts (storeID, productName, orderCount)
+        SELECT storeID, productName, COUNT(*) FROM Orders GROUP BY storeID, productName;
+    INSERT INTO CustomerOrderCounts (storeID, customerID, orderCount)
+        SELECT storeID, customerID, COUNT(*) FROM Orders GROUP BY storeID, customerID;
+    SELECT SUM(orderCount) INTO total FROM ProductOrderCounts;
+    RETURN COALESCE(total, 0);
+END;
+$$ LANGUAGE plpgsql;
+
+-- the data was loaded before the trigger existed
+SELECT rebuild_order_counts();